@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.org.nifi.rocksdbmanager.processors;
+
+import it.org.nifi.rocksdbmanager.exception.LookupFailureException;
+import it.org.nifi.rocksdbmanager.services.RocksDbService;
+import it.org.nifi.rocksdbmanager.utils.RocksDbRocksLookupService;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.configuration.DefaultSchedule;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.scheduling.SchedulingStrategy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static it.org.nifi.rocksdbmanager.utils.PropertyDescriptorUtils.*;
+
+@InputRequirement(InputRequirement.Requirement.INPUT_ALLOWED)
+@DefaultSchedule(strategy = SchedulingStrategy.TIMER_DRIVEN, period = "1 day")
+@Tags({"rocksdb", "compaction"})
+@CapabilityDescription("Processor that compacts a RocksDb opened by a RocksDbService, fully or by key range. " +
+        "It can run on a schedule, or be triggered by a FlowFile, e.g. at the end of a bulk load.")
+@SeeAlso({RocksDbWriter.class, RocksDbService.class})
+@WritesAttributes({@WritesAttribute(attribute = "rocksdb.compaction.duration",
+        description = "Duration of the compaction in milliseconds."),
+        @WritesAttribute(attribute = "rocksdb.compaction.error",
+                description = "contains the error occurred when compacting the RocksDB")})
+public class CompactRocksDb extends AbstractProcessor {
+
+    public static final PropertyDescriptor ROCKSDB_SERVICE = new PropertyDescriptor
+            .Builder().name("rocksdb-service")
+            .displayName("RocksDB Service")
+            .description("Designed Rocksdb to utilize")
+            .required(true)
+            .identifiesControllerService(RocksDbRocksLookupService.class)
+            .build();
+
+    public static final PropertyDescriptor START_KEY = new PropertyDescriptor
+            .Builder().name("start-key")
+            .displayName("Start Key")
+            .description("First key of the range to compact. If not set the compaction starts from the first key of the database.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .build();
+
+    public static final PropertyDescriptor END_KEY = new PropertyDescriptor
+            .Builder().name("end-key")
+            .displayName("End Key")
+            .description("Key where the range to compact ends. If not set the compaction goes up to the last key of the database.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .build();
+
+    public static final PropertyDescriptor ENABLE_AUTO_COMPACTIONS = new PropertyDescriptor
+            .Builder().name("enable-auto-compactions")
+            .displayName("Enable Auto Compactions")
+            .description("Enables again the automatic compactions once the compaction is done, " +
+                    "when they have been disabled on the service for a bulk load.")
+            .required(true)
+            .defaultValue("false")
+            .allowableValues("true", "false")
+            .build();
+
+    private final Set<Relationship> relationships = Set.of(REL_SUCCESS,
+            REL_FAILURE);
+
+    protected volatile RocksDbRocksLookupService lookupService;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        final List<PropertyDescriptor> properties = new ArrayList<>();
+        properties.add(ROCKSDB_SERVICE);
+        properties.add(START_KEY);
+        properties.add(END_KEY);
+        properties.add(ENABLE_AUTO_COMPACTIONS);
+        return properties;
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        this.lookupService = context.getProperty(ROCKSDB_SERVICE)
+                .asControllerService(RocksDbRocksLookupService.class);
+    }
+
+    @Override
+    public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
+        FlowFile flowFile = session.get();
+        if (flowFile == null && context.hasIncomingConnection()) {
+            return;
+        }
+
+        String startKey = context.getProperty(START_KEY).evaluateAttributeExpressions(flowFile).getValue();
+        String endKey = context.getProperty(END_KEY).evaluateAttributeExpressions(flowFile).getValue();
+        boolean enableAutoCompactions = context.getProperty(ENABLE_AUTO_COMPACTIONS).asBoolean();
+
+        long start = System.currentTimeMillis();
+        try {
+            lookupService.compact(startKey, endKey, enableAutoCompactions);
+        } catch (LookupFailureException e) {
+            if (flowFile == null) {
+                throw new ProcessException(e);
+            }
+            flowFile = session.putAttribute(flowFile, "rocksdb.compaction.error", String.valueOf(e.getCause()));
+            session.transfer(flowFile, REL_FAILURE);
+            return;
+        }
+
+        if (flowFile == null) {
+            flowFile = session.create();
+        }
+        flowFile = session.putAttribute(flowFile, "rocksdb.compaction.duration", String.valueOf(System.currentTimeMillis() - start));
+        session.transfer(flowFile, REL_SUCCESS);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.org.nifi.rocksdbmanager.processors;
+
+import it.org.nifi.rocksdbmanager.exception.LookupFailureException;
+import it.org.nifi.rocksdbmanager.services.RocksDbService;
+import it.org.nifi.rocksdbmanager.utils.RocksDbRocksLookupService;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static it.org.nifi.rocksdbmanager.utils.PropertyDescriptorUtils.*;
+
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@Tags({"rocksdb", "hash", "dupe", "duplicate", "dedupe"})
+@CapabilityDescription("Detects duplicate FlowFiles by recording their identifier in a RocksDb through a RocksDbService. " +
+        "Each batch of FlowFiles is checked with bloom filters and a single multi get, and the new identifiers are recorded " +
+        "with a single write. The identifiers and their timestamps are kept in a column family of their own, so the database " +
+        "can also hold the entries written by the other processors.")
+@SeeAlso({RocksDbService.class})
+public class DetectDuplicateRocksDb extends AbstractProcessor {
+
+    public static final Relationship REL_DUPLICATE = new Relationship.Builder()
+            .name("duplicate")
+            .description("If a FlowFile has been detected to be a duplicate, it will be routed to this relationship")
+            .build();
+
+    public static final Relationship REL_NON_DUPLICATE = new Relationship.Builder()
+            .name("non-duplicate")
+            .description("If a FlowFile's Cache Entry Identifier was not found in the RocksDb, it will be routed to this relationship")
+            .build();
+
+    public static final PropertyDescriptor ROCKSDB_SERVICE = new PropertyDescriptor
+            .Builder().name("rocksdb-service")
+            .displayName("RocksDB Service")
+            .description("Designed Rocksdb to utilize")
+            .required(true)
+            .identifiesControllerService(RocksDbRocksLookupService.class)
+            .build();
+
+    public static final PropertyDescriptor CACHE_ENTRY_IDENTIFIER = new PropertyDescriptor
+            .Builder().name("cache-entry-identifier")
+            .displayName("Cache Entry Identifier")
+            .description("A FlowFile attribute, or the results of an Attribute Expression Language statement, which will be " +
+                    "evaluated against a FlowFile in order to determine the value used to identify duplicates.")
+            .required(true)
+            .defaultValue("${hash.value}")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .build();
+
+    public static final PropertyDescriptor AGE_OFF_DURATION = new PropertyDescriptor
+            .Builder().name("age-off-duration")
+            .displayName("Age Off Duration")
+            .description("Time interval after which an identifier is no longer a duplicate and is recorded again. " +
+                    "If not set identifiers never expire. Set a Time To Live on the service to also remove them from the database.")
+            .required(false)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor
+            .Builder().name("batch-size")
+            .displayName("Batch Size")
+            .description("Maximum number of FlowFiles checked in a single batch.")
+            .required(true)
+            .defaultValue("1000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    private final Set<Relationship> relationships = Set.of(REL_DUPLICATE,
+            REL_NON_DUPLICATE, REL_FAILURE);
+
+    protected volatile RocksDbRocksLookupService lookupService;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        final List<PropertyDescriptor> properties = new ArrayList<>();
+        properties.add(ROCKSDB_SERVICE);
+        properties.add(CACHE_ENTRY_IDENTIFIER);
+        properties.add(AGE_OFF_DURATION);
+        properties.add(BATCH_SIZE);
+        return properties;
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        this.lookupService = context.getProperty(ROCKSDB_SERVICE)
+                .asControllerService(RocksDbRocksLookupService.class);
+    }
+
+    @Override
+    public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
+        List<FlowFile> flowFiles = session.get(context.getProperty(BATCH_SIZE).asInteger());
+        if (flowFiles.isEmpty()) {
+            return;
+        }
+
+        long maxAgeMillis = context.getProperty(AGE_OFF_DURATION).isSet()
+                ? context.getProperty(AGE_OFF_DURATION).asTimePeriod(TimeUnit.MILLISECONDS) : 0;
+        List<FlowFile> toCheck = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        for (FlowFile flowFile : flowFiles) {
+            String key = context.getProperty(CACHE_ENTRY_IDENTIFIER).evaluateAttributeExpressions(flowFile).getValue();
+            if (key == null || key.isBlank()) {
+                getLogger().error("FlowFile {} has no attribute for given Cache Entry Identifier", flowFile);
+                session.transfer(flowFile, REL_FAILURE);
+                continue;
+            }
+            toCheck.add(flowFile);
+            keys.add(key);
+        }
+        if (toCheck.isEmpty()) {
+            return;
+        }
+
+        List<Boolean> duplicates;
+        try {
+            duplicates = lookupService.detectDuplicates(keys, maxAgeMillis);
+        } catch (LookupFailureException e) {
+            session.transfer(toCheck, REL_FAILURE);
+            throw new RuntimeException(e);
+        }
+
+        for (int i = 0; i < toCheck.size(); i++) {
+            session.transfer(toCheck.get(i), duplicates.get(i) ? REL_DUPLICATE : REL_NON_DUPLICATE);
+        }
+    }
+}
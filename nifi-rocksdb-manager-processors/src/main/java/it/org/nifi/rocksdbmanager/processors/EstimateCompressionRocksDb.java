@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.org.nifi.rocksdbmanager.processors;
+
+import it.org.nifi.rocksdbmanager.exception.LookupFailureException;
+import it.org.nifi.rocksdbmanager.services.RocksDbService;
+import it.org.nifi.rocksdbmanager.utils.CompressionEstimator;
+import it.org.nifi.rocksdbmanager.utils.RocksDbRocksLookupService;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.configuration.DefaultSchedule;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.scheduling.SchedulingStrategy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static it.org.nifi.rocksdbmanager.utils.PropertyDescriptorUtils.*;
+
+@InputRequirement(InputRequirement.Requirement.INPUT_ALLOWED)
+@DefaultSchedule(strategy = SchedulingStrategy.TIMER_DRIVEN, period = "1 day")
+@Tags({"rocksdb", "compression", "zstd", "dictionary"})
+@CapabilityDescription("Processor that estimates how much the data of a RocksDb opened by a RocksDbService would shrink with " +
+        "each compression, to choose the Compression of the service. It reads a sample of the entries spread over the " +
+        "database and writes it to a temporary SST file with no compression, Snappy, LZ4, ZSTD and ZSTD with a dictionary " +
+        "trained on the sample. The database is only read, so the service can be opened in any mode.")
+@SeeAlso({RocksDbService.class, CompactRocksDb.class})
+@WritesAttributes({@WritesAttribute(attribute = "rocksdb.compression.sample.entries",
+        description = "Number of entries of the sample."),
+        @WritesAttribute(attribute = "rocksdb.compression.sample.bytes",
+                description = "Size of the keys and values of the sample, as stored."),
+        @WritesAttribute(attribute = "rocksdb.compression.*.bytes",
+                description = "Size of the SST file of the sample with each compression: none, snappy, lz4, zstd and zstd.dictionary."),
+        @WritesAttribute(attribute = "rocksdb.compression.*.ratio",
+                description = "Size of the uncompressed SST file of the sample divided by the size with each compression."),
+        @WritesAttribute(attribute = "rocksdb.compression.error",
+                description = "contains the error occurred when estimating the compression")})
+public class EstimateCompressionRocksDb extends AbstractProcessor {
+
+    public static final PropertyDescriptor ROCKSDB_SERVICE = new PropertyDescriptor
+            .Builder().name("rocksdb-service")
+            .displayName("RocksDB Service")
+            .description("Designed Rocksdb to utilize")
+            .required(true)
+            .identifiesControllerService(RocksDbRocksLookupService.class)
+            .build();
+
+    public static final PropertyDescriptor SAMPLE_SIZE = new PropertyDescriptor
+            .Builder().name("sample-size")
+            .displayName("Sample Size")
+            .description("Maximum number of entries of the sample, read in runs of consecutive keys spread over the database.")
+            .required(true)
+            .defaultValue("10000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor ZSTD_MAX_DICTIONARY_SIZE = new PropertyDescriptor
+            .Builder().name("zstd-max-dictionary-size")
+            .displayName("ZSTD Max Dictionary Size")
+            .description("Size of the ZSTD dictionary trained on the sample. If not set the dictionary compression is not estimated. " +
+                    "The dictionary is stored in the SST file, once per file, so the sample should be much larger than the " +
+                    "dictionary for the estimate to match the files of the database, tens of megabytes each.")
+            .required(false)
+            .defaultValue("16 KB")
+            .addValidator(StandardValidators.createDataSizeBoundsValidator(1, Integer.MAX_VALUE))
+            .build();
+
+    public static final PropertyDescriptor ZSTD_MAX_TRAIN_SIZE = new PropertyDescriptor
+            .Builder().name("zstd-max-train-size")
+            .displayName("ZSTD Max Train Size")
+            .description("Maximum size of the sample the dictionary is trained on. If not set it is 100 times the ZSTD Max Dictionary Size.")
+            .required(false)
+            .addValidator(StandardValidators.createDataSizeBoundsValidator(1, Integer.MAX_VALUE))
+            .dependsOn(ZSTD_MAX_DICTIONARY_SIZE)
+            .build();
+
+    private static final String ATTRIBUTE_PREFIX = "rocksdb.compression.";
+
+    private final Set<Relationship> relationships = Set.of(REL_SUCCESS,
+            REL_FAILURE);
+
+    protected volatile RocksDbRocksLookupService lookupService;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        final List<PropertyDescriptor> properties = new ArrayList<>();
+        properties.add(ROCKSDB_SERVICE);
+        properties.add(SAMPLE_SIZE);
+        properties.add(ZSTD_MAX_DICTIONARY_SIZE);
+        properties.add(ZSTD_MAX_TRAIN_SIZE);
+        return properties;
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        this.lookupService = context.getProperty(ROCKSDB_SERVICE)
+                .asControllerService(RocksDbRocksLookupService.class);
+    }
+
+    @Override
+    public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
+        FlowFile flowFile = session.get();
+        if (flowFile == null && context.hasIncomingConnection()) {
+            return;
+        }
+
+        int maxDictionarySize = 0;
+        int maxTrainSize = 0;
+        if (context.getProperty(ZSTD_MAX_DICTIONARY_SIZE).isSet()) {
+            maxDictionarySize = context.getProperty(ZSTD_MAX_DICTIONARY_SIZE).asDataSize(DataUnit.B).intValue();
+            maxTrainSize = context.getProperty(ZSTD_MAX_TRAIN_SIZE).isSet()
+                    ? context.getProperty(ZSTD_MAX_TRAIN_SIZE).asDataSize(DataUnit.B).intValue()
+                    : (int) Math.min(Integer.MAX_VALUE, 100L * maxDictionarySize);
+        }
+
+        Map<String, Long> sizes;
+        try {
+            sizes = lookupService.estimateCompression(context.getProperty(SAMPLE_SIZE).asInteger(), maxDictionarySize, maxTrainSize);
+        } catch (LookupFailureException e) {
+            if (flowFile == null) {
+                throw new ProcessException(e);
+            }
+            flowFile = session.putAttribute(flowFile, "rocksdb.compression.error", String.valueOf(e.getCause()));
+            session.transfer(flowFile, REL_FAILURE);
+            return;
+        }
+
+        Map<String, String> attributes = new HashMap<>();
+        Long uncompressed = sizes.get(CompressionEstimator.NONE);
+        for (Map.Entry<String, Long> size : sizes.entrySet()) {
+            if (CompressionEstimator.SAMPLE_ENTRIES.equals(size.getKey()) || CompressionEstimator.SAMPLE_BYTES.equals(size.getKey())) {
+                attributes.put(ATTRIBUTE_PREFIX + size.getKey(), String.valueOf(size.getValue()));
+                continue;
+            }
+            attributes.put(ATTRIBUTE_PREFIX + size.getKey() + ".bytes", String.valueOf(size.getValue()));
+            if (uncompressed != null && size.getValue() > 0) {
+                attributes.put(ATTRIBUTE_PREFIX + size.getKey() + ".ratio",
+                        String.format(Locale.ROOT, "%.2f", (double) uncompressed / size.getValue()));
+            }
+        }
+
+        if (flowFile == null) {
+            flowFile = session.create();
+        }
+        flowFile = session.putAllAttributes(flowFile, attributes);
+        session.transfer(flowFile, REL_SUCCESS);
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.org.nifi.rocksdbmanager.processors;
+
+import it.org.nifi.rocksdbmanager.exception.LookupFailureException;
+import it.org.nifi.rocksdbmanager.services.RocksDbService;
+import it.org.nifi.rocksdbmanager.utils.RocksDbRocksLookupService;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.TriggerSerially;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.configuration.DefaultSchedule;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.AbstractSessionFactoryProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessSessionFactory;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.scheduling.SchedulingStrategy;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static it.org.nifi.rocksdbmanager.utils.PropertyDescriptorUtils.*;
+
+@TriggerSerially
+@InputRequirement(InputRequirement.Requirement.INPUT_FORBIDDEN)
+@DefaultSchedule(strategy = SchedulingStrategy.TIMER_DRIVEN, period = "1 day")
+@Tags({"rocksdb", "export", "dump", "record"})
+@CapabilityDescription("Exports all the entries of a RocksDb opened by a RocksDbService as records with a key and a value field. " +
+        "The key space is split into ranges holding about the same amount of data, from the key ranges of the live SST files, " +
+        "and the ranges are scanned in parallel, each one into its own FlowFile. All the ranges read the same snapshot of the database, " +
+        "and are transferred together once they are all scanned: if a range fails, none of them is transferred.")
+@SeeAlso({RocksDbReader.class, RocksDbService.class})
+@WritesAttributes({@WritesAttribute(attribute = "rocksdb.export.range.start",
+        description = "First key of the exported range, absent for the first range."),
+        @WritesAttribute(attribute = "rocksdb.export.range.end",
+                description = "Key where the exported range ends, excluded, absent for the last range."),
+        @WritesAttribute(attribute = "rocksdb.export.range.index",
+                description = "Position of the range in key order, starting from 0."),
+        @WritesAttribute(attribute = "rocksdb.export.range.count",
+                description = "Number of ranges of the export."),
+        @WritesAttribute(attribute = "record.count",
+                description = "Number of records of the range."),
+        @WritesAttribute(attribute = "mime.type",
+                description = "MIME type of the Record Writer.")})
+public class ExportRocksDb extends AbstractSessionFactoryProcessor {
+
+    public static final PropertyDescriptor ROCKSDB_SERVICE = new PropertyDescriptor
+            .Builder().name("rocksdb-service")
+            .displayName("RocksDB Service")
+            .description("Designed Rocksdb to utilize")
+            .required(true)
+            .identifiesControllerService(RocksDbRocksLookupService.class)
+            .build();
+
+    public static final PropertyDescriptor RECORD_WRITER = new PropertyDescriptor
+            .Builder().name("record-writer")
+            .displayName("Record Writer")
+            .description("Record Writer used to write the entries, as records with a \"key\" and a \"value\" string field.")
+            .required(true)
+            .identifiesControllerService(RecordSetWriterFactory.class)
+            .build();
+
+    public static final PropertyDescriptor MAX_RANGES = new PropertyDescriptor
+            .Builder().name("max-ranges")
+            .displayName("Maximum Number of Ranges")
+            .description("Maximum number of key ranges, and so of FlowFiles, the database is split into. " +
+                    "A database with few SST files is split into fewer ranges.")
+            .required(true)
+            .defaultValue("16")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor CONCURRENT_SCANS = new PropertyDescriptor
+            .Builder().name("concurrent-scans")
+            .displayName("Concurrent Scans")
+            .description("Number of ranges scanned at the same time, each one with its own iterator.")
+            .required(true)
+            .defaultValue("4")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    private static final RecordSchema ENTRY_SCHEMA = new SimpleRecordSchema(List.of(
+            new RecordField("key", RecordFieldType.STRING.getDataType()),
+            new RecordField("value", RecordFieldType.STRING.getDataType())));
+
+    private final Set<Relationship> relationships = Set.of(REL_SUCCESS);
+
+    protected volatile RocksDbRocksLookupService lookupService;
+    private volatile ExecutorService scanExecutor;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        final List<PropertyDescriptor> properties = new ArrayList<>();
+        properties.add(ROCKSDB_SERVICE);
+        properties.add(RECORD_WRITER);
+        properties.add(MAX_RANGES);
+        properties.add(CONCURRENT_SCANS);
+        return properties;
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        this.lookupService = context.getProperty(ROCKSDB_SERVICE)
+                .asControllerService(RocksDbRocksLookupService.class);
+        this.scanExecutor = Executors.newFixedThreadPool(context.getProperty(CONCURRENT_SCANS).asInteger());
+    }
+
+    @OnStopped
+    public void onStopped() {
+        if (scanExecutor != null) {
+            scanExecutor.shutdownNow();
+            scanExecutor = null;
+        }
+    }
+
+    @Override
+    public void onTrigger(ProcessContext context, ProcessSessionFactory sessionFactory) throws ProcessException {
+        RecordSetWriterFactory writerFactory = context.getProperty(RECORD_WRITER).asControllerService(RecordSetWriterFactory.class);
+
+        String snapshotId;
+        List<Map.Entry<String, String>> ranges;
+        List<Future<ProcessSession>> scans = new ArrayList<>();
+        List<ProcessSession> sessions = new ArrayList<>();
+        try {
+            snapshotId = lookupService.acquireSnapshot();
+        } catch (LookupFailureException e) {
+            throw new ProcessException(e);
+        }
+        try {
+            ranges = lookupService.splitKeyRanges(context.getProperty(MAX_RANGES).asInteger());
+
+            // each range is written by its own session, the sessions are committed once all the ranges are scanned
+            for (int i = 0; i < ranges.size(); i++) {
+                int index = i;
+                int count = ranges.size();
+                scans.add(scanExecutor.submit(() -> exportRange(sessionFactory.createSession(), writerFactory,
+                        ranges.get(index), index, count, snapshotId)));
+            }
+            ProcessException failure = null;
+            for (Future<ProcessSession> scan : scans) {
+                try {
+                    sessions.add(scan.get());
+                } catch (ExecutionException e) {
+                    failure = new ProcessException("Failed to export a key range", e.getCause());
+                }
+            }
+            if (failure != null) {
+                sessions.forEach(ProcessSession::rollback);
+                throw failure;
+            }
+            sessions.forEach(ProcessSession::commitAsync);
+        } catch (LookupFailureException e) {
+            throw new ProcessException(e);
+        } catch (InterruptedException e) {
+            scans.forEach(scan -> scan.cancel(true));
+            sessions.forEach(ProcessSession::rollback);
+            Thread.currentThread().interrupt();
+            throw new ProcessException(e);
+        } finally {
+            lookupService.releaseSnapshot(snapshotId);
+        }
+    }
+
+    private ProcessSession exportRange(ProcessSession session, RecordSetWriterFactory writerFactory, Map.Entry<String, String> range,
+                             int index, int count, String snapshotId) {
+        FlowFile flowFile = session.create();
+        try {
+            Map<String, String> attributes = new HashMap<>();
+            flowFile = session.write(flowFile, out -> {
+                try (RecordSetWriter writer = writerFactory.createWriter(getLogger(),
+                        writerFactory.getSchema(Collections.emptyMap(), ENTRY_SCHEMA), out, Collections.emptyMap())) {
+                    writer.beginRecordSet();
+                    lookupService.scanRange(range.getKey(), range.getValue(), snapshotId,
+                            (key, value) -> writer.write(new MapRecord(ENTRY_SCHEMA, Map.of("key", key, "value", value))));
+                    WriteResult result = writer.finishRecordSet();
+                    attributes.putAll(result.getAttributes());
+                    attributes.put("record.count", String.valueOf(result.getRecordCount()));
+                    attributes.put(CoreAttributes.MIME_TYPE.key(), writer.getMimeType());
+                } catch (LookupFailureException | SchemaNotFoundException e) {
+                    throw new IOException(e);
+                }
+            });
+            if (range.getKey() != null) {
+                attributes.put("rocksdb.export.range.start", range.getKey());
+            }
+            if (range.getValue() != null) {
+                attributes.put("rocksdb.export.range.end", range.getValue());
+            }
+            attributes.put("rocksdb.export.range.index", String.valueOf(index));
+            attributes.put("rocksdb.export.range.count", String.valueOf(count));
+            flowFile = session.putAllAttributes(flowFile, attributes);
+            session.transfer(flowFile, REL_SUCCESS);
+            return session;
+        } catch (RuntimeException e) {
+            getLogger().error("Failed to export range {} of {}", index, count, e);
+            session.rollback();
+            throw e;
+        }
+    }
+}
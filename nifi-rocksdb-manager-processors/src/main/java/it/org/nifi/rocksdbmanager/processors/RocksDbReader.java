@@ -17,6 +17,8 @@
 
 package it.org.nifi.rocksdbmanager.processors;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import it.org.nifi.rocksdbmanager.exception.LookupFailureException;
 import it.org.nifi.rocksdbmanager.services.RocksDbService;
 import it.org.nifi.rocksdbmanager.utils.RocksDbRocksLookupService;
@@ -30,13 +32,20 @@ import org.apache.nifi.annotation.lifecycle.OnScheduled;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.processor.AbstractProcessor;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.Record;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 
@@ -48,7 +57,11 @@ import static it.org.nifi.rocksdbmanager.utils.PropertyDescriptorUtils.*;
 @SeeAlso({RocksDbReader.class, RocksDbService.class})
 @WritesAttributes({@WritesAttribute(attribute = "rocksdb.search.key",
         description = "Key found inside the RocksDb with given key."),
-        @WritesAttribute(attribute = "rocksdb.search.value", description = "Value found inside the RocksDb with given key.")})
+        @WritesAttribute(attribute = "rocksdb.search.found.key",
+                description = "Key of the first entry returned by the iterator search or the index lookup."),
+        @WritesAttribute(attribute = "rocksdb.search.value", description = "Value found inside the RocksDb with given key."),
+        @WritesAttribute(attribute = "rocksdb.latency.*",
+                description = "Latency breakdown of the Find search, when sampled by the service and Write Latency Attributes is true.")})
 public class RocksDbReader extends AbstractProcessor {
 
     public static final PropertyDescriptor ROCKSDB_SERVICE = new PropertyDescriptor
@@ -65,7 +78,7 @@ public class RocksDbReader extends AbstractProcessor {
             .description("The modality to search with.")
             .required(true)
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
-            .allowableValues(Set.of(FIND, ITERATOR))
+            .allowableValues(Set.of(FIND, ITERATOR, INDEX_LOOKUP))
             .build();
 
     public static final PropertyDescriptor KEY = new PropertyDescriptor
@@ -88,6 +101,40 @@ public class RocksDbReader extends AbstractProcessor {
             .dependsOn(SEARCH_TYPE, ITERATOR)
             .build();
 
+    public static final PropertyDescriptor INDEX_NAME = new PropertyDescriptor
+            .Builder().name("index-name")
+            .displayName("Index Name")
+            .description("Secondary index of the RocksDB Service to search. The key is the value of the indexed field " +
+                    "and the search returns the entries holding that value, in key order.")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .dependsOn(SEARCH_TYPE, INDEX_LOOKUP)
+            .build();
+
+    public static final PropertyDescriptor LIMIT = new PropertyDescriptor
+            .Builder().name("limit")
+            .displayName("Limit")
+            .description("Maximum number of entries returned by the iterator search, starting from the entry it lands on, " +
+                    "or by the index lookup. " +
+                    "With more than one entry the result is a JSON array of objects with \"key\" and \"value\" fields.")
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .dependsOn(SEARCH_TYPE, ITERATOR, INDEX_LOOKUP)
+            .build();
+
+    public static final PropertyDescriptor DIRECTION = new PropertyDescriptor
+            .Builder().name("direction")
+            .displayName("Direction")
+            .description("Direction in which the iterator search moves from the entry it lands on, " +
+                    "towards greater keys for \"" + DIRECTION_FORWARD + "\" or smaller keys for \"" + DIRECTION_BACKWARD + "\".")
+            .required(true)
+            .defaultValue(DIRECTION_FORWARD)
+            .allowableValues(Set.of(DIRECTION_FORWARD, DIRECTION_BACKWARD))
+            .dependsOn(SEARCH_TYPE, ITERATOR)
+            .build();
+
     public static final PropertyDescriptor RESULT_DESTINATION = new PropertyDescriptor
             .Builder().name("result-destination")
             .displayName("Result Destination")
@@ -97,9 +144,55 @@ public class RocksDbReader extends AbstractProcessor {
             .allowableValues(Set.of(FLOWFILE_ATTRIBUTE, FLOWFILE_CONTENT))
             .build();
 
+    public static final PropertyDescriptor RECORD_WRITER = new PropertyDescriptor
+            .Builder().name("record-writer")
+            .displayName("Record Writer")
+            .description("When set, the value found is read as a record, from a service storing the values as records, " +
+                    "and written to the FlowFile content with this Record Writer instead of as JSON.")
+            .required(false)
+            .identifiesControllerService(RecordSetWriterFactory.class)
+            .dependsOn(SEARCH_TYPE, FIND)
+            .dependsOn(RESULT_DESTINATION, FLOWFILE_CONTENT)
+            .build();
+
+    public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor
+            .Builder().name("batch-size")
+            .displayName("Batch Size")
+            .description("Maximum number of FlowFiles looked up in a single execution. The Find searches of a batch are " +
+                    "run together, in parallel on the shards of a ShardedRocksDbService, unless the values are written " +
+                    "with a Record Writer or the Latency Attributes are written.")
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor USE_SNAPSHOT = new PropertyDescriptor
+            .Builder().name("use-snapshot")
+            .displayName("Use Snapshot")
+            .description("Reads all the FlowFiles of a batch from a snapshot of the RocksDb acquired when the batch starts, " +
+                    "so that they see the same data whatever is written meanwhile. The snapshot is released once the session is committed.")
+            .required(true)
+            .defaultValue("false")
+            .allowableValues("true", "false")
+            .build();
+
+    public static final PropertyDescriptor LATENCY_ATTRIBUTES = new PropertyDescriptor
+            .Builder().name("latency-attributes")
+            .displayName("Write Latency Attributes")
+            .description("Writes the latency breakdown of the Find searches sampled by the service, see its Latency Sample Rate, " +
+                    "as rocksdb.latency.* attributes: time waiting for the lock, in RocksDB and deserializing the value, " +
+                    "with the memtable, SST, block cache and bloom filter counters.")
+            .required(true)
+            .defaultValue("false")
+            .allowableValues("true", "false")
+            .dependsOn(SEARCH_TYPE, FIND)
+            .build();
+
     private final Set<Relationship> relationships = Set.of(REL_SUCCESS,
             REL_FAILURE, REL_UNMATCHED);
 
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
     protected volatile RocksDbRocksLookupService lookupService;
 
     @Override
@@ -121,57 +214,224 @@ public class RocksDbReader extends AbstractProcessor {
         properties.add(SEARCH_TYPE);
         properties.add(KEY);
         properties.add(SEEK_FOR);
+        properties.add(INDEX_NAME);
+        properties.add(LIMIT);
+        properties.add(DIRECTION);
+        properties.add(RECORD_WRITER);
+        properties.add(BATCH_SIZE);
+        properties.add(USE_SNAPSHOT);
+        properties.add(LATENCY_ATTRIBUTES);
         return properties;
     }
 
     @Override
     public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
-        FlowFile flowFile = session.get();
-        if (flowFile == null) {
+        List<FlowFile> flowFiles = session.get(context.getProperty(BATCH_SIZE).asInteger());
+        if (flowFiles.isEmpty()) {
             return;
         }
 
+        String snapshotId = null;
+        if (context.getProperty(USE_SNAPSHOT).asBoolean()) {
+            try {
+                snapshotId = lookupService.acquireSnapshot();
+            } catch (LookupFailureException e) {
+                session.transfer(flowFiles, REL_FAILURE);
+                throw new RuntimeException(e);
+            }
+        }
+
+        try {
+            if (flowFiles.size() > 1 && isBatchedFind(context)) {
+                findAll(context, session, flowFiles, snapshotId);
+            } else {
+                for (FlowFile flowFile : flowFiles) {
+                    lookup(context, session, flowFile, snapshotId);
+                }
+            }
+        } catch (RuntimeException e) {
+            if (snapshotId != null) {
+                lookupService.releaseSnapshot(snapshotId);
+            }
+            throw e;
+        }
+
+        if (snapshotId != null) {
+            final String releasedSnapshotId = snapshotId;
+            session.commitAsync(() -> lookupService.releaseSnapshot(releasedSnapshotId),
+                    failure -> lookupService.releaseSnapshot(releasedSnapshotId));
+        }
+    }
+
+    private void lookup(ProcessContext context, ProcessSession session, FlowFile flowFile, String snapshotId) {
         String key = context.getProperty(KEY).evaluateAttributeExpressions(flowFile).getValue();
         String searchMethod = context.getProperty(SEARCH_TYPE).getValue();
         String resultDestination = context.getProperty(RESULT_DESTINATION).getValue();
-
+        if (FIND.equals(searchMethod) && FLOWFILE_CONTENT.equals(resultDestination) && context.getProperty(RECORD_WRITER).isSet()) {
+            lookupRecord(context, session, flowFile, key, snapshotId);
+            return;
+        }
 
         Optional<?> lookupResultOptional;
+        String foundKey = null;
         try {
-            HashMap<String, Object> coordinates = new HashMap<>() {{
-                put("key", key);
-                put("searchMethod", searchMethod);
-            }};
-            if (ITERATOR.equals(searchMethod)) {
-                coordinates.put("seekFor", context.getProperty(SEEK_FOR).getValue());
+            Map<String, Object> coordinates = coordinates(key, searchMethod, snapshotId);
+            if (ITERATOR.equals(searchMethod) || INDEX_LOOKUP.equals(searchMethod)) {
+                int limit = context.getProperty(LIMIT).evaluateAttributeExpressions(flowFile).asInteger();
+                coordinates.put("limit", limit);
+                if (ITERATOR.equals(searchMethod)) {
+                    coordinates.put("seekFor", context.getProperty(SEEK_FOR).getValue());
+                    coordinates.put("direction", context.getProperty(DIRECTION).getValue());
+                } else {
+                    coordinates.put("index", context.getProperty(INDEX_NAME).getValue());
+                }
 
+                List<Map.Entry<String, String>> entries = lookupService.scan(coordinates);
+                foundKey = entries.isEmpty() ? null : entries.get(0).getKey();
+                lookupResultOptional = entries.isEmpty() ? Optional.empty()
+                        : Optional.of(limit == 1 ? entries.get(0).getValue() : toJson(entries));
+            } else {
+                lookupResultOptional = lookupService.search(coordinates);
+                flowFile = putLatencyAttributes(context, session, flowFile);
             }
-            lookupResultOptional = lookupService.search(coordinates);
-        } catch (LookupFailureException e) {
+        } catch (LookupFailureException | JsonProcessingException e) {
             session.transfer(flowFile, REL_FAILURE);
             throw new RuntimeException(e);
         }
+        transferResult(session, flowFile, resultDestination, key, foundKey, lookupResultOptional);
+    }
+
+    /**
+     * The Find searches of a batch are run with a single call to the service, which can spread them over its shards,
+     * as long as every FlowFile does not need its own call: the records are searched one by one and the latency
+     * breakdown is taken from the thread that ran the search.
+     */
+    private boolean isBatchedFind(ProcessContext context) {
+        return FIND.equals(context.getProperty(SEARCH_TYPE).getValue())
+                && !(FLOWFILE_CONTENT.equals(context.getProperty(RESULT_DESTINATION).getValue()) && context.getProperty(RECORD_WRITER).isSet())
+                && !context.getProperty(LATENCY_ATTRIBUTES).asBoolean();
+    }
+
+    private void findAll(ProcessContext context, ProcessSession session, List<FlowFile> flowFiles, String snapshotId) {
+        List<String> keys = new ArrayList<>();
+        List<Map<String, Object>> coordinatesList = new ArrayList<>();
+        for (FlowFile flowFile : flowFiles) {
+            String key = context.getProperty(KEY).evaluateAttributeExpressions(flowFile).getValue();
+            keys.add(key);
+            coordinatesList.add(coordinates(key, FIND, snapshotId));
+        }
+        List<Optional<String>> results;
+        try {
+            results = lookupService.searchAll(coordinatesList);
+        } catch (LookupFailureException e) {
+            session.transfer(flowFiles, REL_FAILURE);
+            throw new RuntimeException(e);
+        }
+        String resultDestination = context.getProperty(RESULT_DESTINATION).getValue();
+        for (int i = 0; i < flowFiles.size(); i++) {
+            transferResult(session, flowFiles.get(i), resultDestination, keys.get(i), null, results.get(i));
+        }
+    }
+
+    private static Map<String, Object> coordinates(String key, String searchMethod, String snapshotId) {
+        Map<String, Object> coordinates = new HashMap<>();
+        coordinates.put("key", key);
+        coordinates.put("searchMethod", searchMethod);
+        if (snapshotId != null) {
+            coordinates.put("snapshot", snapshotId);
+        }
+        return coordinates;
+    }
+
+    private void transferResult(ProcessSession session, FlowFile flowFile, String resultDestination, String key,
+                                String foundKey, Optional<?> lookupResultOptional) {
         if (lookupResultOptional.isEmpty()) {
             session.transfer(flowFile, REL_UNMATCHED);
             return;
         }
-
+        if (foundKey != null) {
+            flowFile = session.putAttribute(flowFile, "rocksdb.search.found.key", foundKey);
+        }
 
         String lookupResult = (String) lookupResultOptional.get();
 
         if (FLOWFILE_CONTENT.equals(resultDestination)) {
 
-            session.putAttribute(flowFile, "rocksdb.search.key", key);
-            session.write(flowFile, outputStream -> {
+            flowFile = session.putAttribute(flowFile, "rocksdb.search.key", key);
+            flowFile = session.write(flowFile, outputStream -> {
                 outputStream.write(lookupResult.getBytes(StandardCharsets.UTF_8));
             });
             session.transfer(flowFile, REL_SUCCESS);
 
         } else if (FLOWFILE_ATTRIBUTE.equals(resultDestination)) {
-            session.putAttribute(flowFile, "rocksdb.search.key", key);
-            session.putAttribute(flowFile, "rocksdb.search.value", lookupResult);
+            flowFile = session.putAttribute(flowFile, "rocksdb.search.key", key);
+            flowFile = session.putAttribute(flowFile, "rocksdb.search.value", lookupResult);
             session.transfer(flowFile, REL_SUCCESS);
         }
     }
 
+    private void lookupRecord(ProcessContext context, ProcessSession session, FlowFile flowFile, String key, String snapshotId) {
+        Map<String, Object> coordinates = new HashMap<>();
+        coordinates.put("key", key);
+        if (snapshotId != null) {
+            coordinates.put("snapshot", snapshotId);
+        }
+        Optional<Record> record;
+        try {
+            record = lookupService.searchRecord(coordinates);
+            flowFile = putLatencyAttributes(context, session, flowFile);
+        } catch (LookupFailureException e) {
+            session.transfer(flowFile, REL_FAILURE);
+            throw new RuntimeException(e);
+        }
+        if (record.isEmpty()) {
+            session.transfer(flowFile, REL_UNMATCHED);
+            return;
+        }
+
+        RecordSetWriterFactory writerFactory = context.getProperty(RECORD_WRITER).asControllerService(RecordSetWriterFactory.class);
+        Map<String, String> attributes = new HashMap<>();
+        FlowFile original = flowFile;
+        try {
+            flowFile = session.write(flowFile, out -> {
+                try (RecordSetWriter writer = writerFactory.createWriter(getLogger(),
+                        writerFactory.getSchema(original.getAttributes(), record.get().getSchema()), out, original)) {
+                    writer.beginRecordSet();
+                    writer.write(record.get());
+                    WriteResult result = writer.finishRecordSet();
+                    attributes.putAll(result.getAttributes());
+                    attributes.put("record.count", String.valueOf(result.getRecordCount()));
+                    attributes.put(CoreAttributes.MIME_TYPE.key(), writer.getMimeType());
+                } catch (SchemaNotFoundException e) {
+                    throw new IOException(e);
+                }
+            });
+        } catch (ProcessException e) {
+            session.transfer(flowFile, REL_FAILURE);
+            throw new RuntimeException(e);
+        }
+        attributes.put("rocksdb.search.key", key);
+        flowFile = session.putAllAttributes(flowFile, attributes);
+        session.transfer(flowFile, REL_SUCCESS);
+    }
+
+    private FlowFile putLatencyAttributes(ProcessContext context, ProcessSession session, FlowFile flowFile) {
+        if (!context.getProperty(LATENCY_ATTRIBUTES).asBoolean()) {
+            return flowFile;
+        }
+        Map<String, String> latency = lookupService.takeLatencyAttributes();
+        return latency.isEmpty() ? flowFile : session.putAllAttributes(flowFile, latency);
+    }
+
+    private static String toJson(List<Map.Entry<String, String>> entries) throws JsonProcessingException {
+        List<Map<String, String>> array = new ArrayList<>();
+        for (Map.Entry<String, String> entry : entries) {
+            Map<String, String> object = new LinkedHashMap<>();
+            object.put("key", entry.getKey());
+            object.put("value", entry.getValue());
+            array.add(object);
+        }
+        return OBJECT_MAPPER.writeValueAsString(array);
+    }
+
 }
@@ -17,6 +17,7 @@
 package it.org.nifi.rocksdbmanager.processors;
 
 import it.org.nifi.rocksdbmanager.exception.LookupFailureException;
+import it.org.nifi.rocksdbmanager.exception.WriteStallException;
 import it.org.nifi.rocksdbmanager.services.RocksDbService;
 import it.org.nifi.rocksdbmanager.utils.RocksDbRocksLookupService;
 import org.apache.nifi.annotation.behavior.InputRequirement;
@@ -48,12 +49,15 @@ import static it.org.nifi.rocksdbmanager.utils.PropertyDescriptorUtils.*;
 
 @InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
 @Tags({"rocksdb", "writer"})
-@CapabilityDescription("Processor that allows user to write custom key/values inside a RocksDb using a RocksDbService.")
+@CapabilityDescription("Processor that allows user to write custom key/values inside a RocksDb using a RocksDbService. " +
+        "While the service reports that RocksDB stalls the writes the processor yields, leaving the FlowFiles queued.")
 @SeeAlso({RocksDbReader.class, RocksDbService.class})
 @WritesAttributes({@WritesAttribute(attribute = "rocksdb.write.success",
         description = "true or false, determines if the writing has been successful"),
         @WritesAttribute(attribute = "rocksdb.write.error",
-                description = "contains the error occurred when writing to RocksDB")})
+                description = "contains the error occurred when writing to RocksDB"),
+        @WritesAttribute(attribute = "rocksdb.latency.*",
+                description = "Latency breakdown of the write of the batch, when sampled by the service and Write Latency Attributes is true.")})
 public class RocksDbWriter extends AbstractProcessor {
 
     public static final PropertyDescriptor ROCKSDB_SERVICE = new PropertyDescriptor
@@ -92,6 +96,39 @@ public class RocksDbWriter extends AbstractProcessor {
             .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
             .build();
 
+    public static final PropertyDescriptor WRITE_MODE = new PropertyDescriptor
+            .Builder().name("write-mode")
+            .displayName("Write Mode")
+            .description("\"" + WRITE_MODE_PUT + "\" replaces the value of the key. \"" + WRITE_MODE_INCREMENT +
+                    "\" adds the value, an integer, to the counter of the key and \"" + WRITE_MODE_APPEND +
+                    "\" appends the value to the one of the key, without reading it. They require the \"" + MERGE_UINT64_ADD +
+                    "\" and \"" + MERGE_STRING_APPEND + "\" merge operators on the service respectively.")
+            .required(true)
+            .defaultValue(WRITE_MODE_PUT)
+            .allowableValues(Set.of(WRITE_MODE_PUT, WRITE_MODE_INCREMENT, WRITE_MODE_APPEND))
+            .build();
+
+    public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor
+            .Builder().name("batch-size")
+            .displayName("Batch Size")
+            .description("Maximum number of FlowFiles whose values are written to the RocksDb in a single batch. " +
+                    "The batch is committed, and synced when the service requires it, as a whole.")
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor LATENCY_ATTRIBUTES = new PropertyDescriptor
+            .Builder().name("latency-attributes")
+            .displayName("Write Latency Attributes")
+            .description("Writes the latency breakdown of the batch writes sampled by the service, see its Latency Sample Rate, " +
+                    "as rocksdb.latency.* attributes on all the FlowFiles of the batch: time waiting for the lock, in RocksDB " +
+                    "and serializing the values, with the WAL, memtable and write delay times.")
+            .required(true)
+            .defaultValue("false")
+            .allowableValues("true", "false")
+            .build();
+
     private final Set<Relationship> relationships = Set.of(REL_SUCCESS,
             REL_FAILURE);
 
@@ -104,6 +141,9 @@ public class RocksDbWriter extends AbstractProcessor {
         properties.add(KEY);
         properties.add(SAVE_FROM);
         properties.add(VALUE);
+        properties.add(WRITE_MODE);
+        properties.add(BATCH_SIZE);
+        properties.add(LATENCY_ATTRIBUTES);
         return properties;
     }
 
@@ -120,45 +160,73 @@ public class RocksDbWriter extends AbstractProcessor {
 
     @Override
     public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
-        FlowFile flowFile = session.get();
-        if (flowFile == null) {
+        if (lookupService.isWriteStalled()) {
+            // the FlowFiles stay queued, so that the stall turns into backpressure instead of blocked threads
+            context.yield();
+            return;
+        }
+        List<FlowFile> flowFiles = session.get(context.getProperty(BATCH_SIZE).asInteger());
+        if (flowFiles.isEmpty()) {
             return;
         }
-
-        String key = context.getProperty(KEY).evaluateAttributeExpressions(flowFile).getValue();
 
         String saveFrom = context.getProperty(SAVE_FROM).getValue();
-        String value = "";
-
-        if (FLOWFILE_ATTRIBUTE.equals(saveFrom)) {
-            value = context.getProperty(VALUE).evaluateAttributeExpressions(flowFile).getValue();
-        } else if (FLOWFILE_CONTENT.equals(saveFrom)) {
-            try (InputStream is = session.read(flowFile)) {
-                value = new String(is.readAllBytes(), StandardCharsets.UTF_8);
-            } catch (IOException e) {
-                session.transfer(flowFile, REL_FAILURE);
-                throw new RuntimeException(e);
+        String writeMode = context.getProperty(WRITE_MODE).getValue();
+        List<FlowFile> toWrite = new ArrayList<>();
+        List<Map<String, Object>> coordinatesList = new ArrayList<>();
+
+        for (FlowFile flowFile : flowFiles) {
+            String key = context.getProperty(KEY).evaluateAttributeExpressions(flowFile).getValue();
+            String value = "";
+
+            if (FLOWFILE_ATTRIBUTE.equals(saveFrom)) {
+                value = context.getProperty(VALUE).evaluateAttributeExpressions(flowFile).getValue();
+            } else if (FLOWFILE_CONTENT.equals(saveFrom)) {
+                try (InputStream is = session.read(flowFile)) {
+                    value = new String(is.readAllBytes(), StandardCharsets.UTF_8);
+                } catch (IOException e) {
+                    session.transfer(flowFile, REL_FAILURE);
+                    throw new RuntimeException(e);
+                }
+            }
+            if (value == null || value.isBlank()) {
+                session.transfer(flowFile, REL_UNMATCHED);
+                continue;
             }
+            toWrite.add(flowFile);
+            coordinatesList.add(Map.of(
+                    "key", key,
+                    "value", value,
+                    "writeMode", writeMode
+            ));
         }
-        if (value == null || value.isBlank()) {
-            session.transfer(flowFile, REL_UNMATCHED);
+        if (toWrite.isEmpty()) {
             return;
         }
 
 
         try {
-            lookupService.write(Map.of(
-                    "key", key,
-                    "value", value
-            ));
+            lookupService.writeAll(coordinatesList);
+        } catch (WriteStallException e) {
+            getLogger().debug("RocksDB writes are stalled, the batch is retried later", e);
+            session.rollback();
+            context.yield();
+            return;
         } catch (LookupFailureException e) {
-            session.transfer(flowFile, REL_FAILURE);
+            session.transfer(toWrite, REL_FAILURE);
             throw new RuntimeException(e);
         }
 
 
-        session.putAttribute(flowFile, "rocksdb.write.success", "true");
-        session.transfer(flowFile, REL_SUCCESS);
+        Map<String, String> latency = context.getProperty(LATENCY_ATTRIBUTES).asBoolean()
+                ? lookupService.takeLatencyAttributes() : Map.of();
+        for (FlowFile flowFile : toWrite) {
+            flowFile = session.putAttribute(flowFile, "rocksdb.write.success", "true");
+            if (!latency.isEmpty()) {
+                flowFile = session.putAllAttributes(flowFile, latency);
+            }
+            session.transfer(flowFile, REL_SUCCESS);
+        }
 
 
     }
@@ -0,0 +1,631 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.org.nifi.rocksdbmanager.services;
+
+import it.org.nifi.rocksdbmanager.utils.LatencyTrace;
+import it.org.nifi.rocksdbmanager.utils.RocksDbUtils;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.expression.AttributeExpression;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.rocksdb.DbPath;
+import org.rocksdb.RocksDBException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static it.org.nifi.rocksdbmanager.utils.PropertyDescriptorUtils.*;
+
+/**
+ * Common configuration and lifecycle of the services that open a RocksDb.
+ */
+public abstract class AbstractRocksDbService extends AbstractControllerService {
+
+    public static final PropertyDescriptor DATABASE_PATH = new PropertyDescriptor.Builder()
+            .name("database-path")
+            .displayName("Database Path")
+            .description("The path of the rocksdb to open and utilize.")
+            .required(true)
+            .addValidator(StandardValidators.DirectoryExistsValidator.VALID)
+            .build();
+
+    public static final PropertyDescriptor DATA_PATHS = new PropertyDescriptor.Builder()
+            .name("data-paths")
+            .displayName("Data Paths")
+            .description("Comma separated directories of the SST files, each one with its target size, e.g. " +
+                    "\"/nvme/rocksdb:100 GB,/hdd/rocksdb:3 TB\". The levels are placed in the first directory until their " +
+                    "sizes, given by the max bytes for level base and multiplier options, exceed its target, then in the following ones: " +
+                    "list the fast disks first so that they hold the recent and most read levels. The last directory receives " +
+                    "the data exceeding all the targets. If not set the files are kept in the database directory. " +
+                    "A database must always be opened with the directories it has been written with.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor WAL_DIRECTORY = new PropertyDescriptor.Builder()
+            .name("wal-directory")
+            .displayName("WAL Directory")
+            .description("Directory of the write ahead log, e.g. on a dedicated disk. If not set the log is kept in the " +
+                    "database directory. A database must always be opened with the directory it has been written with, " +
+                    "so that the writes not yet flushed are recovered.")
+            .required(false)
+            .addValidator(StandardValidators.DirectoryExistsValidator.VALID)
+            .build();
+
+    public static final PropertyDescriptor OPEN_MODE = new PropertyDescriptor.Builder()
+            .name("open-mode")
+            .displayName("Open Mode")
+            .description("Mode to open RocksDB. Choosing \"".concat(READONLY).concat("\" allows just reads on the Rocksdb." +
+                    "\"".concat(READANDWRITE).concat("\" mode allows read and writes inside the database.")))
+            .required(true)
+            .defaultValue(READANDWRITE)
+            .allowableValues(Set.of(READANDWRITE, READONLY))
+            .build();
+
+    public static final PropertyDescriptor TUNING_PROFILE = new PropertyDescriptor.Builder()
+            .name("tuning-profile")
+            .displayName("Tuning Profile")
+            .description("Set of RocksDB options applied before the dynamic properties. \"" + TUNING_SMALL + "\" minimizes memory usage, \"" +
+                    TUNING_POINT_LOOKUP + "\" adds bloom filters and hashed data block indexes for key lookups, \"" +
+                    TUNING_SCAN_HEAVY + "\" uses larger blocks and readahead for iterator searches. \"" + TUNING_AUTO +
+                    "\" estimates the size of a read only database from its metadata and chooses \"" + TUNING_SMALL + "\" below the " +
+                    "threshold, \"" + TUNING_POINT_LOOKUP + "\" otherwise; it applies no profile to a database opened for writing.")
+            .required(true)
+            .defaultValue(TUNING_AUTO)
+            .allowableValues(Set.of(TUNING_AUTO, TUNING_SMALL, TUNING_POINT_LOOKUP, TUNING_SCAN_HEAVY, TUNING_NONE))
+            .build();
+
+    public static final PropertyDescriptor SMALL_DATABASE_THRESHOLD = new PropertyDescriptor.Builder()
+            .name("small-database-threshold")
+            .displayName("Small Database Threshold")
+            .description("Estimated size of SST files under which a read only database is tuned as a small database.")
+            .required(true)
+            .defaultValue("150 MB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .dependsOn(TUNING_PROFILE, TUNING_AUTO)
+            .build();
+
+    public static final PropertyDescriptor BLOCK_CACHE_SIZE = new PropertyDescriptor.Builder()
+            .name("block-cache-size")
+            .displayName("Block Cache Size")
+            .description("Capacity of the LRU block cache used by the tuning profile.")
+            .required(true)
+            .defaultValue("128 MB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .dependsOn(TUNING_PROFILE, TUNING_AUTO, TUNING_SMALL, TUNING_POINT_LOOKUP, TUNING_SCAN_HEAVY)
+            .build();
+
+    public static final PropertyDescriptor OPTIONS_FILE = new PropertyDescriptor.Builder()
+            .name("options-file")
+            .displayName("Options File")
+            .description("Native RocksDB OPTIONS file, or directory of a database whose latest OPTIONS file is used, " +
+                    "to load the options from. When set, the Tuning Profile is not applied and the dynamic properties " +
+                    "are applied on top of the loaded options.")
+            .required(false)
+            .addValidator(StandardValidators.FILE_EXISTS_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor WRITE_DURABILITY = new PropertyDescriptor.Builder()
+            .name("write-durability")
+            .displayName("Write Durability")
+            .description("Durability of the writes. \"" + DURABILITY_NO_WAL + "\" skips the write ahead log, the memtables are " +
+                    "flushed when the service is disabled but writes not yet flushed are lost on a crash. \"" +
+                    DURABILITY_ASYNC_WAL + "\" writes to the log without syncing it, \"" + DURABILITY_SYNC +
+                    "\" syncs the log on every write or batch of writes. \"" + DURABILITY_MANUAL_WAL_FLUSH +
+                    "\" buffers the log in memory and flushes and syncs it periodically, grouping the writes of the interval.")
+            .required(true)
+            .defaultValue(DURABILITY_ASYNC_WAL)
+            .allowableValues(Set.of(DURABILITY_NO_WAL, DURABILITY_ASYNC_WAL, DURABILITY_SYNC, DURABILITY_MANUAL_WAL_FLUSH))
+            .dependsOn(OPEN_MODE, READANDWRITE)
+            .build();
+
+    public static final PropertyDescriptor WAL_FLUSH_INTERVAL = new PropertyDescriptor.Builder()
+            .name("wal-flush-interval")
+            .displayName("WAL Flush Interval")
+            .description("Interval between two flushes of the write ahead log.")
+            .required(true)
+            .defaultValue("100 millis")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .dependsOn(WRITE_DURABILITY, DURABILITY_MANUAL_WAL_FLUSH)
+            .build();
+
+    public static final PropertyDescriptor COMPACTION_RATE_LIMIT = new PropertyDescriptor.Builder()
+            .name("compaction-rate-limit")
+            .displayName("Compaction Rate Limit")
+            .description("Maximum bytes per second written by the background flushes and compactions, so that they do not " +
+                    "starve the other repositories sharing the disk. If not set the background I/O is not limited.")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .dependsOn(OPEN_MODE, READANDWRITE)
+            .build();
+
+    public static final PropertyDescriptor DISABLE_AUTO_COMPACTIONS = new PropertyDescriptor.Builder()
+            .name("disable-auto-compactions")
+            .displayName("Disable Auto Compactions")
+            .description("Disables the automatic compactions, e.g. during bulk loads. Compactions are then run only on " +
+                    "schedule or by the CompactRocksDb processor, which can also enable them again.")
+            .required(true)
+            .defaultValue("false")
+            .allowableValues("true", "false")
+            .dependsOn(OPEN_MODE, READANDWRITE)
+            .build();
+
+    public static final PropertyDescriptor COMPACTION_SCHEDULE = new PropertyDescriptor.Builder()
+            .name("compaction-schedule")
+            .displayName("Compaction Schedule")
+            .description("Interval between two full compactions of the database. If not set no compaction is scheduled.")
+            .required(false)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .dependsOn(OPEN_MODE, READANDWRITE)
+            .build();
+
+    public static final PropertyDescriptor COMPRESSION = new PropertyDescriptor.Builder()
+            .name("compression")
+            .displayName("Compression")
+            .description("Compression of the SST files written by the flushes and compactions, the files already written " +
+                    "keeping theirs until compacted. If not set the compression of the Options File or of the dynamic " +
+                    "properties is used, Snappy by default.")
+            .required(false)
+            .allowableValues(COMPRESSION_NONE, COMPRESSION_SNAPPY, COMPRESSION_LZ4, COMPRESSION_ZSTD)
+            .dependsOn(OPEN_MODE, READANDWRITE)
+            .build();
+
+    public static final PropertyDescriptor ZSTD_MAX_DICTIONARY_SIZE = new PropertyDescriptor.Builder()
+            .name("zstd-max-dictionary-size")
+            .displayName("ZSTD Max Dictionary Size")
+            .description("When set, each SST file is compressed with a dictionary of at most this size, trained on its own data, " +
+                    "so that small values of similar structure, e.g. JSON documents, share what they have in common instead of " +
+                    "being compressed block by block. 16 KB to 64 KB is usually enough; the EstimateCompressionRocksDb " +
+                    "processor estimates the gain on a sample of the database.")
+            .required(false)
+            .addValidator(StandardValidators.createDataSizeBoundsValidator(1, Integer.MAX_VALUE))
+            .dependsOn(COMPRESSION, COMPRESSION_ZSTD)
+            .build();
+
+    public static final PropertyDescriptor ZSTD_MAX_TRAIN_SIZE = new PropertyDescriptor.Builder()
+            .name("zstd-max-train-size")
+            .displayName("ZSTD Max Train Size")
+            .description("Maximum size of the data of an SST file the dictionary is trained on. If not set it is 100 times " +
+                    "the ZSTD Max Dictionary Size. Larger samples train better dictionaries, but slow the compactions down.")
+            .required(false)
+            .addValidator(StandardValidators.createDataSizeBoundsValidator(1, Integer.MAX_VALUE))
+            .dependsOn(ZSTD_MAX_DICTIONARY_SIZE)
+            .build();
+
+    public static final PropertyDescriptor ZSTD_DICTIONARY_LEVELS = new PropertyDescriptor.Builder()
+            .name("zstd-dictionary-levels")
+            .displayName("ZSTD Dictionary Levels")
+            .description("Levels whose SST files are compressed with a dictionary. The bottommost level holds most of the data " +
+                    "and is rewritten the least, so that training the dictionaries there costs the least compaction time " +
+                    "for most of the gain; the other levels are compressed with ZSTD without dictionary.")
+            .required(true)
+            .defaultValue(ZSTD_DICTIONARY_BOTTOMMOST)
+            .allowableValues(ZSTD_DICTIONARY_BOTTOMMOST, ZSTD_DICTIONARY_ALL_LEVELS)
+            .dependsOn(ZSTD_MAX_DICTIONARY_SIZE)
+            .build();
+
+    public static final PropertyDescriptor FAIL_FAST_ON_WRITE_STALL = new PropertyDescriptor.Builder()
+            .name("fail-fast-on-write-stall")
+            .displayName("Fail Fast On Write Stall")
+            .description("When RocksDB delays or stops the writes because the compactions fall behind, the writes fail right away " +
+                    "instead of blocking the calling thread, and are retried later: RocksDbWriter yields leaving the FlowFiles " +
+                    "queued, the map cache operations fail with an IOException.")
+            .required(true)
+            .defaultValue("false")
+            .allowableValues("true", "false")
+            .dependsOn(OPEN_MODE, READANDWRITE)
+            .build();
+
+    public static final PropertyDescriptor STALL_DELAYED_WRITE_RATE = new PropertyDescriptor.Builder()
+            .name("stall-delayed-write-rate")
+            .displayName("Stall Delayed Write Rate")
+            .description("Rate, per second, under which the writes delayed by RocksDB count as stalled, so that the writers " +
+                    "yield before blocking. If not set any delay counts as a stall. Stopped writes always count as stalled.")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .dependsOn(OPEN_MODE, READANDWRITE)
+            .build();
+
+    public static final PropertyDescriptor STALL_PENDING_COMPACTION_BYTES = new PropertyDescriptor.Builder()
+            .name("stall-pending-compaction-bytes")
+            .displayName("Stall Pending Compaction Bytes")
+            .description("Estimated bytes awaiting compaction above which the writes count as stalled, so that the writers " +
+                    "yield before RocksDB slows the writes down. If not set the pending compactions are not checked.")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .dependsOn(OPEN_MODE, READANDWRITE)
+            .build();
+
+    public static final PropertyDescriptor WARM_UP_RATE = new PropertyDescriptor.Builder()
+            .name("warm-up-rate")
+            .displayName("Warm Up Rate")
+            .description("When set, the block cache is warmed up in the background once the database is opened, reading at most " +
+                    "this number of keys per second: the first and last key of every SST file, level by level, so that their " +
+                    "index and filter blocks are loaded, then the keys recorded in the Hot Keys Directory. " +
+                    "The service reports that it is warming up until done or the Warm Up Target Fill is reached.")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor WARM_UP_TARGET_FILL = new PropertyDescriptor.Builder()
+            .name("warm-up-target-fill")
+            .displayName("Warm Up Target Fill")
+            .description("Percentage of the block cache capacity at which the warm up stops.")
+            .required(true)
+            .defaultValue("80")
+            .addValidator(StandardValidators.createLongValidator(1, 100, true))
+            .dependsOn(WARM_UP_RATE)
+            .build();
+
+    public static final PropertyDescriptor HOT_KEYS_DIRECTORY = new PropertyDescriptor.Builder()
+            .name("hot-keys-directory")
+            .displayName("Hot Keys Directory")
+            .description("Directory where a sample of the most read keys is recorded when the service is disabled, " +
+                    "to be read again by the warm up when the service is enabled. If not set only the index and filter blocks are warmed up.")
+            .required(false)
+            .addValidator(StandardValidators.DirectoryExistsValidator.VALID)
+            .dependsOn(WARM_UP_RATE)
+            .build();
+
+    public static final PropertyDescriptor MAX_HOT_KEYS = new PropertyDescriptor.Builder()
+            .name("max-hot-keys")
+            .displayName("Maximum Hot Keys")
+            .description("Maximum number of keys recorded in the Hot Keys Directory.")
+            .required(true)
+            .defaultValue("10000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .dependsOn(HOT_KEYS_DIRECTORY)
+            .build();
+
+    public static final PropertyDescriptor LATENCY_SAMPLE_RATE = new PropertyDescriptor.Builder()
+            .name("latency-sample-rate")
+            .displayName("Latency Sample Rate")
+            .description("When set, 1 in this number of reads and writes by key is traced with the RocksDB PerfContext: " +
+                    "the time spent waiting for the lock, in RocksDB and serializing the values, with the memtable, SST, " +
+                    "block cache and bloom filter breakdown. RocksDbReader and RocksDbWriter can write the breakdown " +
+                    "as rocksdb.latency.* attributes. Tracing slows the sampled operations down.")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public RocksDbUtils rocksDbUtils;
+
+    private static final String HOT_KEYS_FILE_NAME = "hot-keys";
+
+    private ScheduledExecutorService maintenanceScheduler;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        final List<PropertyDescriptor> properties = new ArrayList<>();
+        properties.add(DATABASE_PATH);
+        properties.add(OPEN_MODE);
+        properties.add(DATA_PATHS);
+        properties.add(WAL_DIRECTORY);
+        properties.add(OPTIONS_FILE);
+        properties.add(TUNING_PROFILE);
+        properties.add(SMALL_DATABASE_THRESHOLD);
+        properties.add(BLOCK_CACHE_SIZE);
+        properties.add(WRITE_DURABILITY);
+        properties.add(WAL_FLUSH_INTERVAL);
+        properties.add(COMPACTION_RATE_LIMIT);
+        properties.add(DISABLE_AUTO_COMPACTIONS);
+        properties.add(COMPACTION_SCHEDULE);
+        properties.add(COMPRESSION);
+        properties.add(ZSTD_MAX_DICTIONARY_SIZE);
+        properties.add(ZSTD_MAX_TRAIN_SIZE);
+        properties.add(ZSTD_DICTIONARY_LEVELS);
+        properties.add(FAIL_FAST_ON_WRITE_STALL);
+        properties.add(STALL_DELAYED_WRITE_RATE);
+        properties.add(STALL_PENDING_COMPACTION_BYTES);
+        properties.add(WARM_UP_RATE);
+        properties.add(WARM_UP_TARGET_FILL);
+        properties.add(HOT_KEYS_DIRECTORY);
+        properties.add(MAX_HOT_KEYS);
+        properties.add(LATENCY_SAMPLE_RATE);
+        return properties;
+    }
+
+    @Override
+    protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(String propertyDescriptorName) {
+        return new PropertyDescriptor.Builder()
+                .name(propertyDescriptorName)
+                .required(false)
+                .addValidator(StandardValidators.createAttributeExpressionLanguageValidator(AttributeExpression.ResultType.STRING, true))
+                .addValidator(StandardValidators.ATTRIBUTE_KEY_PROPERTY_NAME_VALIDATOR)
+                .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+                .dynamic(true)
+                .build();
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(ValidationContext validationContext) {
+        List<ValidationResult> results = new ArrayList<>();
+        String dataPaths = validationContext.getProperty(DATA_PATHS).getValue();
+        if (dataPaths != null) {
+            try {
+                for (String directory : parseDataPaths(dataPaths).keySet()) {
+                    if (!new File(directory).isDirectory()) {
+                        results.add(new ValidationResult.Builder()
+                                .subject(DATA_PATHS.getDisplayName())
+                                .input(directory)
+                                .valid(false)
+                                .explanation("Directory " + directory + " does not exist")
+                                .build());
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                results.add(new ValidationResult.Builder()
+                        .subject(DATA_PATHS.getDisplayName())
+                        .input(dataPaths)
+                        .valid(false)
+                        .explanation(e.getMessage())
+                        .build());
+            }
+        }
+        return results;
+    }
+
+    @OnEnabled
+    public void onEnabled(final ConfigurationContext context) {
+        HashMap<String, String> dynamicProperties = new HashMap<>();
+        for (PropertyDescriptor entry : context.getProperties().keySet()) {
+            if (entry.isDynamic()) {
+                dynamicProperties.put(entry.getName(), context.getProperty(entry).getValue());
+            }
+        }
+
+        try {
+            openDatabases(context, dynamicProperties);
+            startMaintenance(context);
+        } catch (RocksDBException ex) {
+            getLogger().error("RocksDB not initialized in {} mode, service cannot start.\n" +
+                    "The error is:\n {}", context.getProperty(OPEN_MODE).getValue(), ex.getMessage());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @OnDisabled
+    public void onDisable() {
+        if (maintenanceScheduler != null) {
+            maintenanceScheduler.shutdownNow();
+            maintenanceScheduler = null;
+        }
+        for (RocksDbUtils database : getDatabases()) {
+            try {
+                database.saveHotKeys();
+            } catch (IOException e) {
+                getLogger().warn("Unable to record the hot keys of RocksDB", e);
+            }
+        }
+        closeDatabases();
+    }
+
+    /**
+     * Opens the databases of the service, by default the single one at the Database Path.
+     */
+    protected void openDatabases(ConfigurationContext context, HashMap<String, String> dynamicProperties) throws Exception {
+        rocksDbUtils = new RocksDbUtils();
+        initDatabase(rocksDbUtils, context.getProperty(DATABASE_PATH).getValue(), context, dynamicProperties);
+    }
+
+    protected void closeDatabases() {
+        getDatabases().forEach(RocksDbUtils::resetDb);
+    }
+
+    /**
+     * Whether the writes to any database are stalled, see {@link RocksDbUtils#isWriteStalled()}.
+     */
+    public boolean isWriteStalled() {
+        return getDatabases().stream().anyMatch(RocksDbUtils::isWriteStalled);
+    }
+
+    /**
+     * Whether the block cache of any database is still being warmed up.
+     */
+    public boolean isWarmingUp() {
+        return getDatabases().stream().anyMatch(RocksDbUtils::isWarmingUp);
+    }
+
+    /**
+     * Returns the latency breakdown of the last operation of the current thread on the databases of the service,
+     * as rocksdb.latency.* attributes, or an empty map if it was not sampled.
+     */
+    public Map<String, String> takeLatencyAttributes() {
+        LatencyTrace trace = RocksDbUtils.takeLatencyTrace();
+        if (trace == null || !getDatabases().contains(trace.getDatabase())) {
+            return Map.of();
+        }
+        return trace.toAttributes();
+    }
+
+    /**
+     * Returns the open databases of the service.
+     */
+    protected List<RocksDbUtils> getDatabases() {
+        return rocksDbUtils == null ? List.of() : List.of(rocksDbUtils);
+    }
+
+    /**
+     * Configures the RocksDbUtils and opens the database at the given path in the configured Open Mode.
+     */
+    protected void initDatabase(RocksDbUtils utils, String path, ConfigurationContext context,
+                                HashMap<String, String> dynamicProperties) throws Exception {
+        configure(utils, context);
+        if (context.getProperty(DATA_PATHS).isSet()) {
+            List<DbPath> dataPaths = new ArrayList<>();
+            parseDataPaths(context.getProperty(DATA_PATHS).getValue()).forEach((directory, targetSize) -> dataPaths.add(
+                    new DbPath(storageDirectory(new File(directory), path, context).toPath(), targetSize)));
+            utils.setDataPaths(dataPaths);
+        }
+        if (context.getProperty(WAL_DIRECTORY).isSet()) {
+            utils.setWalDir(storageDirectory(new File(context.getProperty(WAL_DIRECTORY).getValue()), path, context).getAbsolutePath());
+        }
+        if (context.getProperty(WARM_UP_RATE).isSet()) {
+            File hotKeysFile = null;
+            if (context.getProperty(HOT_KEYS_DIRECTORY).isSet()) {
+                File directory = storageDirectory(new File(context.getProperty(HOT_KEYS_DIRECTORY).getValue()), path, context);
+                directory.mkdirs();
+                hotKeysFile = new File(directory, HOT_KEYS_FILE_NAME);
+            }
+            utils.setWarmUp(context.getProperty(WARM_UP_RATE).asLong(), context.getProperty(WARM_UP_TARGET_FILL).asInteger() / 100.0,
+                    hotKeysFile, context.getProperty(MAX_HOT_KEYS).asInteger(), getLogger());
+        }
+        if (READANDWRITE.equals(context.getProperty(OPEN_MODE).getValue())) {
+            utils.initDbWrite(path, dynamicProperties);
+        } else if (READONLY.equals(context.getProperty(OPEN_MODE).getValue())) {
+            utils.initDbReadOnly(path, dynamicProperties);
+        } else {
+            throw new RocksDBException("OpenMode not specified is not allowed.");
+        }
+    }
+
+    /**
+     * Returns the directory that the database at the given path uses inside a directory shared by the databases
+     * of the service, such as the Data Paths, by default the directory itself.
+     */
+    protected File storageDirectory(File directory, String path, ConfigurationContext context) {
+        return directory;
+    }
+
+    /**
+     * Parses the Data Paths into the target size of each directory, in order.
+     */
+    static Map<String, Long> parseDataPaths(String dataPaths) {
+        Map<String, Long> targetSizes = new LinkedHashMap<>();
+        for (String dataPath : dataPaths.split(",")) {
+            if (dataPath.isBlank()) {
+                continue;
+            }
+            // the last colon separates the size, so that windows paths can be used
+            int separator = dataPath.lastIndexOf(':');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Data path " + dataPath.trim() + " has no target size");
+            }
+            String directory = dataPath.substring(0, separator).trim();
+            String targetSize = dataPath.substring(separator + 1).trim();
+            if (!DataUnit.DATA_SIZE_PATTERN.matcher(targetSize).matches()) {
+                throw new IllegalArgumentException("Target size " + targetSize + " of " + directory + " is not a data size");
+            }
+            if (targetSizes.put(directory, DataUnit.parseDataSize(targetSize, DataUnit.B).longValue()) != null) {
+                throw new IllegalArgumentException("Data path " + directory + " is listed more than once");
+            }
+        }
+        if (targetSizes.isEmpty()) {
+            throw new IllegalArgumentException("No data path is listed");
+        }
+        return targetSizes;
+    }
+
+    /**
+     * Schedules the maintenance of the databases once they are open, by default the full compactions of the Compaction Schedule.
+     */
+    protected void startMaintenance(ConfigurationContext context) {
+        if (!READANDWRITE.equals(context.getProperty(OPEN_MODE).getValue()) || !context.getProperty(COMPACTION_SCHEDULE).isSet()) {
+            return;
+        }
+        final List<RocksDbUtils> databases = getDatabases();
+        scheduleMaintenance(context.getProperty(COMPACTION_SCHEDULE).asTimePeriod(TimeUnit.MILLISECONDS), () -> {
+            for (RocksDbUtils database : databases) {
+                try {
+                    database.compact(null, null, false);
+                } catch (RocksDBException e) {
+                    getLogger().warn("Scheduled compaction of RocksDB failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the task at a fixed delay until the service is disabled, on a single thread shared by all the
+     * maintenance tasks so that they do not compete for the disk.
+     */
+    protected void scheduleMaintenance(long intervalMillis, Runnable task) {
+        if (maintenanceScheduler == null) {
+            maintenanceScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "RocksDb maintenance " + getIdentifier());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        maintenanceScheduler.scheduleWithFixedDelay(task, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Applies the service configuration to the RocksDbUtils before the database is opened.
+     */
+    protected void configure(RocksDbUtils utils, ConfigurationContext context) {
+        utils.setOptionsFile(context.getProperty(OPTIONS_FILE).getValue());
+        utils.setTuningProfile(context.getProperty(TUNING_PROFILE).getValue());
+        if (context.getProperty(SMALL_DATABASE_THRESHOLD).isSet()) {
+            utils.setSmallDatabaseThreshold(context.getProperty(SMALL_DATABASE_THRESHOLD).asDataSize(DataUnit.B).longValue());
+        }
+        if (context.getProperty(BLOCK_CACHE_SIZE).isSet()) {
+            utils.setBlockCacheSize(context.getProperty(BLOCK_CACHE_SIZE).asDataSize(DataUnit.B).longValue());
+        }
+        if (context.getProperty(WRITE_DURABILITY).isSet()) {
+            long walFlushInterval = context.getProperty(WAL_FLUSH_INTERVAL).isSet()
+                    ? context.getProperty(WAL_FLUSH_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS) : 0;
+            utils.setWriteDurability(context.getProperty(WRITE_DURABILITY).getValue(), walFlushInterval);
+        }
+        if (context.getProperty(COMPACTION_RATE_LIMIT).isSet()) {
+            utils.setCompactionRateLimit(context.getProperty(COMPACTION_RATE_LIMIT).asDataSize(DataUnit.B).longValue());
+        }
+        if (context.getProperty(DISABLE_AUTO_COMPACTIONS).isSet()) {
+            utils.setDisableAutoCompactions(context.getProperty(DISABLE_AUTO_COMPACTIONS).asBoolean());
+        }
+        if (context.getProperty(COMPRESSION).isSet()) {
+            int maxDictionarySize = 0;
+            int maxTrainSize = 0;
+            if (COMPRESSION_ZSTD.equals(context.getProperty(COMPRESSION).getValue()) && context.getProperty(ZSTD_MAX_DICTIONARY_SIZE).isSet()) {
+                maxDictionarySize = context.getProperty(ZSTD_MAX_DICTIONARY_SIZE).asDataSize(DataUnit.B).intValue();
+                maxTrainSize = context.getProperty(ZSTD_MAX_TRAIN_SIZE).isSet()
+                        ? context.getProperty(ZSTD_MAX_TRAIN_SIZE).asDataSize(DataUnit.B).intValue()
+                        : (int) Math.min(Integer.MAX_VALUE, 100L * maxDictionarySize);
+            }
+            utils.setCompression(context.getProperty(COMPRESSION).getValue(), maxDictionarySize, maxTrainSize,
+                    ZSTD_DICTIONARY_BOTTOMMOST.equals(context.getProperty(ZSTD_DICTIONARY_LEVELS).getValue()));
+        }
+        if (context.getProperty(FAIL_FAST_ON_WRITE_STALL).isSet()) {
+            utils.setNoSlowdown(context.getProperty(FAIL_FAST_ON_WRITE_STALL).asBoolean());
+        }
+        utils.setWriteStallThresholds(
+                context.getProperty(STALL_DELAYED_WRITE_RATE).isSet() ? context.getProperty(STALL_DELAYED_WRITE_RATE).asDataSize(DataUnit.B).longValue() : 0,
+                context.getProperty(STALL_PENDING_COMPACTION_BYTES).isSet() ? context.getProperty(STALL_PENDING_COMPACTION_BYTES).asDataSize(DataUnit.B).longValue() : 0);
+        if (context.getProperty(LATENCY_SAMPLE_RATE).isSet()) {
+            utils.setLatencySampling(context.getProperty(LATENCY_SAMPLE_RATE).asInteger());
+        }
+    }
+}
@@ -25,8 +25,8 @@ import org.apache.nifi.distributed.cache.client.Deserializer;
 import org.apache.nifi.distributed.cache.client.Serializer;
 import org.rocksdb.RocksDBException;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 @Tags({"redis", "distributed", "cache", "map"})
 @CapabilityDescription("An implementation of DistributedMapCacheClient that uses Redis as the backing cache. This service relies on " +
@@ -38,7 +38,7 @@ public class RocksDbDistributedMapCacheClientService extends SimpleRocksDbDistri
     @Override
     public <K, V> AtomicCacheEntry<K, V, byte[]> fetch(final K key, final Serializer<K> keySerializer, final Deserializer<V> valueDeserializer) throws IOException {
 
-        final byte[] k = serialize(key, keySerializer);
+        final ByteBuffer k = serializeKey(key, keySerializer);
 
         final byte[] v;
         try {
@@ -58,19 +58,14 @@ public class RocksDbDistributedMapCacheClientService extends SimpleRocksDbDistri
     @Override
     public <K, V> boolean replace(final AtomicCacheEntry<K, V, byte[]> entry, final Serializer<K> keySerializer, final Serializer<V> valueSerializer) throws IOException {
 
-        final ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-        keySerializer.serialize(entry.getKey(), out);
-        final byte[] k = out.toByteArray();
-        out.reset();
-
-        valueSerializer.serialize(entry.getValue(), out);
-        final byte[] newVal = out.toByteArray();
+        checkWriteStall();
+        final ByteBuffer k = serializeKey(entry.getKey(), keySerializer);
+        final ByteBuffer newVal = serializeValue(entry.getValue(), valueSerializer);
 
         try {
             return rocksDbUtils.put(k, newVal);
         } catch (RocksDBException e) {
-            throw new RuntimeException(e);
+            throw writeFailure(e);
         }
 
 
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.org.nifi.rocksdbmanager.services;
+
+import it.org.nifi.rocksdbmanager.utils.MapCacheServer;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+import static it.org.nifi.rocksdbmanager.utils.PropertyDescriptorUtils.*;
+
+@Tags({"rocksdb", "distributed", "cache", "map", "server", "cluster"})
+@CapabilityDescription("Provides a map cache that can be accessed over a socket with the standard NiFi distributed map cache " +
+        "protocol, by a DistributedMapCacheClientService, and persists the entries in a RocksDb. The writes of all the " +
+        "connections are grouped and committed with a single write batch, and the values the conditional writes and the " +
+        "sub map requests need are read with a single multi get. TLS is not supported: the server listens on a plain socket.")
+public class RocksDbDistributedMapCacheServer extends AbstractRocksDbService {
+
+    public static final PropertyDescriptor PORT = new PropertyDescriptor.Builder()
+            .name("port")
+            .displayName("Port")
+            .description("The port to listen on for incoming connections, 0 for any free port.")
+            .required(true)
+            .defaultValue("4557")
+            .addValidator(StandardValidators.createLongValidator(0, 65535, true))
+            .build();
+
+    public static final PropertyDescriptor MAX_READ_SIZE = new PropertyDescriptor.Builder()
+            .name("max-read-size")
+            .displayName("Maximum Read Size")
+            .description("The maximum size of a key or value, above which the connection is dropped.")
+            .required(true)
+            .defaultValue("1 MB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MAX_REQUEST_ENTRIES = new PropertyDescriptor.Builder()
+            .name("max-request-entries")
+            .displayName("Maximum Request Entries")
+            .description("The maximum number of entries of a sub map or put all request, above which the connection is dropped.")
+            .required(true)
+            .defaultValue("10000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MAX_GROUP_COMMIT_SIZE = new PropertyDescriptor.Builder()
+            .name("max-group-commit-size")
+            .displayName("Maximum Group Commit Size")
+            .description("The maximum number of write requests, queued by all the connections, committed with a single write batch.")
+            .required(true)
+            .defaultValue("1000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    private volatile MapCacheServer server;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        final List<PropertyDescriptor> properties = new ArrayList<>(super.getSupportedPropertyDescriptors());
+        properties.add(PORT);
+        properties.add(MAX_READ_SIZE);
+        properties.add(MAX_REQUEST_ENTRIES);
+        properties.add(MAX_GROUP_COMMIT_SIZE);
+        return properties;
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(ValidationContext validationContext) {
+        List<ValidationResult> results = new ArrayList<>(super.customValidate(validationContext));
+        if (!READANDWRITE.equals(validationContext.getProperty(OPEN_MODE).getValue())) {
+            results.add(new ValidationResult.Builder()
+                    .subject(OPEN_MODE.getDisplayName())
+                    .input(validationContext.getProperty(OPEN_MODE).getValue())
+                    .valid(false)
+                    .explanation("the map cache server writes to the database, which must be opened in " + READANDWRITE + " mode")
+                    .build());
+        }
+        return results;
+    }
+
+    @Override
+    protected void openDatabases(ConfigurationContext context, HashMap<String, String> dynamicProperties) throws Exception {
+        super.openDatabases(context, dynamicProperties);
+        try {
+            server = new MapCacheServer(rocksDbUtils, null, context.getProperty(PORT).asInteger(),
+                    context.getProperty(MAX_READ_SIZE).asDataSize(DataUnit.B).intValue(),
+                    context.getProperty(MAX_REQUEST_ENTRIES).asInteger(),
+                    context.getProperty(MAX_GROUP_COMMIT_SIZE).asInteger(), getLogger());
+        } catch (Exception e) {
+            super.closeDatabases();
+            throw e;
+        }
+        server.start();
+        getLogger().info("RocksDB map cache server listening on port {}", server.getPort());
+    }
+
+    @Override
+    protected void closeDatabases() {
+        // the queued writes are committed before the database is closed
+        if (server != null) {
+            server.stop();
+            server = null;
+        }
+        super.closeDatabases();
+    }
+
+    /**
+     * Returns the port the server listens on, or -1 if it is not enabled.
+     */
+    public int getPort() {
+        MapCacheServer current = server;
+        return current == null ? -1 : current.getPort();
+    }
+}
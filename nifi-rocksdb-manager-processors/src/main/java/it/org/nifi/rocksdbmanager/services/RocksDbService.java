@@ -18,26 +18,40 @@
 package it.org.nifi.rocksdbmanager.services;
 
 import it.org.nifi.rocksdbmanager.exception.LookupFailureException;
+import it.org.nifi.rocksdbmanager.exception.WriteStallException;
 import it.org.nifi.rocksdbmanager.processors.RocksDbReader;
 import it.org.nifi.rocksdbmanager.processors.RocksDbWriter;
+import it.org.nifi.rocksdbmanager.utils.AvroRecordCodec;
+import it.org.nifi.rocksdbmanager.utils.CompressionEstimator;
+import it.org.nifi.rocksdbmanager.utils.KeyEncoder;
+import it.org.nifi.rocksdbmanager.utils.ReadSnapshot;
 import it.org.nifi.rocksdbmanager.utils.RocksDbRocksLookupService;
 import it.org.nifi.rocksdbmanager.utils.RocksDbUtils;
 import org.apache.nifi.annotation.behavior.DynamicProperty;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
-import org.apache.nifi.annotation.lifecycle.OnDisabled;
-import org.apache.nifi.annotation.lifecycle.OnEnabled;
 import org.apache.nifi.components.PropertyDescriptor;
-import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.controller.ConfigurationContext;
-import org.apache.nifi.expression.AttributeExpression;
 import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.schemaregistry.services.SchemaRegistry;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.SchemaIdentifier;
+import org.rocksdb.LiveFileMetaData;
 import org.rocksdb.RocksDBException;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static it.org.nifi.rocksdbmanager.utils.PropertyDescriptorUtils.*;
 
@@ -46,82 +60,418 @@ import static it.org.nifi.rocksdbmanager.utils.PropertyDescriptorUtils.*;
 @SeeAlso({RocksDbReader.class, RocksDbWriter.class})
 @DynamicProperty(name = "Option name", value = "Option value",
         expressionLanguageScope = ExpressionLanguageScope.FLOWFILE_ATTRIBUTES,
-        description = "Opens the RocksDb with specified options. If the option value is not of the correct format " +
+        description = "Opens the RocksDb with specified options. The name is the setter of the RocksDB Options, e.g. " +
+                "\"setMaxBackgroundJobs\", or of the block based table options when prefixed with \"table.\". " +
+                "Numbers, data sizes, booleans, enum names and comma separated lists (e.g. \"setCompressionPerLevel\" = " +
+                "\"NO,NO,LZ4,LZ4,ZSTD\") are supported. If the option is unknown or the value is not of the correct format " +
                 "it returns an error.")
-public class RocksDbService extends AbstractControllerService implements RocksDbRocksLookupService {
+public class RocksDbService extends AbstractRocksDbService implements RocksDbRocksLookupService {
+
+    public static final PropertyDescriptor NEGATIVE_LOOKUP_CACHE_SIZE = new PropertyDescriptor.Builder()
+            .name("negative-lookup-cache-size")
+            .displayName("Negative Lookup Cache Size")
+            .description("Maximum number of keys known to be absent from the database that are kept in memory, " +
+                    "so that repeated lookups of missing keys do not reach RocksDB. Entries are invalidated by writes " +
+                    "of the same key. A value of 0 disables the cache.")
+            .required(true)
+            .defaultValue("0")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MERGE_OPERATOR = new PropertyDescriptor.Builder()
+            .name("merge-operator")
+            .displayName("Merge Operator")
+            .description("Operator combining the values written with the \"" + WRITE_MODE_INCREMENT + "\" or \"" +
+                    WRITE_MODE_APPEND + "\" write modes without reading the current value. With \"" + MERGE_UINT64_ADD +
+                    "\" values are stored as 64 bit integers and added, with \"" + MERGE_STRING_APPEND +
+                    "\" they are stored as UTF-8 strings and appended. The operator must not change once the database holds data.")
+            .required(true)
+            .defaultValue(MERGE_NONE)
+            .allowableValues(Set.of(MERGE_NONE, MERGE_UINT64_ADD, MERGE_STRING_APPEND))
+            .build();
+
+    public static final PropertyDescriptor APPEND_DELIMITER = new PropertyDescriptor.Builder()
+            .name("append-delimiter")
+            .displayName("Append Delimiter")
+            .description("Delimiter placed between the appended values.")
+            .required(true)
+            .defaultValue(",")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .dependsOn(MERGE_OPERATOR, MERGE_STRING_APPEND)
+            .build();
+
+    public static final PropertyDescriptor ITERATOR_REFRESH_INTERVAL = new PropertyDescriptor.Builder()
+            .name("iterator-refresh-interval")
+            .displayName("Iterator Refresh Interval")
+            .description("When set, every thread keeps its iterator open and reuses it for the iterator searches, " +
+                    "refreshing it to see the latest writes once it is older than this interval. " +
+                    "If not set a new iterator is created for each search.")
+            .required(false)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor TIME_TO_LIVE = new PropertyDescriptor.Builder()
+            .name("time-to-live")
+            .displayName("Time To Live")
+            .description("When set, the database is opened as a TTL database: the compactions drop the entries written " +
+                    "longer ago than this duration. Expired entries may still be read until they are compacted. " +
+                    "A database must always be opened with a Time To Live once written with one.")
+            .required(false)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor VALUE_FORMAT = new PropertyDescriptor.Builder()
+            .name("value-format")
+            .displayName("Value Format")
+            .description("Format of the stored values. With \"" + VALUE_FORMAT_AVRO + "\" values are written and read as JSON objects, " +
+                    "stored as Avro binary records identified by the fingerprint of their schema, and can be read as records. " +
+                    "The format must not change once the database holds data.")
+            .required(true)
+            .defaultValue(VALUE_FORMAT_STRING)
+            .allowableValues(Set.of(VALUE_FORMAT_STRING, VALUE_FORMAT_AVRO))
+            .build();
+
+    public static final PropertyDescriptor SCHEMA_REGISTRY = new PropertyDescriptor.Builder()
+            .name("schema-registry")
+            .displayName("Schema Registry")
+            .description("Schema Registry holding the schema of the records, resolved once when the service is enabled. " +
+                    "The values written with the versions before it are read by retrieving those versions from the registry.")
+            .required(true)
+            .identifiesControllerService(SchemaRegistry.class)
+            .dependsOn(VALUE_FORMAT, VALUE_FORMAT_AVRO)
+            .build();
+
+    public static final PropertyDescriptor SCHEMA_NAME = new PropertyDescriptor.Builder()
+            .name("schema-name")
+            .displayName("Schema Name")
+            .description("Name of the schema of the records in the Schema Registry.")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .dependsOn(VALUE_FORMAT, VALUE_FORMAT_AVRO)
+            .build();
+
+    public static final PropertyDescriptor SCHEMA_VERSION = new PropertyDescriptor.Builder()
+            .name("schema-version")
+            .displayName("Schema Version")
+            .description("Version of the schema of the records in the Schema Registry. If not set the latest version is used.")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .dependsOn(VALUE_FORMAT, VALUE_FORMAT_AVRO)
+            .build();
+
+    public static final PropertyDescriptor SECONDARY_INDEXES = new PropertyDescriptor.Builder()
+            .name("secondary-indexes")
+            .displayName("Secondary Indexes")
+            .description("Comma separated top level fields of the JSON values to index. Each index is kept in its own column family, " +
+                    "written in the same batch as the entries, and is searched by the \"" + INDEX_LOOKUP + "\" search of RocksDbReader. " +
+                    "Entries written before an index is declared are not indexed.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
 
-    public static final PropertyDescriptor DATABASE_PATH = new PropertyDescriptor.Builder()
-            .name("database-path")
-            .displayName("Database Path")
-            .description("The path of the rocksdb to open and utilize.")
+    public static final PropertyDescriptor ENABLE_BLOB_FILES = new PropertyDescriptor.Builder()
+            .name("enable-blob-files")
+            .displayName("Enable Blob Files")
+            .description("Separates the large values from the keys: values of at least the Minimum Blob Size are written once " +
+                    "to blob files and the SST files only hold a reference to them, so that compactions do not rewrite them. " +
+                    "Suited to values read from the FlowFile content. Blob files already written are read whatever this setting.")
             .required(true)
-            .addValidator(StandardValidators.DirectoryExistsValidator.VALID)
+            .defaultValue("false")
+            .allowableValues("true", "false")
+            .dependsOn(OPEN_MODE, READANDWRITE)
             .build();
 
-    public static final PropertyDescriptor OPEN_MODE = new PropertyDescriptor.Builder()
-            .name("open-mode")
-            .displayName("Open Mode")
-            .description("Mode to open RocksDB. Choosing \"".concat(READONLY).concat("\" allows just reads on the Rocksdb." +
-                    "\"".concat(READANDWRITE).concat("\" mode allows read and writes inside the database.")))
+    public static final PropertyDescriptor MIN_BLOB_SIZE = new PropertyDescriptor.Builder()
+            .name("min-blob-size")
+            .displayName("Minimum Blob Size")
+            .description("Size from which a value is written to a blob file instead of inline in the SST files.")
             .required(true)
-            .defaultValue(READANDWRITE)
-            .allowableValues(Set.of(READANDWRITE, READONLY))
+            .defaultValue("64 KB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .dependsOn(ENABLE_BLOB_FILES, "true")
             .build();
 
-    public RocksDbUtils rocksDbUtils;
+    public static final PropertyDescriptor BLOB_COMPRESSION = new PropertyDescriptor.Builder()
+            .name("blob-compression")
+            .displayName("Blob Compression")
+            .description("Compression of the values written to the blob files.")
+            .required(true)
+            .defaultValue(COMPRESSION_LZ4)
+            .allowableValues(Set.of(COMPRESSION_NONE, COMPRESSION_SNAPPY, COMPRESSION_LZ4, COMPRESSION_ZSTD))
+            .dependsOn(ENABLE_BLOB_FILES, "true")
+            .build();
+
+    public static final PropertyDescriptor BLOB_GARBAGE_COLLECTION_AGE_CUTOFF = new PropertyDescriptor.Builder()
+            .name("blob-garbage-collection-age-cutoff")
+            .displayName("Blob Garbage Collection Age Cutoff")
+            .description("Percentage of the oldest blob files whose live values are moved to new blob files by the compactions, " +
+                    "so that the old files can be deleted once all their values are overwritten or deleted. " +
+                    "A value of 0 disables the blob garbage collection.")
+            .required(true)
+            .defaultValue("25")
+            .addValidator(StandardValidators.createLongValidator(0, 100, true))
+            .dependsOn(ENABLE_BLOB_FILES, "true")
+            .build();
+
+    public static final PropertyDescriptor BLOB_GARBAGE_COLLECTION_FORCE_THRESHOLD = new PropertyDescriptor.Builder()
+            .name("blob-garbage-collection-force-threshold")
+            .displayName("Blob Garbage Collection Force Threshold")
+            .description("Percentage of garbage in the oldest blob files above which the SST files referencing them " +
+                    "are compacted right away. A value of 100 never forces a compaction.")
+            .required(true)
+            .defaultValue("100")
+            .addValidator(StandardValidators.createLongValidator(0, 100, true))
+            .dependsOn(ENABLE_BLOB_FILES, "true")
+            .build();
+
+    public static final PropertyDescriptor KEY_ENCODING = new PropertyDescriptor.Builder()
+            .name("key-encoding")
+            .displayName("Key Encoding")
+            .description("How the keys, given as strings, are stored. The numeric encodings store fixed width big endian numbers, " +
+                    "the signed ones with the sign bit flipped, so that the keys sort, and iterator searches move, in numeric order " +
+                    "without zero padding. The tuple encoding stores the components of the keys split by the Key Tuple Delimiter, " +
+                    "each with its type, so that e.g. \"sensor|1700000000000\" sorts by sensor then by timestamp. " +
+                    "The encoding cannot be changed once the database holds data.")
+            .required(true)
+            .defaultValue(KEY_ENCODING_UTF8)
+            .allowableValues(KEY_ENCODING_UTF8, KEY_ENCODING_UNSIGNED_LONG, KEY_ENCODING_SIGNED_LONG,
+                    KEY_ENCODING_UNSIGNED_INT, KEY_ENCODING_SIGNED_INT, KEY_ENCODING_TUPLE)
+            .build();
+
+    public static final PropertyDescriptor KEY_TUPLE_TYPES = new PropertyDescriptor.Builder()
+            .name("key-tuple-types")
+            .displayName("Key Tuple Types")
+            .description("Comma separated types of the components of the tuple keys, among string, long and int. " +
+                    "A key with fewer components, e.g. the string alone, is the prefix of all the keys starting with them.")
+            .required(true)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .dependsOn(KEY_ENCODING, KEY_ENCODING_TUPLE)
+            .build();
+
+    public static final PropertyDescriptor KEY_TUPLE_DELIMITER = new PropertyDescriptor.Builder()
+            .name("key-tuple-delimiter")
+            .displayName("Key Tuple Delimiter")
+            .description("Delimiter between the components of the tuple keys.")
+            .required(true)
+            .defaultValue("|")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .dependsOn(KEY_ENCODING, KEY_ENCODING_TUPLE)
+            .build();
+
+    public static final PropertyDescriptor RETENTION_PERIOD = new PropertyDescriptor.Builder()
+            .name("retention-period")
+            .displayName("Retention Period")
+            .description("When set, the entries whose key timestamp is older than this period are deleted every Retention Check " +
+                    "Interval with range tombstones, which are then compacted, instead of a tombstone per key. The timestamp, " +
+                    "in milliseconds, is the key itself with the \"" + KEY_ENCODING_SIGNED_LONG + "\" and \"" +
+                    KEY_ENCODING_UNSIGNED_LONG + "\" Key Encodings, or the first or last long of the tuple keys. Time prefixed " +
+                    "keys, e.g. \"1700000000000|sensor\", expire with a single range; time suffixed keys, e.g. " +
+                    "\"sensor|1700000000000\", with a range per series, each found with a seek.")
+            .required(false)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .dependsOn(OPEN_MODE, READANDWRITE)
+            .build();
+
+    public static final PropertyDescriptor RETENTION_CHECK_INTERVAL = new PropertyDescriptor.Builder()
+            .name("retention-check-interval")
+            .displayName("Retention Check Interval")
+            .description("Interval between two deletions of the entries older than the Retention Period.")
+            .required(true)
+            .defaultValue("1 hour")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .dependsOn(RETENTION_PERIOD)
+            .build();
+
+    private volatile String mergeOperator = MERGE_NONE;
+    protected volatile KeyEncoder keyEncoder = KeyEncoder.UTF8;
+    private volatile AvroRecordCodec recordCodec;
+    private volatile long retentionMillis = -1;
+    private final Map<String, Map<RocksDbUtils, ReadSnapshot>> snapshots = new ConcurrentHashMap<>();
 
     @Override
     protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
-        final List<PropertyDescriptor> properties = new ArrayList<>();
-        properties.add(DATABASE_PATH);
-        properties.add(OPEN_MODE);
+        final List<PropertyDescriptor> properties = new ArrayList<>(super.getSupportedPropertyDescriptors());
+        properties.add(NEGATIVE_LOOKUP_CACHE_SIZE);
+        properties.add(MERGE_OPERATOR);
+        properties.add(APPEND_DELIMITER);
+        properties.add(ITERATOR_REFRESH_INTERVAL);
+        properties.add(TIME_TO_LIVE);
+        properties.add(VALUE_FORMAT);
+        properties.add(SCHEMA_REGISTRY);
+        properties.add(SCHEMA_NAME);
+        properties.add(SCHEMA_VERSION);
+        properties.add(SECONDARY_INDEXES);
+        properties.add(ENABLE_BLOB_FILES);
+        properties.add(MIN_BLOB_SIZE);
+        properties.add(BLOB_COMPRESSION);
+        properties.add(BLOB_GARBAGE_COLLECTION_AGE_CUTOFF);
+        properties.add(BLOB_GARBAGE_COLLECTION_FORCE_THRESHOLD);
+        properties.add(KEY_ENCODING);
+        properties.add(KEY_TUPLE_TYPES);
+        properties.add(KEY_TUPLE_DELIMITER);
+        properties.add(RETENTION_PERIOD);
+        properties.add(RETENTION_CHECK_INTERVAL);
         return properties;
     }
 
-    @OnEnabled
-    public void onEnabled(final ConfigurationContext context) {
-        String fileDirectory = context.getProperty(DATABASE_PATH).getValue();
-        HashMap<String, String> dynamicProperties = new HashMap<>();
-        for (PropertyDescriptor entry : context.getProperties().keySet()) {
-            if (entry.isDynamic()) {
-                dynamicProperties.put(entry.getName(), context.getProperty(entry).getValue());
+    @Override
+    protected Collection<ValidationResult> customValidate(ValidationContext validationContext) {
+        List<ValidationResult> results = new ArrayList<>(super.customValidate(validationContext));
+        if (VALUE_FORMAT_AVRO.equals(validationContext.getProperty(VALUE_FORMAT).getValue())
+                && !MERGE_NONE.equals(validationContext.getProperty(MERGE_OPERATOR).getValue())) {
+            results.add(new ValidationResult.Builder()
+                    .subject(MERGE_OPERATOR.getDisplayName())
+                    .valid(false)
+                    .explanation("a merge operator cannot be used with values stored as records")
+                    .build());
+        }
+        if (validationContext.getProperty(SECONDARY_INDEXES).isSet()
+                && !MERGE_NONE.equals(validationContext.getProperty(MERGE_OPERATOR).getValue())) {
+            results.add(new ValidationResult.Builder()
+                    .subject(SECONDARY_INDEXES.getDisplayName())
+                    .valid(false)
+                    .explanation("secondary indexes cannot be kept for values written with a merge operator")
+                    .build());
+        }
+        if (KEY_ENCODING_TUPLE.equals(validationContext.getProperty(KEY_ENCODING).getValue())
+                && validationContext.getProperty(KEY_TUPLE_TYPES).isSet()) {
+            try {
+                KeyEncoder.parseTupleTypes(validationContext.getProperty(KEY_TUPLE_TYPES).getValue());
+            } catch (IllegalArgumentException e) {
+                results.add(new ValidationResult.Builder()
+                        .subject(KEY_TUPLE_TYPES.getDisplayName())
+                        .input(validationContext.getProperty(KEY_TUPLE_TYPES).getValue())
+                        .valid(false)
+                        .explanation(e.getMessage())
+                        .build());
             }
         }
+        if (validationContext.getProperty(RETENTION_PERIOD).isSet()) {
+            String keyEncoding = validationContext.getProperty(KEY_ENCODING).getValue();
+            boolean timestamped = KEY_ENCODING_SIGNED_LONG.equals(keyEncoding) || KEY_ENCODING_UNSIGNED_LONG.equals(keyEncoding);
+            if (KEY_ENCODING_TUPLE.equals(keyEncoding) && validationContext.getProperty(KEY_TUPLE_TYPES).isSet()) {
+                try {
+                    List<String> types = KeyEncoder.parseTupleTypes(validationContext.getProperty(KEY_TUPLE_TYPES).getValue());
+                    timestamped = KeyEncoder.TUPLE_LONG.equals(types.get(0)) || KeyEncoder.TUPLE_LONG.equals(types.get(types.size() - 1));
+                } catch (IllegalArgumentException e) {
+                    // reported with the tuple types
+                    timestamped = true;
+                }
+            }
+            if (!timestamped) {
+                results.add(new ValidationResult.Builder()
+                        .subject(RETENTION_PERIOD.getDisplayName())
+                        .valid(false)
+                        .explanation("the keys must hold a timestamp: a long key, or tuple keys starting or ending with a long")
+                        .build());
+            }
+            if (validationContext.getProperty(SECONDARY_INDEXES).isSet()) {
+                results.add(new ValidationResult.Builder()
+                        .subject(RETENTION_PERIOD.getDisplayName())
+                        .valid(false)
+                        .explanation("the expired entries would leave their secondary index entries behind")
+                        .build());
+            }
+        }
+        return results;
+    }
 
-        rocksDbUtils = new RocksDbUtils();
+    @Override
+    protected void startMaintenance(ConfigurationContext context) {
+        super.startMaintenance(context);
+        if (READANDWRITE.equals(context.getProperty(OPEN_MODE).getValue()) && context.getProperty(RETENTION_PERIOD).isSet()) {
+            retentionMillis = context.getProperty(RETENTION_PERIOD).asTimePeriod(TimeUnit.MILLISECONDS);
+            scheduleMaintenance(context.getProperty(RETENTION_CHECK_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS), () -> {
+                try {
+                    long ranges = applyRetention();
+                    getLogger().debug("Deleted {} expired ranges of RocksDB", ranges);
+                } catch (LookupFailureException e) {
+                    getLogger().warn("Deletion of the expired entries of RocksDB failed", e);
+                }
+            });
+        } else {
+            retentionMillis = -1;
+        }
+    }
 
+    /**
+     * Deletes from all the databases the entries older than the Retention Period, then compacts the deleted ranges.
+     *
+     * @return the number of deleted ranges
+     */
+    public long applyRetention() throws LookupFailureException {
+        if (retentionMillis < 0) {
+            throw new IllegalStateException("No Retention Period configured");
+        }
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        long ranges = 0;
         try {
-            if (READANDWRITE.equals(context.getProperty(OPEN_MODE).getValue())) {
-                rocksDbUtils.initDbWrite(fileDirectory, dynamicProperties);
-            } else if (READONLY.equals(context.getProperty(OPEN_MODE).getValue())) {
-                rocksDbUtils.initDbReadOnly(fileDirectory, dynamicProperties);
-            } else {
-                throw new RocksDBException("OpenMode not specified is not allowed.");
+            for (RocksDbUtils database : getDatabases()) {
+                ranges += database.expireBefore(cutoff);
             }
-
-        } catch (RocksDBException ex) {
-            getLogger().error("RocksDB not initialized in {} mode, service cannot start.\n" +
-                    "The error is:\n {}", context.getProperty(OPEN_MODE).getValue(), ex.getMessage());
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        } catch (RocksDBException e) {
+            throw new LookupFailureException(e);
         }
+        return ranges;
     }
 
-    @OnDisabled
-    public void onDisable() {
-        rocksDbUtils.resetDb();
+    @Override
+    protected void configure(RocksDbUtils utils, ConfigurationContext context) {
+        super.configure(utils, context);
+        utils.setNegativeLookupCacheSize(context.getProperty(NEGATIVE_LOOKUP_CACHE_SIZE).asInteger());
+        mergeOperator = context.getProperty(MERGE_OPERATOR).getValue();
+        String keyEncoding = context.getProperty(KEY_ENCODING).getValue();
+        keyEncoder = KeyEncoder.forEncoding(keyEncoding,
+                KEY_ENCODING_TUPLE.equals(keyEncoding) ? KeyEncoder.parseTupleTypes(context.getProperty(KEY_TUPLE_TYPES).getValue()) : List.of(),
+                context.getProperty(KEY_TUPLE_DELIMITER).getValue());
+        utils.setKeyEncoder(keyEncoder);
+        utils.setMergeOperator(mergeOperator, context.getProperty(APPEND_DELIMITER).getValue());
+        if (context.getProperty(ITERATOR_REFRESH_INTERVAL).isSet()) {
+            utils.setIteratorRefreshInterval(context.getProperty(ITERATOR_REFRESH_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS));
+        }
+        if (context.getProperty(TIME_TO_LIVE).isSet()) {
+            utils.setTimeToLive(Math.toIntExact(Math.max(1, context.getProperty(TIME_TO_LIVE).asTimePeriod(TimeUnit.SECONDS))));
+        }
+        if (VALUE_FORMAT_AVRO.equals(context.getProperty(VALUE_FORMAT).getValue())) {
+            if (recordCodec == null) {
+                recordCodec = createRecordCodec(context);
+            }
+            utils.setRecordCodec(recordCodec);
+        }
+        if (context.getProperty(ENABLE_BLOB_FILES).isSet() && context.getProperty(ENABLE_BLOB_FILES).asBoolean()) {
+            utils.setBlobFiles(context.getProperty(MIN_BLOB_SIZE).asDataSize(DataUnit.B).longValue(),
+                    context.getProperty(BLOB_COMPRESSION).getValue());
+            utils.setBlobGarbageCollection(context.getProperty(BLOB_GARBAGE_COLLECTION_AGE_CUTOFF).asInteger() / 100.0,
+                    context.getProperty(BLOB_GARBAGE_COLLECTION_FORCE_THRESHOLD).asInteger() / 100.0);
+        }
+        if (context.getProperty(SECONDARY_INDEXES).isSet()) {
+            utils.setSecondaryIndexes(Arrays.stream(context.getProperty(SECONDARY_INDEXES).getValue().split(","))
+                    .map(String::trim)
+                    .filter(index -> !index.isEmpty())
+                    .distinct()
+                    .collect(Collectors.toList()));
+        }
     }
 
-    @Override
-    protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(String propertyDescriptorName) {
-        return new PropertyDescriptor.Builder()
-                .name(propertyDescriptorName)
-                .required(false)
-                .addValidator(StandardValidators.createAttributeExpressionLanguageValidator(AttributeExpression.ResultType.STRING, true))
-                .addValidator(StandardValidators.ATTRIBUTE_KEY_PROPERTY_NAME_VALIDATOR)
-                .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
-                .dynamic(true)
-                .build();
+    /**
+     * Creates the codec of the schema version, or of the latest one, reading the values written with the versions before it.
+     */
+    private static AvroRecordCodec createRecordCodec(ConfigurationContext context) {
+        String schemaName = context.getProperty(SCHEMA_NAME).getValue();
+        SchemaIdentifier.Builder identifier = SchemaIdentifier.builder().name(schemaName);
+        if (context.getProperty(SCHEMA_VERSION).isSet()) {
+            identifier.version(context.getProperty(SCHEMA_VERSION).asInteger());
+        }
+        SchemaRegistry schemaRegistry = context.getProperty(SCHEMA_REGISTRY).asControllerService(SchemaRegistry.class);
+        try {
+            org.apache.nifi.serialization.record.RecordSchema schema = schemaRegistry.retrieveSchema(identifier.build());
+            int schemaVersion = context.getProperty(SCHEMA_VERSION).isSet()
+                    ? context.getProperty(SCHEMA_VERSION).asInteger()
+                    : schema.getIdentifier().getVersion().orElse(0);
+            return new AvroRecordCodec(schema, schemaRegistry, schemaName, schemaVersion);
+        } catch (IOException | SchemaNotFoundException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     @Override
@@ -145,7 +495,8 @@ public class RocksDbService extends AbstractControllerService implements RocksDb
             String searchMethod = coordinates.get("searchMethod").toString();
             if (FIND.equals(searchMethod)) {
 
-                return Optional.ofNullable(rocksDbUtils.find(key));
+                RocksDbUtils database = databaseFor(keyEncoder.encode(key));
+                return Optional.ofNullable(database.find(key, snapshotOf(coordinates).get(database)));
 
             } else if (ITERATOR.equals(searchMethod)) {
 
@@ -154,15 +505,159 @@ public class RocksDbService extends AbstractControllerService implements RocksDb
                 }
 
                 String seekFor = coordinates.get("seekFor").toString();
-                return Optional.ofNullable(rocksDbUtils.findIterator(key, seekFor));
+                return Optional.ofNullable(findIterator(key, seekFor, snapshotOf(coordinates)));
             }
 
-        } catch (RocksDBException e) {
+        } catch (RocksDBException | IllegalArgumentException | IllegalStateException e) {
             throw new LookupFailureException(e);
         }
         return Optional.empty();
     }
 
+    /**
+     * Reads the values of the Find searches with a single multi get per database, the other searches one by one.
+     */
+    @Override
+    public List<Optional<String>> searchAll(List<Map<String, Object>> coordinatesList) throws LookupFailureException {
+        List<Optional<String>> results = new ArrayList<>(Collections.nCopies(coordinatesList.size(), Optional.empty()));
+        Map<Map.Entry<RocksDbUtils, ReadSnapshot>, List<Integer>> indexesByDatabase = new LinkedHashMap<>();
+        List<byte[]> keys = new ArrayList<>(Collections.nCopies(coordinatesList.size(), null));
+        try {
+            for (int i = 0; i < coordinatesList.size(); i++) {
+                Map<String, Object> coordinates = coordinatesList.get(i);
+                if (coordinates.containsKey("key") && FIND.equals(String.valueOf(coordinates.get("searchMethod")))) {
+                    byte[] key = keyEncoder.encode(coordinates.get("key").toString());
+                    RocksDbUtils database = databaseFor(key);
+                    keys.set(i, key);
+                    indexesByDatabase.computeIfAbsent(new AbstractMap.SimpleImmutableEntry<>(database, snapshotOf(coordinates).get(database)),
+                            ignored -> new ArrayList<>()).add(i);
+                } else {
+                    results.set(i, search(coordinates));
+                }
+            }
+
+            List<Callable<Void>> tasks = new ArrayList<>();
+            indexesByDatabase.forEach((database, indexes) -> tasks.add(() -> {
+                List<String> values = database.getKey().findValues(
+                        indexes.stream().map(keys::get).collect(Collectors.toList()), database.getValue());
+                for (int i = 0; i < indexes.size(); i++) {
+                    // each index is written by one task only
+                    results.set(indexes.get(i), Optional.ofNullable(values.get(i)));
+                }
+                return null;
+            }));
+            runOnDatabases(tasks);
+        } catch (RocksDBException | IllegalArgumentException | IllegalStateException e) {
+            throw new LookupFailureException(e);
+        }
+        return results;
+    }
+
+    @Override
+    public Optional<Record> searchRecord(Map<String, Object> coordinates) throws LookupFailureException {
+        if (coordinates == null || !coordinates.containsKey("key")) {
+            return Optional.empty();
+        }
+        String key = coordinates.get("key").toString();
+        try {
+            RocksDbUtils database = databaseFor(keyEncoder.encode(key));
+            return Optional.ofNullable(database.findRecord(key, snapshotOf(coordinates).get(database)));
+        } catch (RocksDBException | IllegalArgumentException | IllegalStateException e) {
+            throw new LookupFailureException(e);
+        }
+    }
+
+    @Override
+    public List<Map.Entry<String, String>> scan(Map<String, Object> coordinates) throws LookupFailureException {
+        if (coordinates != null && INDEX_LOOKUP.equals(coordinates.get("searchMethod"))) {
+            return scanIndex(coordinates);
+        }
+        if (coordinates == null || !coordinates.containsKey("key") || !coordinates.containsKey("seekFor")) {
+            return List.of();
+        }
+        String seekFor = coordinates.get("seekFor").toString();
+        int limit = Integer.parseInt(coordinates.getOrDefault("limit", 1).toString());
+        boolean reverse = DIRECTION_BACKWARD.equals(coordinates.get("direction"));
+
+        try {
+            byte[] key = keyEncoder.encode(coordinates.get("key").toString());
+            List<Map.Entry<String, String>> entries = new ArrayList<>();
+            for (Map.Entry<byte[], String> entry : scanFrom(key, seekFor, reverse, limit, snapshotOf(coordinates))) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(keyEncoder.decode(entry.getKey()), entry.getValue()));
+            }
+            return entries;
+        } catch (RocksDBException | IllegalArgumentException | IllegalStateException e) {
+            throw new LookupFailureException(e);
+        }
+    }
+
+    private List<Map.Entry<String, String>> scanIndex(Map<String, Object> coordinates) throws LookupFailureException {
+        if (!coordinates.containsKey("key") || !coordinates.containsKey("index")) {
+            return List.of();
+        }
+        int limit = Integer.parseInt(coordinates.getOrDefault("limit", 1).toString());
+        try {
+            List<Map.Entry<String, String>> entries = new ArrayList<>();
+            for (Map.Entry<byte[], String> entry : lookupIndex(coordinates.get("index").toString(),
+                    coordinates.get("key").toString(), limit, snapshotOf(coordinates))) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(keyEncoder.decode(entry.getKey()), entry.getValue()));
+            }
+            return entries;
+        } catch (RocksDBException | IllegalArgumentException | IllegalStateException e) {
+            throw new LookupFailureException(e);
+        }
+    }
+
+    @Override
+    public List<Map.Entry<String, String>> splitKeyRanges(int maxRanges) {
+        List<LiveFileMetaData> files = new ArrayList<>();
+        for (RocksDbUtils database : getDatabases()) {
+            files.addAll(database.getLiveFiles());
+        }
+        List<Map.Entry<String, String>> ranges = new ArrayList<>();
+        String start = null;
+        for (byte[] boundary : RocksDbUtils.splitKeySpace(files, maxRanges)) {
+            String end = keyEncoder.decode(boundary);
+            ranges.add(new AbstractMap.SimpleImmutableEntry<>(start, end));
+            start = end;
+        }
+        ranges.add(new AbstractMap.SimpleImmutableEntry<>(start, null));
+        return ranges;
+    }
+
+    @Override
+    public void scanRange(String startKey, String endKey, String snapshotId, EntryConsumer<String> consumer) throws LookupFailureException, IOException {
+        try {
+            byte[] start = startKey == null ? null : keyEncoder.encode(startKey);
+            byte[] end = endKey == null ? null : keyEncoder.encode(endKey);
+            Map<RocksDbUtils, ReadSnapshot> snapshot = snapshotOf(snapshotId == null ? Map.of() : Map.of("snapshot", snapshotId));
+            List<RocksDbUtils> databases = getDatabases();
+            RocksDbUtils.scanRange(databases, databases.stream().map(snapshot::get).collect(Collectors.toList()), start, end,
+                    (key, value) -> consumer.accept(keyEncoder.decode(key), value));
+        } catch (RocksDBException | IllegalArgumentException | IllegalStateException e) {
+            throw new LookupFailureException(e);
+        }
+    }
+
+    @Override
+    public String acquireSnapshot() {
+        Map<RocksDbUtils, ReadSnapshot> databaseSnapshots = new HashMap<>();
+        for (RocksDbUtils database : getDatabases()) {
+            databaseSnapshots.put(database, database.acquireSnapshot());
+        }
+        String snapshotId = UUID.randomUUID().toString();
+        snapshots.put(snapshotId, databaseSnapshots);
+        return snapshotId;
+    }
+
+    @Override
+    public void releaseSnapshot(String snapshotId) {
+        Map<RocksDbUtils, ReadSnapshot> databaseSnapshots = snapshots.remove(snapshotId);
+        if (databaseSnapshots != null) {
+            databaseSnapshots.forEach(RocksDbUtils::releaseSnapshot);
+        }
+    }
+
     @Override
     public void write(Map<String, Object> coordinates) throws LookupFailureException {
         try {
@@ -176,12 +671,169 @@ public class RocksDbService extends AbstractControllerService implements RocksDb
             }
 
             String value = coordinates.get("value").toString();
-            rocksDbUtils.saveEntry(key.getBytes(StandardCharsets.UTF_8), value);
+            byte[] keyBytes = keyEncoder.encode(key);
+            if (isMerge(coordinates)) {
+                databaseFor(keyBytes).merge(keyBytes, value);
+            } else {
+                databaseFor(keyBytes).saveEntry(keyBytes, value);
+            }
 
 
         } catch (RocksDBException e) {
+            throw RocksDbUtils.isWriteStall(e) ? new WriteStallException(e) : new LookupFailureException(e);
+        } catch (IllegalArgumentException e) {
             throw new LookupFailureException(e);
         }
     }
 
+    @Override
+    public void writeAll(List<Map<String, Object>> coordinatesList) throws LookupFailureException {
+        try {
+            List<Map.Entry<byte[], String>> puts = new ArrayList<>();
+            List<Map.Entry<byte[], String>> merges = new ArrayList<>();
+            for (Map<String, Object> coordinates : coordinatesList) {
+                if (coordinates.containsKey("key") && coordinates.containsKey("value")) {
+                    (isMerge(coordinates) ? merges : puts).add(new AbstractMap.SimpleEntry<>(
+                            keyEncoder.encode(coordinates.get("key").toString()), coordinates.get("value").toString()));
+                }
+            }
+            if (!puts.isEmpty()) {
+                saveEntries(puts, false);
+            }
+            if (!merges.isEmpty()) {
+                saveEntries(merges, true);
+            }
+        } catch (RocksDBException e) {
+            throw RocksDbUtils.isWriteStall(e) ? new WriteStallException(e) : new LookupFailureException(e);
+        } catch (IllegalArgumentException e) {
+            throw new LookupFailureException(e);
+        }
+    }
+
+    @Override
+    public List<Boolean> detectDuplicates(List<String> keys, long maxAgeMillis) throws LookupFailureException {
+        try {
+            // the identifiers are not keys of the data, the Key Encoding does not apply to them
+            List<byte[]> keyBytes = new ArrayList<>();
+            for (String key : keys) {
+                keyBytes.add(key.getBytes(StandardCharsets.UTF_8));
+            }
+            boolean[] duplicates = detectDuplicates(keyBytes, System.currentTimeMillis(), maxAgeMillis);
+            List<Boolean> result = new ArrayList<>();
+            for (boolean duplicate : duplicates) {
+                result.add(duplicate);
+            }
+            return result;
+        } catch (RocksDBException | IllegalArgumentException e) {
+            throw new LookupFailureException(e);
+        }
+    }
+
+    @Override
+    public void compact(String startKey, String endKey, boolean enableAutoCompactions) throws LookupFailureException {
+        try {
+            for (RocksDbUtils database : getDatabases()) {
+                database.compact(startKey == null ? null : keyEncoder.encode(startKey),
+                        endKey == null ? null : keyEncoder.encode(endKey), enableAutoCompactions);
+            }
+        } catch (RocksDBException | IllegalArgumentException e) {
+            throw new LookupFailureException(e);
+        }
+    }
+
+    @Override
+    public Map<String, Long> estimateCompression(int sampleSize, int maxDictBytes, int maxTrainBytes) throws LookupFailureException {
+        List<RocksDbUtils> databases = getDatabases();
+        List<Map.Entry<byte[], byte[]>> sample = new ArrayList<>();
+        try {
+            for (RocksDbUtils database : databases) {
+                sample.addAll(database.sampleEntries(Math.max(1, sampleSize / databases.size())));
+            }
+            // the keys of the shards are disjoint, but interleaved
+            sample.sort((a, b) -> Arrays.compareUnsigned(a.getKey(), b.getKey()));
+            return CompressionEstimator.estimate(sample, maxDictBytes, maxTrainBytes);
+        } catch (RocksDBException | IOException e) {
+            throw new LookupFailureException(e);
+        }
+    }
+
+    /**
+     * Returns the database that holds the given key.
+     */
+    protected RocksDbUtils databaseFor(byte[] key) {
+        return rocksDbUtils;
+    }
+
+    protected String findIterator(String key, String seekFor, Map<RocksDbUtils, ReadSnapshot> snapshot) throws RocksDBException {
+        return rocksDbUtils.findIterator(key, seekFor, snapshot.get(rocksDbUtils));
+    }
+
+    protected List<Map.Entry<byte[], String>> scanFrom(byte[] key, String seekFor, boolean reverse, int limit,
+                                                       Map<RocksDbUtils, ReadSnapshot> snapshot) throws RocksDBException {
+        return rocksDbUtils.scanFrom(key, seekFor, reverse, limit, snapshot.get(rocksDbUtils));
+    }
+
+    protected List<Map.Entry<byte[], String>> lookupIndex(String index, String value, int limit,
+                                                          Map<RocksDbUtils, ReadSnapshot> snapshot) throws RocksDBException {
+        return rocksDbUtils.lookupIndex(index, value, limit, snapshot.get(rocksDbUtils));
+    }
+
+    @Override
+    protected void closeDatabases() {
+        // the snapshots still held are released by the databases when closed
+        snapshots.clear();
+        recordCodec = null;
+        super.closeDatabases();
+    }
+
+    /**
+     * Returns the snapshot of each database referenced by the coordinates, empty if they do not reference any.
+     */
+    private Map<RocksDbUtils, ReadSnapshot> snapshotOf(Map<String, Object> coordinates) throws RocksDBException {
+        Object snapshotId = coordinates.get("snapshot");
+        if (snapshotId == null) {
+            return Map.of();
+        }
+        Map<RocksDbUtils, ReadSnapshot> databaseSnapshots = snapshots.get(snapshotId.toString());
+        if (databaseSnapshots == null) {
+            throw new RocksDBException("Snapshot " + snapshotId + " has been released or does not exist");
+        }
+        return databaseSnapshots;
+    }
+
+    protected void saveEntries(List<Map.Entry<byte[], String>> entries, boolean merge) throws RocksDBException {
+        rocksDbUtils.saveEntries(entries, merge);
+    }
+
+    /**
+     * Runs the tasks, each one reading or writing a single database, one after the other.
+     */
+    protected void runOnDatabases(List<Callable<Void>> tasks) throws RocksDBException {
+        try {
+            for (Callable<Void> task : tasks) {
+                task.call();
+            }
+        } catch (RocksDBException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    protected boolean[] detectDuplicates(List<byte[]> keys, long now, long maxAgeMillis) throws RocksDBException {
+        return rocksDbUtils.detectDuplicates(keys, now, maxAgeMillis);
+    }
+
+    /**
+     * Checks that the write mode of the coordinates, if any, matches the configured merge operator.
+     */
+    private boolean isMerge(Map<String, Object> coordinates) throws RocksDBException {
+        String writeMode = String.valueOf(coordinates.getOrDefault("writeMode", WRITE_MODE_PUT));
+        if (WRITE_MODE_INCREMENT.equals(writeMode) && !MERGE_UINT64_ADD.equals(mergeOperator)
+                || WRITE_MODE_APPEND.equals(writeMode) && !MERGE_STRING_APPEND.equals(mergeOperator)) {
+            throw new RocksDBException("Write mode " + writeMode + " is not supported by merge operator " + mergeOperator);
+        }
+        return !WRITE_MODE_PUT.equals(writeMode);
+    }
+
 }
@@ -0,0 +1,390 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.org.nifi.rocksdbmanager.services;
+
+import it.org.nifi.rocksdbmanager.exception.LookupFailureException;
+import it.org.nifi.rocksdbmanager.processors.RocksDbReader;
+import it.org.nifi.rocksdbmanager.processors.RocksDbWriter;
+import it.org.nifi.rocksdbmanager.utils.LatencyTrace;
+import it.org.nifi.rocksdbmanager.utils.ReadSnapshot;
+import it.org.nifi.rocksdbmanager.utils.RocksDbUtils;
+import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.rocksdb.RocksDBException;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Collectors;
+
+import static it.org.nifi.rocksdbmanager.utils.PropertyDescriptorUtils.*;
+
+@Tags({"rocksdb", "service", "shard"})
+@CapabilityDescription("Service that spreads the keys over several RocksDbs, possibly on different disks, hashing each key " +
+        "to one of them. Batched reads and writes run on all the shards in parallel. The order of the paths determines " +
+        "the shard of every key, so it must not change once the databases hold data.")
+@SeeAlso({RocksDbReader.class, RocksDbWriter.class, RocksDbService.class})
+@DynamicProperty(name = "Option name", value = "Option value",
+        expressionLanguageScope = ExpressionLanguageScope.FLOWFILE_ATTRIBUTES,
+        description = "Opens every shard with specified options, as the dynamic properties of the RocksDbService.")
+public class ShardedRocksDbService extends RocksDbService {
+
+    public static final PropertyDescriptor DATABASE_PATHS = new PropertyDescriptor.Builder()
+            .name("database-paths")
+            .displayName("Database Paths")
+            .description("Comma separated paths of the rocksdbs to open, one for each shard. The Block Cache Size applies to each shard.")
+            .required(true)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor STATISTICS_LOG_INTERVAL = new PropertyDescriptor.Builder()
+            .name("statistics-log-interval")
+            .displayName("Statistics Log Interval")
+            .description("Interval between two logs of the load spread over the shards: for each shard the operations " +
+                    "routed to it, the estimated number of keys and the size of the SST files. A shard getting more than " +
+                    "twice its share of the operations in the interval is reported with a warning. The load spread is " +
+                    "also logged when the service is disabled.")
+            .required(true)
+            .defaultValue("5 min")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    private static final Comparator<Map.Entry<byte[], String>> BY_KEY = (a, b) -> Arrays.compareUnsigned(a.getKey(), b.getKey());
+
+    private List<RocksDbUtils> shards = List.of();
+    private List<String> shardPaths = List.of();
+    private AtomicLongArray shardOperations = new AtomicLongArray(0);
+    private ExecutorService shardExecutor;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        final List<PropertyDescriptor> properties = new ArrayList<>(super.getSupportedPropertyDescriptors());
+        properties.set(properties.indexOf(DATABASE_PATH), DATABASE_PATHS);
+        properties.add(STATISTICS_LOG_INTERVAL);
+        return properties;
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(ValidationContext validationContext) {
+        List<ValidationResult> results = new ArrayList<>(super.customValidate(validationContext));
+        String paths = validationContext.getProperty(DATABASE_PATHS).getValue();
+        if (paths != null) {
+            for (String path : splitPaths(paths)) {
+                if (!new File(path).isDirectory()) {
+                    results.add(new ValidationResult.Builder()
+                            .subject(DATABASE_PATHS.getDisplayName())
+                            .input(path)
+                            .valid(false)
+                            .explanation("Directory " + path + " does not exist")
+                            .build());
+                }
+            }
+        }
+        return results;
+    }
+
+    @Override
+    protected void openDatabases(ConfigurationContext context, HashMap<String, String> dynamicProperties) throws Exception {
+        List<String> paths = splitPaths(context.getProperty(DATABASE_PATHS).getValue());
+        List<RocksDbUtils> opened = new ArrayList<>();
+        try {
+            for (String path : paths) {
+                RocksDbUtils shard = new RocksDbUtils();
+                initDatabase(shard, path, context, dynamicProperties);
+                opened.add(shard);
+            }
+        } catch (Exception e) {
+            opened.forEach(RocksDbUtils::resetDb);
+            throw e;
+        }
+        shards = opened;
+        shardPaths = paths;
+        shardOperations = new AtomicLongArray(paths.size());
+        shardExecutor = Executors.newFixedThreadPool(paths.size(), runnable -> {
+            Thread thread = new Thread(runnable, "RocksDb shard " + getIdentifier());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    protected void startMaintenance(ConfigurationContext context) {
+        super.startMaintenance(context);
+        final long[] loggedOperations = new long[shards.size()];
+        scheduleMaintenance(context.getProperty(STATISTICS_LOG_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS), () -> {
+            List<Map<String, Object>> statistics = getShardStatistics();
+            long total = 0;
+            long busiest = 0;
+            for (int i = 0; i < statistics.size(); i++) {
+                long operations = (Long) statistics.get(i).get("operations");
+                total += operations - loggedOperations[i];
+                busiest = Math.max(busiest, operations - loggedOperations[i]);
+                loggedOperations[i] = operations;
+            }
+            if (statistics.size() > 1 && total > 0 && busiest > 2 * total / statistics.size()) {
+                getLogger().warn("Unbalanced shards, {} of the last {} operations went to a single shard, load spread: {}",
+                        busiest, total, statistics);
+            } else {
+                getLogger().info("Load spread over the shards: {}", statistics);
+            }
+        });
+    }
+
+    @Override
+    protected void closeDatabases() {
+        if (!shards.isEmpty()) {
+            getLogger().info("Closing shards, load spread: {}", getShardStatistics());
+        }
+        if (shardExecutor != null) {
+            shardExecutor.shutdownNow();
+            shardExecutor = null;
+        }
+        super.closeDatabases();
+        shards = List.of();
+    }
+
+    @Override
+    protected List<RocksDbUtils> getDatabases() {
+        return shards;
+    }
+
+    @Override
+    protected RocksDbUtils databaseFor(byte[] key) {
+        int shard = shardOf(key, shards.size());
+        shardOperations.incrementAndGet(shard);
+        return shards.get(shard);
+    }
+
+    /**
+     * Merges the results of all the shards, so that the iterator search sees the keys in the same order as a single database.
+     */
+    @Override
+    protected String findIterator(String key, String seekFor, Map<RocksDbUtils, ReadSnapshot> snapshot) throws RocksDBException {
+        return landingEntry(keyEncoder.encode(key), seekFor, snapshot).map(Map.Entry::getValue).orElse(null);
+    }
+
+    @Override
+    protected List<Map.Entry<byte[], String>> scanFrom(byte[] key, String seekFor, boolean reverse, int limit,
+                                                       Map<RocksDbUtils, ReadSnapshot> snapshot) throws RocksDBException {
+        Optional<Map.Entry<byte[], String>> landing = landingEntry(key, seekFor, snapshot);
+        if (landing.isEmpty()) {
+            return List.of();
+        }
+        List<Map.Entry<byte[], String>> entries = new ArrayList<>();
+        for (RocksDbUtils shard : shards) {
+            entries.addAll(shard.scan(landing.get().getKey(), reverse, limit, snapshot.get(shard)));
+        }
+        entries.sort(reverse ? BY_KEY.reversed() : BY_KEY);
+        return entries.subList(0, Math.min(limit, entries.size()));
+    }
+
+    /**
+     * Every shard indexes the entries it holds, so the lookup merges the matches of all the shards.
+     */
+    @Override
+    protected List<Map.Entry<byte[], String>> lookupIndex(String index, String value, int limit,
+                                                          Map<RocksDbUtils, ReadSnapshot> snapshot) throws RocksDBException {
+        List<Map.Entry<byte[], String>> entries = new ArrayList<>();
+        for (RocksDbUtils shard : shards) {
+            entries.addAll(shard.lookupIndex(index, value, limit, snapshot.get(shard)));
+        }
+        entries.sort(BY_KEY);
+        return entries.subList(0, Math.min(limit, entries.size()));
+    }
+
+    /**
+     * The shards share the Data Paths, the WAL Directory and the Hot Keys Directory, each one in its own subdirectory named after its position.
+     */
+    @Override
+    protected File storageDirectory(File directory, String path, ConfigurationContext context) {
+        return new File(directory, "shard" + splitPaths(context.getProperty(DATABASE_PATHS).getValue()).indexOf(path));
+    }
+
+    private Optional<Map.Entry<byte[], String>> landingEntry(byte[] key, String seekFor,
+                                                             Map<RocksDbUtils, ReadSnapshot> snapshot) throws RocksDBException {
+        List<Map.Entry<byte[], String>> entries = new ArrayList<>();
+        if (SEEK_NEXT.equals(seekFor)) {
+            // the entry following the first key greater than or equal to the given one
+            for (RocksDbUtils shard : shards) {
+                entries.addAll(shard.scan(key, false, 2, snapshot.get(shard)));
+            }
+            entries.sort(BY_KEY);
+            return entries.size() > 1 ? Optional.of(entries.get(1)) : Optional.empty();
+        } else if (SEEK_PREV.equals(seekFor)) {
+            // the last key strictly less than the given one
+            for (RocksDbUtils shard : shards) {
+                shard.scan(key, true, 2, snapshot.get(shard)).stream()
+                        .filter(entry -> !Arrays.equals(entry.getKey(), key))
+                        .findFirst()
+                        .ifPresent(entries::add);
+            }
+            return entries.stream().max(BY_KEY);
+        } else if (SEEK_FOR_PREV.equals(seekFor)) {
+            for (RocksDbUtils shard : shards) {
+                entries.addAll(shard.scan(key, true, 1, snapshot.get(shard)));
+            }
+            return entries.stream().max(BY_KEY);
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    protected void saveEntries(List<Map.Entry<byte[], String>> entries, boolean merge) throws RocksDBException {
+        Map<RocksDbUtils, List<Map.Entry<byte[], String>>> entriesByShard = entries.stream()
+                .collect(Collectors.groupingBy(entry -> databaseFor(entry.getKey()), LinkedHashMap::new, Collectors.toList()));
+        List<Callable<Void>> tasks = new ArrayList<>();
+        entriesByShard.forEach((shard, shardEntries) -> tasks.add(() -> {
+            shard.saveEntries(shardEntries, merge);
+            return null;
+        }));
+        runOnShards(tasks);
+    }
+
+    @Override
+    protected boolean[] detectDuplicates(List<byte[]> keys, long now, long maxAgeMillis) throws RocksDBException {
+        Map<RocksDbUtils, List<Integer>> indexesByShard = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            indexesByShard.computeIfAbsent(databaseFor(keys.get(i)), ignored -> new ArrayList<>()).add(i);
+        }
+        boolean[] duplicates = new boolean[keys.size()];
+        List<Callable<Void>> tasks = new ArrayList<>();
+        indexesByShard.forEach((shard, indexes) -> tasks.add(() -> {
+            boolean[] shardDuplicates = shard.detectDuplicates(
+                    indexes.stream().map(keys::get).collect(Collectors.toList()), now, maxAgeMillis);
+            for (int i = 0; i < indexes.size(); i++) {
+                duplicates[indexes.get(i)] = shardDuplicates[i];
+            }
+            return null;
+        }));
+        runOnShards(tasks);
+        return duplicates;
+    }
+
+    /**
+     * Runs the tasks in parallel, on the threads of the shards. The latency trace of a sampled shard operation
+     * is handed over to the calling thread, for {@link #takeLatencyAttributes()}.
+     */
+    @Override
+    protected void runOnDatabases(List<Callable<Void>> tasks) throws RocksDBException {
+        runOnShards(tasks);
+    }
+
+    /**
+     * Returns, for each shard, its path, the number of operations routed to it
+     * and the estimated number of keys and size of the SST files.
+     */
+    public List<Map<String, Object>> getShardStatistics() {
+        List<Map<String, Object>> statistics = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) {
+            Map<String, Object> shardStatistics = new LinkedHashMap<>();
+            shardStatistics.put("path", shardPaths.get(i));
+            shardStatistics.put("operations", shardOperations.get(i));
+            try {
+                shardStatistics.put("estimatedKeys", shards.get(i).getLongProperty("rocksdb.estimate-num-keys"));
+                shardStatistics.put("sstFilesSize", shards.get(i).getLongProperty("rocksdb.total-sst-files-size"));
+            } catch (RocksDBException e) {
+                getLogger().debug("Unable to read the properties of shard {}", shardPaths.get(i), e);
+            }
+            statistics.add(shardStatistics);
+        }
+        return statistics;
+    }
+
+    static int shardOf(byte[] key, int shardCount) {
+        // spreads the bits of the hash code, so that keys differing only in the last bytes change shard
+        int hash = Arrays.hashCode(key) * 0x9E3779B9;
+        return Math.floorMod(hash ^ (hash >>> 16), shardCount);
+    }
+
+    private void runOnShards(List<Callable<Void>> tasks) throws RocksDBException {
+        try {
+            if (tasks.size() == 1) {
+                tasks.get(0).call();
+                return;
+            }
+            // the traces are taken on the shard threads and handed over to the calling thread
+            List<Callable<LatencyTrace>> tracedTasks = new ArrayList<>();
+            for (Callable<Void> task : tasks) {
+                tracedTasks.add(() -> {
+                    try {
+                        task.call();
+                    } catch (Exception e) {
+                        RocksDbUtils.takeLatencyTrace();
+                        throw e;
+                    }
+                    return RocksDbUtils.takeLatencyTrace();
+                });
+            }
+            LatencyTrace trace = null;
+            for (Future<LatencyTrace> future : shardExecutor.invokeAll(tracedTasks)) {
+                LatencyTrace shardTrace = future.get();
+                trace = shardTrace == null ? trace : shardTrace;
+            }
+            RocksDbUtils.handOverLatencyTrace(trace);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw toRocksDBException(e.getCause());
+        } catch (Exception e) {
+            throw toRocksDBException(e);
+        }
+    }
+
+    private static RocksDBException toRocksDBException(Throwable failure) {
+        if (failure instanceof RocksDBException) {
+            return (RocksDBException) failure;
+        }
+        if (failure instanceof LookupFailureException && failure.getCause() instanceof RocksDBException) {
+            return (RocksDBException) failure.getCause();
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        throw new RuntimeException(failure);
+    }
+
+    private static List<String> splitPaths(String paths) {
+        return Arrays.stream(paths.split(","))
+                .map(String::trim)
+                .filter(path -> !path.isEmpty())
+                .collect(Collectors.toList());
+    }
+}
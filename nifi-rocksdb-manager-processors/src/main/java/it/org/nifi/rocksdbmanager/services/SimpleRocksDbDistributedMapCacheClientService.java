@@ -17,139 +17,59 @@
 
 package it.org.nifi.rocksdbmanager.services;
 
+import it.org.nifi.rocksdbmanager.utils.DirectBufferOutputStream;
 import it.org.nifi.rocksdbmanager.utils.RocksDbUtils;
-import org.apache.nifi.annotation.lifecycle.OnDisabled;
-import org.apache.nifi.annotation.lifecycle.OnEnabled;
-import org.apache.nifi.components.PropertyDescriptor;
-import org.apache.nifi.controller.AbstractControllerService;
-import org.apache.nifi.controller.ConfigurationContext;
+import it.org.nifi.rocksdbmanager.utils.SerializationBuffers;
 import org.apache.nifi.distributed.cache.client.Deserializer;
 import org.apache.nifi.distributed.cache.client.DistributedMapCacheClient;
 import org.apache.nifi.distributed.cache.client.Serializer;
-import org.apache.nifi.expression.AttributeExpression;
-import org.apache.nifi.expression.ExpressionLanguageScope;
-import org.apache.nifi.processor.util.StandardValidators;
-import org.apache.nifi.util.Tuple;
 import org.rocksdb.RocksDBException;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
-import static it.org.nifi.rocksdbmanager.utils.PropertyDescriptorUtils.READANDWRITE;
-import static it.org.nifi.rocksdbmanager.utils.PropertyDescriptorUtils.READONLY;
-
-
-public class SimpleRocksDbDistributedMapCacheClientService extends AbstractControllerService implements DistributedMapCacheClient {
-
-
-    public static final PropertyDescriptor DATABASE_PATH = new PropertyDescriptor.Builder()
-            .name("database-path")
-            .displayName("Database Path")
-            .description("The path of the rocksdb to open and utilize.")
-            .required(true)
-            .addValidator(StandardValidators.DirectoryExistsValidator.VALID)
-            .build();
-
-    public static final PropertyDescriptor OPEN_MODE = new PropertyDescriptor.Builder()
-            .name("open-mode")
-            .displayName("Open Mode")
-            .description("Mode to open RocksDB. Choosing \"".concat(READONLY).concat("\" allows just reads on the Rocksdb." +
-                    "\"".concat(READANDWRITE).concat("\" mode allows read and writes inside the database.")))
-            .required(true)
-            .defaultValue(READANDWRITE)
-            .allowableValues(Set.of(READANDWRITE, READONLY))
-            .build();
-
-    public RocksDbUtils rocksDbUtils;
-
-    @Override
-    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
-        final List<PropertyDescriptor> properties = new ArrayList<>();
-        properties.add(DATABASE_PATH);
-        properties.add(OPEN_MODE);
-        return properties;
-    }
-
-    @Override
-    protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(String propertyDescriptorName) {
-        return new PropertyDescriptor.Builder()
-                .name(propertyDescriptorName)
-                .required(false)
-                .addValidator(StandardValidators.createAttributeExpressionLanguageValidator(AttributeExpression.ResultType.STRING, true))
-                .addValidator(StandardValidators.ATTRIBUTE_KEY_PROPERTY_NAME_VALIDATOR)
-                .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
-                .dynamic(true)
-                .build();
-    }
-
-    @OnEnabled
-    public void onEnabled(final ConfigurationContext context) {
-        String fileDirectory = context.getProperty(DATABASE_PATH).getValue();
-        HashMap<String, String> dynamicProperties = new HashMap<>();
-        for (PropertyDescriptor entry : context.getProperties().keySet()) {
-            if (entry.isDynamic()) {
-                dynamicProperties.put(entry.getName(), context.getProperty(entry).getValue());
-            }
-        }
-
-        rocksDbUtils = new RocksDbUtils();
-
-        try {
-            if (READANDWRITE.equals(context.getProperty(OPEN_MODE).getValue())) {
-                rocksDbUtils.initDbWrite(fileDirectory, dynamicProperties);
-            } else if (READONLY.equals(context.getProperty(OPEN_MODE).getValue())) {
-                rocksDbUtils.initDbReadOnly(fileDirectory, dynamicProperties);
-            } else {
-                throw new RocksDBException("OpenMode not specified is not allowed.");
-            }
-
-        } catch (RocksDBException ex) {
-            getLogger().error("RocksDB not initialized in {} mode, service cannot start.\n" +
-                    "The error is:\n {}", context.getProperty(OPEN_MODE).getValue(), ex.getMessage());
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    @OnDisabled
-    public void onDisable() {
-        rocksDbUtils.resetDb();
-    }
+public class SimpleRocksDbDistributedMapCacheClientService extends AbstractRocksDbService implements DistributedMapCacheClient {
 
 
     @Override
     public <K, V> boolean putIfAbsent(K key, V value, Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException {
-        final Tuple<byte[], byte[]> kv = serialize(key, value, keySerializer, valueSerializer);
+        checkWriteStall();
+        final ByteBuffer k = serializeKey(key, keySerializer);
+        final ByteBuffer v = serializeValue(value, valueSerializer);
         try {
-            return rocksDbUtils.put(kv.getKey(), kv.getValue());
+            return rocksDbUtils.put(k, v);
         } catch (RocksDBException e) {
-            throw new RuntimeException(e);
+            throw writeFailure(e);
         }
     }
 
     @Override
     public <K, V> V getAndPutIfAbsent(K key, V value, Serializer<K> keySerializer, Serializer<V> valueSerializer, Deserializer<V> valueDeserializer) throws IOException {
-        final Tuple<byte[], byte[]> kv = serialize(key, value, keySerializer, valueSerializer);
+        final ByteBuffer k = serializeKey(key, keySerializer);
         try {
-            final byte[] existingValue = rocksDbUtils.find(kv.getKey());
+            final byte[] existingValue = rocksDbUtils.find(k);
             if (existingValue != null) {
                 return valueDeserializer.deserialize(existingValue);
             } else {
-                rocksDbUtils.put(kv.getKey(), kv.getValue());
+                checkWriteStall();
+                rocksDbUtils.put(k, serializeValue(value, valueSerializer));
             }
         } catch (RocksDBException e) {
-            throw new RuntimeException(e);
+            throw writeFailure(e);
         }
         return null;
     }
 
     @Override
     public <K> boolean containsKey(K key, Serializer<K> serializer) throws IOException {
-        final byte[] k = serialize(key, serializer);
+        final ByteBuffer k = serializeKey(key, serializer);
         try {
             return rocksDbUtils.containsKey(k);
         } catch (RocksDBException e) {
@@ -160,18 +80,20 @@ public class SimpleRocksDbDistributedMapCacheClientService extends AbstractContr
 
     @Override
     public <K, V> void put(K key, V value, Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException {
-        final Tuple<byte[], byte[]> kv = serialize(key, value, keySerializer, valueSerializer);
+        checkWriteStall();
+        final ByteBuffer k = serializeKey(key, keySerializer);
+        final ByteBuffer v = serializeValue(value, valueSerializer);
         try {
-            rocksDbUtils.put(kv.getKey(), kv.getValue());
+            rocksDbUtils.put(k, v);
         } catch (RocksDBException e) {
-            throw new RuntimeException(e);
+            throw writeFailure(e);
         }
 
     }
 
     @Override
     public <K, V> V get(K key, Serializer<K> keySerializer, Deserializer<V> valueDeserializer) throws IOException {
-        final byte[] k = serialize(key, keySerializer);
+        final ByteBuffer k = serializeKey(key, keySerializer);
         try {
             final byte[] existingValue = rocksDbUtils.find(k);
             return existingValue != null ? valueDeserializer.deserialize(existingValue) : null;
@@ -181,6 +103,63 @@ public class SimpleRocksDbDistributedMapCacheClientService extends AbstractContr
 
     }
 
+    @Override
+    public <K, V> void putAll(Map<K, V> keysAndValues, Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException {
+        checkWriteStall();
+        final List<Map.Entry<byte[], byte[]>> entries = new ArrayList<>(keysAndValues.size());
+        for (Map.Entry<K, V> entry : keysAndValues.entrySet()) {
+            entries.add(new AbstractMap.SimpleEntry<>(toArray(serializeKey(entry.getKey(), keySerializer)),
+                    toArray(serializeValue(entry.getValue(), valueSerializer))));
+        }
+        try {
+            rocksDbUtils.putAll(entries);
+        } catch (RocksDBException e) {
+            throw writeFailure(e);
+        }
+    }
+
+    @Override
+    public <K, V> Map<K, V> subMap(Set<K> keys, Serializer<K> keySerializer, Deserializer<V> valueDeserializer) throws IOException {
+        if (keys == null) {
+            return null;
+        }
+        final List<K> orderedKeys = new ArrayList<>(keys);
+        final List<byte[]> serializedKeys = new ArrayList<>(orderedKeys.size());
+        for (K key : orderedKeys) {
+            serializedKeys.add(toArray(serializeKey(key, keySerializer)));
+        }
+        final List<byte[]> values;
+        try {
+            values = rocksDbUtils.findAll(serializedKeys);
+        } catch (RocksDBException e) {
+            throw new RuntimeException(e);
+        }
+        final Map<K, V> results = new HashMap<>(orderedKeys.size());
+        for (int i = 0; i < orderedKeys.size(); i++) {
+            final byte[] value = values.get(i);
+            results.put(orderedKeys.get(i), value != null ? valueDeserializer.deserialize(value) : null);
+        }
+        return results;
+    }
+
+    /**
+     * Removes all the keys with a single write.
+     *
+     * @return the number of keys that were in the cache
+     */
+    public <K> long removeAll(Collection<K> keys, Serializer<K> keySerializer) throws IOException {
+        checkWriteStall();
+        final List<byte[]> serializedKeys = new ArrayList<>(keys.size());
+        for (K key : keys) {
+            serializedKeys.add(toArray(serializeKey(key, keySerializer)));
+        }
+        try {
+            return rocksDbUtils.deleteAll(serializedKeys);
+        } catch (RocksDBException e) {
+            throw writeFailure(e);
+        }
+    }
+
     @Override
     public void close() {
         //nothing to do
@@ -188,11 +167,12 @@ public class SimpleRocksDbDistributedMapCacheClientService extends AbstractContr
 
     @Override
     public <K> boolean remove(K key, Serializer<K> keySerializer) throws IOException {
-        final byte[] k = serialize(key, keySerializer);
+        checkWriteStall();
+        final ByteBuffer k = serializeKey(key, keySerializer);
         try {
             return rocksDbUtils.delete(k);
         } catch (RocksDBException e) {
-            throw new RuntimeException(e);
+            throw writeFailure(e);
         }
     }
 
@@ -201,24 +181,47 @@ public class SimpleRocksDbDistributedMapCacheClientService extends AbstractContr
         throw new UnsupportedOperationException();
     }
 
-    protected <K, V> Tuple<byte[], byte[]> serialize(final K key, final V value, final Serializer<K> keySerializer, final Serializer<V> valueSerializer) throws IOException {
-        final ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-        keySerializer.serialize(key, out);
-        final byte[] k = out.toByteArray();
-
-        out.reset();
+    /**
+     * Fails the write with an IOException while RocksDB stalls the writes, instead of blocking the calling thread.
+     */
+    protected void checkWriteStall() throws IOException {
+        if (isWriteStalled()) {
+            throw new IOException("RocksDB writes are stalled");
+        }
+    }
 
-        valueSerializer.serialize(value, out);
-        final byte[] v = out.toByteArray();
+    /**
+     * Returns the IOException of a write rejected by a stall, which the callers handle as a transient failure,
+     * or throws any other failure as a RuntimeException.
+     */
+    protected static IOException writeFailure(RocksDBException e) {
+        if (RocksDbUtils.isWriteStall(e)) {
+            return new IOException("RocksDB writes are stalled", e);
+        }
+        throw new RuntimeException(e);
+    }
 
-        return new Tuple<>(k, v);
+    /**
+     * Serializes the key into the direct key buffer of the current thread, valid until the next key serialization.
+     */
+    protected <K> ByteBuffer serializeKey(final K key, final Serializer<K> keySerializer) throws IOException {
+        final DirectBufferOutputStream out = SerializationBuffers.get().key();
+        keySerializer.serialize(key, out);
+        return out.toByteBuffer();
     }
 
-    protected <K> byte[] serialize(final K key, final Serializer<K> keySerializer) throws IOException {
-        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private static byte[] toArray(ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
 
-        keySerializer.serialize(key, out);
-        return out.toByteArray();
+    /**
+     * Serializes the value into the direct value buffer of the current thread, valid until the next value serialization.
+     */
+    protected <V> ByteBuffer serializeValue(final V value, final Serializer<V> valueSerializer) throws IOException {
+        final DirectBufferOutputStream out = SerializationBuffers.get().value();
+        valueSerializer.serialize(value, out);
+        return out.toByteBuffer();
     }
 }
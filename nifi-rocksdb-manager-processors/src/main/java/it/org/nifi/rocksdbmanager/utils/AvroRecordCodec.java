@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.org.nifi.rocksdbmanager.utils;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.message.BinaryMessageDecoder;
+import org.apache.avro.message.BinaryMessageEncoder;
+import org.apache.avro.message.SchemaStore;
+import org.apache.nifi.avro.AvroTypeUtil;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.schemaregistry.services.SchemaRegistry;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.SchemaIdentifier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes record values with the Avro single object encoding: a header with the fingerprint of the schema,
+ * followed by the Avro binary of the record. Values can be given and returned as JSON objects. Values written with an
+ * older version of the schema are resolved to the current one, the older versions being retrieved from the registry.
+ */
+public class AvroRecordCodec {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final TypeReference<Map<String, Object>> JSON_OBJECT = new TypeReference<>() {
+    };
+
+    private final RecordSchema recordSchema;
+    private final Schema avroSchema;
+    private final BinaryMessageEncoder<GenericRecord> encoder;
+    private final BinaryMessageDecoder<GenericRecord> decoder;
+
+    public AvroRecordCodec(RecordSchema recordSchema) {
+        this(recordSchema, null, null, 0);
+    }
+
+    /**
+     * @param schemaRegistry the registry of the older versions of the schema, or null if only the current one is read
+     * @param schemaName     the name of the schema in the registry
+     * @param schemaVersion  the version of the current schema, the versions from 1 up to it being resolved, or 0 if unknown
+     */
+    public AvroRecordCodec(RecordSchema recordSchema, SchemaRegistry schemaRegistry, String schemaName, int schemaVersion) {
+        this.recordSchema = recordSchema;
+        this.avroSchema = AvroTypeUtil.extractAvroSchema(recordSchema);
+        this.encoder = new BinaryMessageEncoder<>(GenericData.get(), avroSchema);
+        this.decoder = schemaRegistry == null || schemaVersion <= 1
+                ? new BinaryMessageDecoder<>(GenericData.get(), avroSchema)
+                : new BinaryMessageDecoder<>(GenericData.get(), avroSchema, new RegistrySchemaStore(schemaRegistry, schemaName, schemaVersion));
+    }
+
+    public RecordSchema getRecordSchema() {
+        return recordSchema;
+    }
+
+    public byte[] encode(Record record) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            encoder.encode(AvroTypeUtil.createAvroRecord(record, avroSchema), out);
+            return out.toByteArray();
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalArgumentException("Value is not a record of schema " + avroSchema.getFullName(), e);
+        }
+    }
+
+    public byte[] encodeJson(String json) {
+        Map<String, Object> fields;
+        try {
+            fields = OBJECT_MAPPER.readValue(json, JSON_OBJECT);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Value is not a JSON object", e);
+        }
+        return encode(new MapRecord(recordSchema, fields));
+    }
+
+    public Record decode(byte[] value) {
+        try {
+            return new MapRecord(recordSchema, AvroTypeUtil.convertAvroRecordToMap(decoder.decode(value), recordSchema));
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalStateException("Value is not a record of schema " + avroSchema.getFullName(), e);
+        }
+    }
+
+    public String decodeJson(byte[] value) {
+        try {
+            return OBJECT_MAPPER.writeValueAsString(toJsonValue(decode(value)));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Resolves the fingerprints of the older versions of the schema, retrieving all of them from the registry
+     * the first time a value is written with an unknown fingerprint.
+     */
+    private static final class RegistrySchemaStore implements SchemaStore {
+
+        private final SchemaRegistry schemaRegistry;
+        private final String schemaName;
+        private final int schemaVersion;
+        private final SchemaStore.Cache schemas = new SchemaStore.Cache();
+        private volatile boolean loaded;
+
+        private RegistrySchemaStore(SchemaRegistry schemaRegistry, String schemaName, int schemaVersion) {
+            this.schemaRegistry = schemaRegistry;
+            this.schemaName = schemaName;
+            this.schemaVersion = schemaVersion;
+        }
+
+        @Override
+        public Schema findByFingerprint(long fingerprint) {
+            if (!loaded) {
+                loadVersions();
+            }
+            return schemas.findByFingerprint(fingerprint);
+        }
+
+        private synchronized void loadVersions() {
+            if (loaded) {
+                return;
+            }
+            for (int version = 1; version < schemaVersion; version++) {
+                try {
+                    RecordSchema schema = schemaRegistry.retrieveSchema(SchemaIdentifier.builder().name(schemaName).version(version).build());
+                    schemas.addSchema(AvroTypeUtil.extractAvroSchema(schema));
+                } catch (SchemaNotFoundException e) {
+                    // a deleted version can not have written values that are still read
+                } catch (IOException e) {
+                    throw new IllegalStateException("Failed to retrieve version " + version + " of schema " + schemaName, e);
+                }
+            }
+            loaded = true;
+        }
+    }
+
+    private static Object toJsonValue(Object value) {
+        if (value instanceof Record) {
+            Map<String, Object> object = new LinkedHashMap<>();
+            for (Map.Entry<String, Object> field : ((Record) value).toMap().entrySet()) {
+                object.put(field.getKey(), toJsonValue(field.getValue()));
+            }
+            return object;
+        } else if (value instanceof Map) {
+            Map<Object, Object> object = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                object.put(entry.getKey(), toJsonValue(entry.getValue()));
+            }
+            return object;
+        } else if (value instanceof Object[]) {
+            List<Object> array = new ArrayList<>();
+            for (Object element : (Object[]) value) {
+                array.add(toJsonValue(element));
+            }
+            return array;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.org.nifi.rocksdbmanager.utils;
+
+import org.rocksdb.CompressionOptions;
+import org.rocksdb.CompressionType;
+import org.rocksdb.EnvOptions;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.SstFileWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Estimates how much a sample of the entries shrinks with each compression, writing it to an SST file with each one
+ * as the flushes and compactions do, so that the block, index and filter layout is accounted for.
+ */
+public class CompressionEstimator {
+
+    public static final String SAMPLE_ENTRIES = "sample.entries";
+    public static final String SAMPLE_BYTES = "sample.bytes";
+    public static final String NONE = "none";
+    public static final String SNAPPY = "snappy";
+    public static final String LZ4 = "lz4";
+    public static final String ZSTD = "zstd";
+    public static final String ZSTD_DICTIONARY = "zstd.dictionary";
+
+    private CompressionEstimator() {
+    }
+
+    /**
+     * Writes the entries, in key order, to an SST file per compression in a temporary directory.
+     *
+     * @param maxDictBytes  the size of the ZSTD dictionary, or 0 to leave out the dictionary compression
+     * @param maxTrainBytes the maximum size of the data the ZSTD dictionary is trained on
+     * @return the number and the size of the entries, under {@link #SAMPLE_ENTRIES} and {@link #SAMPLE_BYTES},
+     * and the size of the SST file by compression, {@link #NONE} being the uncompressed one
+     */
+    public static Map<String, Long> estimate(List<Map.Entry<byte[], byte[]>> entries, int maxDictBytes, int maxTrainBytes)
+            throws RocksDBException, IOException {
+        Map<String, Long> sizes = new LinkedHashMap<>();
+        sizes.put(SAMPLE_ENTRIES, (long) entries.size());
+        sizes.put(SAMPLE_BYTES, entries.stream().mapToLong(entry -> entry.getKey().length + entry.getValue().length).sum());
+        if (entries.isEmpty()) {
+            return sizes;
+        }
+        Path directory = Files.createTempDirectory("rocksdb-compression");
+        try {
+            sizes.put(NONE, sstFileSize(entries, directory, CompressionType.NO_COMPRESSION, 0, 0));
+            sizes.put(SNAPPY, sstFileSize(entries, directory, CompressionType.SNAPPY_COMPRESSION, 0, 0));
+            sizes.put(LZ4, sstFileSize(entries, directory, CompressionType.LZ4_COMPRESSION, 0, 0));
+            sizes.put(ZSTD, sstFileSize(entries, directory, CompressionType.ZSTD_COMPRESSION, 0, 0));
+            if (maxDictBytes > 0) {
+                sizes.put(ZSTD_DICTIONARY, sstFileSize(entries, directory, CompressionType.ZSTD_COMPRESSION, maxDictBytes, maxTrainBytes));
+            }
+        } finally {
+            File[] files = directory.toFile().listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    Files.deleteIfExists(file.toPath());
+                }
+            }
+            Files.deleteIfExists(directory);
+        }
+        return sizes;
+    }
+
+    private static long sstFileSize(List<Map.Entry<byte[], byte[]>> entries, Path directory, CompressionType compression,
+                                    int maxDictBytes, int maxTrainBytes) throws RocksDBException {
+        try (CompressionOptions compressionOptions = new CompressionOptions()
+                .setMaxDictBytes(maxDictBytes)
+                .setZStdMaxTrainBytes(maxTrainBytes);
+             Options options = new Options()
+                     .setCompressionType(compression)
+                     .setCompressionOptions(compressionOptions);
+             EnvOptions envOptions = new EnvOptions();
+             SstFileWriter writer = new SstFileWriter(envOptions, options)) {
+            File file = directory.resolve(compression.name() + "-" + maxDictBytes + ".sst").toFile();
+            writer.open(file.getAbsolutePath());
+            for (Map.Entry<byte[], byte[]> entry : entries) {
+                writer.put(entry.getKey(), entry.getValue());
+            }
+            writer.finish();
+            return file.length();
+        }
+    }
+}
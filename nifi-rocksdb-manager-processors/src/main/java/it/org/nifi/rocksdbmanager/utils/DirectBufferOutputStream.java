@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.org.nifi.rocksdbmanager.utils;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Output stream writing into a growable direct buffer, meant to be reset and reused across serializations
+ * so that they allocate nothing once the buffer has grown to the largest size written.
+ */
+public class DirectBufferOutputStream extends OutputStream {
+
+    private final int initialCapacity;
+    private final int maxRetainedCapacity;
+    private ByteBuffer buffer;
+
+    public DirectBufferOutputStream(int initialCapacity) {
+        this(initialCapacity, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxRetainedCapacity the capacity above which the buffer grown for a large serialization is released on reset
+     */
+    public DirectBufferOutputStream(int initialCapacity, int maxRetainedCapacity) {
+        this.initialCapacity = initialCapacity;
+        this.maxRetainedCapacity = maxRetainedCapacity;
+        this.buffer = ByteBuffer.allocateDirect(initialCapacity);
+    }
+
+    @Override
+    public void write(int b) {
+        ensureRemaining(1);
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureRemaining(len);
+        buffer.put(b, off, len);
+    }
+
+    public void reset() {
+        if (buffer.capacity() > maxRetainedCapacity) {
+            buffer = ByteBuffer.allocateDirect(initialCapacity);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Returns the bytes written since the last reset, as the internal buffer flipped for reading.
+     * Nothing must be written until the next reset.
+     */
+    public ByteBuffer toByteBuffer() {
+        buffer.flip();
+        return buffer;
+    }
+
+    private void ensureRemaining(int length) {
+        if (buffer.remaining() < length) {
+            int capacity = Math.max(buffer.capacity() * 2, buffer.position() + length);
+            ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+}
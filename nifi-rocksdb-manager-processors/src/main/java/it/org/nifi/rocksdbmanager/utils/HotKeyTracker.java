@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.org.nifi.rocksdbmanager.utils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Counts a sample of the keys read, to record the most read ones when the database is closed
+ * and prefetch them when it is opened again. The file holds one Base64 encoded key per line, hottest first.
+ */
+public class HotKeyTracker {
+
+    private static final int SAMPLING_RATE = 16;
+
+    private final int maxKeys;
+    private final Map<ByteBuffer, AtomicLong> counts = new ConcurrentHashMap<>();
+
+    public HotKeyTracker(int maxKeys) {
+        this.maxKeys = maxKeys;
+    }
+
+    public void record(byte[] key) {
+        if (ThreadLocalRandom.current().nextInt(SAMPLING_RATE) != 0) {
+            return;
+        }
+        counts.computeIfAbsent(ByteBuffer.wrap(key.clone()), ignored -> new AtomicLong()).incrementAndGet();
+        if (counts.size() > 2 * maxKeys) {
+            prune();
+        }
+    }
+
+    public void record(ByteBuffer key) {
+        if (ThreadLocalRandom.current().nextInt(SAMPLING_RATE) != 0) {
+            return;
+        }
+        byte[] copy = new byte[key.remaining()];
+        key.duplicate().get(copy);
+        counts.computeIfAbsent(ByteBuffer.wrap(copy), ignored -> new AtomicLong()).incrementAndGet();
+        if (counts.size() > 2 * maxKeys) {
+            prune();
+        }
+    }
+
+    /**
+     * Returns up to the maximum number of keys, the most read first.
+     */
+    public List<byte[]> hottest() {
+        return counts.entrySet().stream()
+                .sorted(Comparator.comparingLong((Map.Entry<ByteBuffer, AtomicLong> entry) -> entry.getValue().get()).reversed())
+                .limit(maxKeys)
+                .map(entry -> entry.getKey().array())
+                .collect(Collectors.toList());
+    }
+
+    public void save(File file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            for (byte[] key : hottest()) {
+                writer.write(Base64.getEncoder().encodeToString(key));
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Reads the keys recorded in the file, empty if it does not exist.
+     */
+    public static List<byte[]> load(File file) throws IOException {
+        List<byte[]> keys = new ArrayList<>();
+        if (!file.isFile()) {
+            return keys;
+        }
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            if (!line.isBlank()) {
+                keys.add(Base64.getDecoder().decode(line.trim()));
+            }
+        }
+        return keys;
+    }
+
+    private synchronized void prune() {
+        if (counts.size() <= 2 * maxKeys) {
+            return;
+        }
+        // keeps the hottest keys, so that new keys still have room to be counted
+        Set<ByteBuffer> hottest = counts.entrySet().stream()
+                .sorted(Comparator.comparingLong((Map.Entry<ByteBuffer, AtomicLong> entry) -> entry.getValue().get()).reversed())
+                .limit(maxKeys)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toSet());
+        counts.keySet().retainAll(hottest);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.org.nifi.rocksdbmanager.utils;
+
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Iterators kept open for each thread and reused across seeks. An iterator is refreshed, to see the writes
+ * made since it was created, when it is acquired after the refresh interval has elapsed.
+ */
+public class IteratorPool {
+
+    private final Supplier<RocksIterator> factory;
+    private final long refreshIntervalNanos;
+    private final Map<Thread, PooledIterator> iterators = new ConcurrentHashMap<>();
+
+    public IteratorPool(Supplier<RocksIterator> factory, long refreshIntervalMillis) {
+        this.factory = factory;
+        this.refreshIntervalNanos = TimeUnit.MILLISECONDS.toNanos(refreshIntervalMillis);
+    }
+
+    /**
+     * Returns the iterator of the current thread, which must not be closed nor shared with other threads.
+     */
+    public RocksIterator acquire() throws RocksDBException {
+        long now = System.nanoTime();
+        PooledIterator pooled = iterators.get(Thread.currentThread());
+        if (pooled == null) {
+            iterators.entrySet().removeIf(entry -> {
+                if (!entry.getKey().isAlive()) {
+                    entry.getValue().iterator.close();
+                    return true;
+                }
+                return false;
+            });
+            pooled = new PooledIterator(factory.get(), now);
+            iterators.put(Thread.currentThread(), pooled);
+        } else if (now - pooled.refreshedAt >= refreshIntervalNanos) {
+            pooled.iterator.refresh();
+            pooled.refreshedAt = now;
+        }
+        return pooled.iterator;
+    }
+
+    public void close() {
+        iterators.values().forEach(pooled -> pooled.iterator.close());
+        iterators.clear();
+    }
+
+    private static class PooledIterator {
+        private final RocksIterator iterator;
+        private long refreshedAt;
+
+        private PooledIterator(RocksIterator iterator, long refreshedAt) {
+            this.iterator = iterator;
+            this.refreshedAt = refreshedAt;
+        }
+    }
+}
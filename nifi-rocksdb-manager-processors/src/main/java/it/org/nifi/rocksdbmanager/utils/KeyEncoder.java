@@ -0,0 +1,296 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.org.nifi.rocksdbmanager.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static it.org.nifi.rocksdbmanager.utils.PropertyDescriptorUtils.*;
+
+/**
+ * Converts the keys, given as strings, to the bytes stored in RocksDb and back. The binary encodings compare,
+ * byte by byte as RocksDB does, in the order of the numbers they encode: big endian fixed width numbers, with
+ * the sign bit flipped for the signed ones so that negative numbers come first. Tuples encode each component
+ * in turn, the strings escaped and terminated so that a shorter string sorts before the longer ones it is a
+ * prefix of; a key with fewer components than the tuple is the prefix of all the keys starting with them.
+ */
+public abstract class KeyEncoder {
+
+    public static final KeyEncoder UTF8 = new KeyEncoder() {
+        @Override
+        public byte[] encode(String key) {
+            return key.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(byte[] key) {
+            return new String(key, StandardCharsets.UTF_8);
+        }
+    };
+
+    public static final String TUPLE_STRING = "string";
+    public static final String TUPLE_LONG = "long";
+    public static final String TUPLE_INT = "int";
+
+    private static final byte ESCAPE = 0x00;
+    private static final byte ESCAPED_ZERO = (byte) 0xFF;
+    private static final byte TERMINATOR = 0x01;
+
+    /**
+     * Encodes the key, throwing an IllegalArgumentException if it does not fit the encoding.
+     */
+    public abstract byte[] encode(String key);
+
+    public abstract String decode(byte[] key);
+
+    /**
+     * Whether the keys start with a long timestamp, so that the keys older than a time are a single range.
+     */
+    public boolean isTimePrefixed() {
+        return false;
+    }
+
+    /**
+     * Whether the keys end with a long timestamp after a series, so that the keys of a series older than a time are a range.
+     */
+    public boolean isTimeSuffixed() {
+        return false;
+    }
+
+    /**
+     * Returns the encoded series of a time suffixed key, all its components but the timestamp, or null if the key
+     * does not have all the components of the tuple.
+     */
+    public byte[] seriesOf(byte[] key) {
+        throw new UnsupportedOperationException("Keys are not time suffixed");
+    }
+
+    /**
+     * Returns the encoded key of the timestamp, following the series if the keys are time suffixed, or the
+     * prefix of all the keys of the timestamp if they are time prefixed.
+     */
+    public byte[] timestampKey(byte[] series, long timestamp) {
+        throw new UnsupportedOperationException("Keys do not hold a timestamp");
+    }
+
+    /**
+     * Returns the encoder of the given Key Encoding, the tuple types and delimiter being used by the tuple encoding only.
+     */
+    public static KeyEncoder forEncoding(String encoding, List<String> tupleTypes, String tupleDelimiter) {
+        if (KEY_ENCODING_UNSIGNED_LONG.equals(encoding)) {
+            return new NumberEncoder(Long.BYTES, false);
+        } else if (KEY_ENCODING_SIGNED_LONG.equals(encoding)) {
+            return new NumberEncoder(Long.BYTES, true);
+        } else if (KEY_ENCODING_UNSIGNED_INT.equals(encoding)) {
+            return new NumberEncoder(Integer.BYTES, false);
+        } else if (KEY_ENCODING_SIGNED_INT.equals(encoding)) {
+            return new NumberEncoder(Integer.BYTES, true);
+        } else if (KEY_ENCODING_TUPLE.equals(encoding)) {
+            return new TupleEncoder(tupleTypes, tupleDelimiter);
+        }
+        return UTF8;
+    }
+
+    /**
+     * Parses the comma separated types of the tuple components.
+     */
+    public static List<String> parseTupleTypes(String tupleTypes) {
+        List<String> types = new ArrayList<>();
+        for (String type : tupleTypes.split(",")) {
+            String trimmed = type.trim().toLowerCase();
+            if (!TUPLE_STRING.equals(trimmed) && !TUPLE_LONG.equals(trimmed) && !TUPLE_INT.equals(trimmed)) {
+                throw new IllegalArgumentException("Unknown tuple type " + type.trim() + ", expected "
+                        + TUPLE_STRING + ", " + TUPLE_LONG + " or " + TUPLE_INT);
+            }
+            types.add(trimmed);
+        }
+        return types;
+    }
+
+    private static byte[] encodeNumber(String value, int width, boolean signed) {
+        ByteBuffer buffer = ByteBuffer.allocate(width);
+        try {
+            if (width == Long.BYTES) {
+                buffer.putLong(signed ? Long.parseLong(value.trim()) ^ Long.MIN_VALUE : Long.parseUnsignedLong(value.trim()));
+            } else {
+                buffer.putInt(signed ? Integer.parseInt(value.trim()) ^ Integer.MIN_VALUE : Integer.parseUnsignedInt(value.trim()));
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Key " + value + " is not a " + (signed ? "" : "unsigned ")
+                    + (width == Long.BYTES ? "long" : "int"), e);
+        }
+        return buffer.array();
+    }
+
+    private static String decodeNumber(ByteBuffer buffer, int width, boolean signed) {
+        if (buffer.remaining() < width) {
+            throw new IllegalArgumentException("Key of " + buffer.remaining() + " bytes is shorter than a " + width + " bytes number");
+        }
+        if (width == Long.BYTES) {
+            long value = buffer.getLong();
+            return signed ? Long.toString(value ^ Long.MIN_VALUE) : Long.toUnsignedString(value);
+        }
+        int value = buffer.getInt();
+        return signed ? Integer.toString(value ^ Integer.MIN_VALUE) : Integer.toUnsignedString(value);
+    }
+
+    private static class NumberEncoder extends KeyEncoder {
+        private final int width;
+        private final boolean signed;
+
+        private NumberEncoder(int width, boolean signed) {
+            this.width = width;
+            this.signed = signed;
+        }
+
+        @Override
+        public byte[] encode(String key) {
+            return encodeNumber(key, width, signed);
+        }
+
+        @Override
+        public String decode(byte[] key) {
+            if (key.length != width) {
+                throw new IllegalArgumentException("Key of " + key.length + " bytes is not a " + width + " bytes number");
+            }
+            return decodeNumber(ByteBuffer.wrap(key), width, signed);
+        }
+
+        @Override
+        public boolean isTimePrefixed() {
+            return width == Long.BYTES;
+        }
+
+        @Override
+        public byte[] timestampKey(byte[] series, long timestamp) {
+            if (!isTimePrefixed()) {
+                return super.timestampKey(series, timestamp);
+            }
+            return ByteBuffer.allocate(Long.BYTES).putLong(signed ? timestamp ^ Long.MIN_VALUE : Math.max(0, timestamp)).array();
+        }
+    }
+
+    private static class TupleEncoder extends KeyEncoder {
+        private final List<String> types;
+        private final String delimiter;
+        private final Pattern delimiterPattern;
+
+        private TupleEncoder(List<String> types, String delimiter) {
+            this.types = types;
+            this.delimiter = delimiter;
+            this.delimiterPattern = Pattern.compile(Pattern.quote(delimiter));
+        }
+
+        @Override
+        public byte[] encode(String key) {
+            String[] components = delimiterPattern.split(key, -1);
+            if (components.length > types.size()) {
+                throw new IllegalArgumentException("Key " + key + " has more than the " + types.size() + " components of the tuple");
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(key.length() + 8 * types.size());
+            for (int i = 0; i < components.length; i++) {
+                String type = types.get(i);
+                if (TUPLE_STRING.equals(type)) {
+                    for (byte b : components[i].getBytes(StandardCharsets.UTF_8)) {
+                        out.write(b);
+                        if (b == ESCAPE) {
+                            out.write(ESCAPED_ZERO);
+                        }
+                    }
+                    out.write(ESCAPE);
+                    out.write(TERMINATOR);
+                } else {
+                    out.writeBytes(encodeNumber(components[i], TUPLE_LONG.equals(type) ? Long.BYTES : Integer.BYTES, true));
+                }
+            }
+            return out.toByteArray();
+        }
+
+        @Override
+        public String decode(byte[] key) {
+            ByteBuffer buffer = ByteBuffer.wrap(key);
+            StringBuilder decoded = new StringBuilder();
+            for (int i = 0; i < types.size() && buffer.hasRemaining(); i++) {
+                if (i > 0) {
+                    decoded.append(delimiter);
+                }
+                String type = types.get(i);
+                if (TUPLE_STRING.equals(type)) {
+                    decoded.append(decodeString(buffer));
+                } else {
+                    decoded.append(decodeNumber(buffer, TUPLE_LONG.equals(type) ? Long.BYTES : Integer.BYTES, true));
+                }
+            }
+            return decoded.toString();
+        }
+
+        @Override
+        public boolean isTimePrefixed() {
+            return TUPLE_LONG.equals(types.get(0));
+        }
+
+        @Override
+        public boolean isTimeSuffixed() {
+            return types.size() > 1 && TUPLE_LONG.equals(types.get(types.size() - 1));
+        }
+
+        @Override
+        public byte[] seriesOf(byte[] key) {
+            if (!isTimeSuffixed()) {
+                return super.seriesOf(key);
+            }
+            try {
+                if (delimiterPattern.split(decode(key), -1).length < types.size()) {
+                    return null;
+                }
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            // the components but the timestamp are the prefix of the key
+            return Arrays.copyOf(key, key.length - Long.BYTES);
+        }
+
+        @Override
+        public byte[] timestampKey(byte[] series, long timestamp) {
+            if (!isTimePrefixed() && !isTimeSuffixed()) {
+                return super.timestampKey(series, timestamp);
+            }
+            return ByteBuffer.allocate(series.length + Long.BYTES).put(series).putLong(timestamp ^ Long.MIN_VALUE).array();
+        }
+
+        private static String decodeString(ByteBuffer buffer) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b != ESCAPE) {
+                    out.write(b);
+                } else if (!buffer.hasRemaining() || buffer.get() == TERMINATOR) {
+                    break;
+                } else {
+                    out.write(ESCAPE);
+                }
+            }
+            return out.toString(StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.org.nifi.rocksdbmanager.utils;
+
+import org.rocksdb.PerfContext;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Latency breakdown of a sampled read or write of a {@link RocksDbUtils}: the time spent waiting for its lock,
+ * serializing or deserializing the values and inside RocksDB, with the counters of the RocksDB PerfContext.
+ */
+public class LatencyTrace {
+
+    private static final String ATTRIBUTE_PREFIX = "rocksdb.latency.";
+
+    private final RocksDbUtils database;
+    private final boolean write;
+    private final long startedAt = System.nanoTime();
+    private long totalNanos;
+    private long lockWaitNanos;
+    private long codecNanos;
+    private final Map<String, Long> perfCounters = new LinkedHashMap<>();
+
+    LatencyTrace(RocksDbUtils database, boolean write) {
+        this.database = database;
+        this.write = write;
+    }
+
+    void addLockWait(long nanos) {
+        lockWaitNanos += nanos;
+    }
+
+    void addCodecTime(long nanos) {
+        codecNanos += nanos;
+    }
+
+    void finish(PerfContext perfContext) {
+        totalNanos = System.nanoTime() - startedAt;
+        if (write) {
+            perfCounters.put("write.wal.nanos", perfContext.getWriteWalTime());
+            perfCounters.put("write.memtable.nanos", perfContext.getWriteMemtableTime());
+            perfCounters.put("write.delay.nanos", perfContext.getWriteDelayTime());
+            perfCounters.put("write.thread.wait.nanos", perfContext.getWriteThreadWaitNanos());
+        } else {
+            perfCounters.put("memtable.nanos", perfContext.getFromMemtableTime());
+            perfCounters.put("sst.nanos", perfContext.getFromOutputFilesTime());
+            perfCounters.put("block.read.nanos", perfContext.getBlockReadTime());
+            perfCounters.put("block.read.count", perfContext.getBlockReadCount());
+            perfCounters.put("block.read.bytes", perfContext.getBlockReadByte());
+            perfCounters.put("block.cache.hit.count", perfContext.getBlockCacheHitCount());
+            perfCounters.put("bloom.sst.hit.count", perfContext.getBloomSstHitCount());
+            perfCounters.put("bloom.sst.miss.count", perfContext.getBloomSstMissCount());
+        }
+    }
+
+    public RocksDbUtils getDatabase() {
+        return database;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public long getLockWaitNanos() {
+        return lockWaitNanos;
+    }
+
+    public long getCodecNanos() {
+        return codecNanos;
+    }
+
+    /**
+     * Time spent in RocksDB, through JNI, from the whole operation minus the lock wait and the value serialization.
+     */
+    public long getNativeNanos() {
+        return Math.max(0, totalNanos - lockWaitNanos - codecNanos);
+    }
+
+    /**
+     * Returns the breakdown as rocksdb.latency.* FlowFile attributes.
+     */
+    public Map<String, String> toAttributes() {
+        Map<String, String> attributes = new LinkedHashMap<>();
+        attributes.put(ATTRIBUTE_PREFIX + "operation", write ? "write" : "read");
+        attributes.put(ATTRIBUTE_PREFIX + "total.nanos", String.valueOf(totalNanos));
+        attributes.put(ATTRIBUTE_PREFIX + "lock.wait.nanos", String.valueOf(lockWaitNanos));
+        attributes.put(ATTRIBUTE_PREFIX + "native.nanos", String.valueOf(getNativeNanos()));
+        attributes.put(ATTRIBUTE_PREFIX + "codec.nanos", String.valueOf(codecNanos));
+        perfCounters.forEach((name, value) -> attributes.put(ATTRIBUTE_PREFIX + name, String.valueOf(value)));
+        return attributes;
+    }
+}
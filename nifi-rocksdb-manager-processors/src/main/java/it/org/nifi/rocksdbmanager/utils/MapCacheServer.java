@@ -0,0 +1,545 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.org.nifi.rocksdbmanager.utils;
+
+import org.apache.nifi.logging.ComponentLog;
+import org.rocksdb.RocksDBException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.regex.Pattern;
+
+/**
+ * Server of the NiFi distributed map cache protocol storing the entries in a RocksDb. Each value is stored after
+ * its revision, an 8 bytes counter incremented by every write, which the fetch and replace requests rely on.
+ * <p>
+ * Reads are served by the connection threads straight from the database. The writes of all the connections are
+ * queued to a single committer thread, which reads the existing values of a whole group of writes with a multi get,
+ * applies them in order and commits the group with a single write batch. Being the only writer, the committer makes
+ * the conditional writes, such as put if absent and replace, atomic.
+ */
+public class MapCacheServer {
+
+    private static final byte[] MAGIC_HEADER = "NiFi".getBytes(StandardCharsets.US_ASCII);
+    private static final List<Integer> VERSIONS = List.of(3, 2, 1);
+    private static final int RESOURCE_OK = 20;
+    private static final int DIFFERENT_RESOURCE_VERSION = 21;
+    private static final int ABORT = 30;
+    private static final long NO_REVISION = -1;
+
+    private final RocksDbUtils database;
+    private final int maxReadSize;
+    private final int maxRequestEntries;
+    private final int maxGroupCommitSize;
+    private final ComponentLog logger;
+    private final ServerSocket serverSocket;
+    private final ExecutorService connectionExecutor;
+    private final Thread acceptor;
+    private final Thread committer;
+    private final BlockingQueue<WriteRequest> writeQueue = new LinkedBlockingQueue<>();
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = true;
+
+    /**
+     * Binds the server to the given port, 0 for any free port, of the given address, null for all the addresses.
+     *
+     * @param maxReadSize       the maximum size in bytes of a key or value
+     * @param maxRequestEntries the maximum number of entries of a sub map or put all request
+     * @param logger            the logger of the dropped connections
+     */
+    public MapCacheServer(RocksDbUtils database, InetAddress address, int port, int maxReadSize, int maxRequestEntries,
+                          int maxGroupCommitSize, ComponentLog logger) throws IOException {
+        this.database = database;
+        this.maxReadSize = maxReadSize;
+        this.maxRequestEntries = maxRequestEntries;
+        this.maxGroupCommitSize = maxGroupCommitSize;
+        this.logger = logger;
+        this.serverSocket = new ServerSocket(port, 50, address);
+        this.connectionExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "RocksDb map cache connection");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.acceptor = new Thread(this::accept, "RocksDb map cache acceptor " + serverSocket.getLocalPort());
+        this.acceptor.setDaemon(true);
+        this.committer = new Thread(this::commit, "RocksDb map cache committer " + serverSocket.getLocalPort());
+        this.committer.setDaemon(true);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public void start() {
+        committer.start();
+        acceptor.start();
+    }
+
+    /**
+     * Closes the server and its connections, and waits for the committer to complete the queued writes.
+     */
+    public void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+            // the acceptor stops anyway
+        }
+        for (Socket connection : connections) {
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+                // the connection is dropped anyway
+            }
+        }
+        connectionExecutor.shutdownNow();
+        committer.interrupt();
+        try {
+            acceptor.join();
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        WriteRequest request;
+        while ((request = writeQueue.poll()) != null) {
+            request.response.completeExceptionally(new IOException("Map cache server stopped"));
+        }
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.add(socket);
+                connectionExecutor.submit(() -> serve(socket));
+            } catch (IOException e) {
+                // the server socket is closed on stop
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            if (!handshake(in, out)) {
+                return;
+            }
+            while (running) {
+                String action;
+                try {
+                    action = in.readUTF();
+                } catch (EOFException e) {
+                    return;
+                }
+                if ("close".equals(action)) {
+                    return;
+                }
+                handle(action, in, out);
+                out.flush();
+            }
+        } catch (EOFException e) {
+            // the client closed the connection
+        } catch (IOException e) {
+            // the connections are closed on stop
+            if (running) {
+                logger.warn("Map cache connection from {} dropped", socket.getRemoteSocketAddress(), e);
+            }
+        } catch (RocksDBException | RuntimeException e) {
+            // e.g. a malformed pattern, the connection can not be resynchronized with the client
+            logger.warn("Map cache connection from {} dropped", socket.getRemoteSocketAddress(), e);
+        } finally {
+            connections.remove(socket);
+        }
+    }
+
+    private boolean handshake(DataInputStream in, DataOutputStream out) throws IOException {
+        byte[] magicHeader = new byte[MAGIC_HEADER.length];
+        in.readFully(magicHeader);
+        if (!Arrays.equals(magicHeader, MAGIC_HEADER)) {
+            return false;
+        }
+        while (true) {
+            int version = in.readInt();
+            if (VERSIONS.contains(version)) {
+                out.write(RESOURCE_OK);
+                out.flush();
+                return true;
+            }
+            // offer the highest version below the requested one, the client asks again with it
+            Integer preferred = VERSIONS.stream().filter(supported -> supported < version).findFirst().orElse(null);
+            if (preferred == null) {
+                out.write(ABORT);
+                out.writeUTF("Unable to negotiate a version of the protocol, version " + version + " is not supported");
+                out.flush();
+                return false;
+            }
+            out.write(DIFFERENT_RESOURCE_VERSION);
+            out.writeInt(preferred);
+            out.flush();
+        }
+    }
+
+    private void handle(String action, DataInputStream in, DataOutputStream out) throws IOException, RocksDBException {
+        switch (action) {
+            case "get": {
+                writeValue(out, valueOf(database.find(readValue(in))));
+                break;
+            }
+            case "containsKey": {
+                out.writeBoolean(database.find(readValue(in)) != null);
+                break;
+            }
+            case "subMap": {
+                int count = readCount(in);
+                List<byte[]> keys = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    keys.add(readValue(in));
+                }
+                for (byte[] stored : database.findAll(keys)) {
+                    writeValue(out, valueOf(stored));
+                }
+                break;
+            }
+            case "fetch": {
+                byte[] stored = database.find(readValue(in));
+                out.writeLong(stored == null ? NO_REVISION : revisionOf(stored));
+                writeValue(out, valueOf(stored));
+                break;
+            }
+            case "keySet": {
+                List<byte[]> keys = database.findKeys(key -> true);
+                out.writeInt(keys.size());
+                for (byte[] key : keys) {
+                    writeValue(out, key);
+                }
+                break;
+            }
+            case "put": {
+                byte[] key = readValue(in);
+                byte[] value = readValue(in);
+                submit(List.of(key), group -> {
+                    group.put(key, value);
+                    return response -> response.writeBoolean(true);
+                }, out);
+                break;
+            }
+            case "putAll": {
+                int count = readCount(in);
+                Map<ByteBuffer, byte[]> entries = new LinkedHashMap<>();
+                for (int i = 0; i < count; i++) {
+                    byte[] key = readValue(in);
+                    entries.put(ByteBuffer.wrap(key), readValue(in));
+                }
+                List<byte[]> keys = new ArrayList<>();
+                entries.keySet().forEach(key -> keys.add(key.array()));
+                submit(keys, group -> {
+                    for (Map.Entry<ByteBuffer, byte[]> entry : entries.entrySet()) {
+                        group.put(entry.getKey().array(), entry.getValue());
+                    }
+                    return response -> response.writeBoolean(true);
+                }, out);
+                break;
+            }
+            case "putIfAbsent": {
+                byte[] key = readValue(in);
+                byte[] value = readValue(in);
+                submit(List.of(key), group -> {
+                    boolean absent = group.get(key) == null;
+                    if (absent) {
+                        group.put(key, value);
+                    }
+                    return response -> response.writeBoolean(absent);
+                }, out);
+                break;
+            }
+            case "getAndPutIfAbsent": {
+                byte[] key = readValue(in);
+                byte[] value = readValue(in);
+                submit(List.of(key), group -> {
+                    byte[] existing = group.get(key);
+                    if (existing == null) {
+                        group.put(key, value);
+                    }
+                    return response -> writeValue(response, valueOf(existing));
+                }, out);
+                break;
+            }
+            case "replace": {
+                byte[] key = readValue(in);
+                long revision = in.readLong();
+                byte[] value = readValue(in);
+                submit(List.of(key), group -> {
+                    byte[] existing = group.get(key);
+                    boolean current = existing == null || revisionOf(existing) == revision;
+                    if (current) {
+                        group.put(key, value);
+                    }
+                    return response -> response.writeBoolean(current);
+                }, out);
+                break;
+            }
+            case "remove": {
+                byte[] key = readValue(in);
+                submit(List.of(key), group -> {
+                    boolean removed = group.remove(key) != null;
+                    return response -> response.writeBoolean(removed);
+                }, out);
+                break;
+            }
+            case "removeAndGet": {
+                byte[] key = readValue(in);
+                submit(List.of(key), group -> {
+                    byte[] removed = group.remove(key);
+                    return response -> writeValue(response, valueOf(removed));
+                }, out);
+                break;
+            }
+            case "removeByPattern": {
+                Pattern pattern = Pattern.compile(in.readUTF());
+                submit(List.of(), group -> {
+                    long count = group.removeAll(pattern).size();
+                    return response -> response.writeLong(count);
+                }, out);
+                break;
+            }
+            case "removeByPatternAndGet": {
+                Pattern pattern = Pattern.compile(in.readUTF());
+                submit(List.of(), group -> {
+                    Map<ByteBuffer, byte[]> removed = group.removeAll(pattern);
+                    return response -> {
+                        response.writeInt(removed.size());
+                        for (Map.Entry<ByteBuffer, byte[]> entry : removed.entrySet()) {
+                            writeValue(response, entry.getKey().array());
+                            writeValue(response, valueOf(entry.getValue()));
+                        }
+                    };
+                }, out);
+                break;
+            }
+            default:
+                throw new IOException("Illegal request " + action);
+        }
+    }
+
+    /**
+     * Queues the write to the committer and sends its response once its group is committed.
+     */
+    private void submit(List<byte[]> keys, WriteOperation operation, DataOutputStream out) throws IOException {
+        WriteRequest request = new WriteRequest(keys, operation);
+        writeQueue.add(request);
+        if (!running) {
+            throw new IOException("Map cache server stopped");
+        }
+        try {
+            request.response.get().writeTo(out);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to write to RocksDB", e.getCause());
+        }
+    }
+
+    private void commit() {
+        List<WriteRequest> requests = new ArrayList<>();
+        while (running || !writeQueue.isEmpty()) {
+            try {
+                if (writeQueue.isEmpty()) {
+                    requests.add(writeQueue.take());
+                }
+            } catch (InterruptedException e) {
+                continue;
+            }
+            writeQueue.drainTo(requests, maxGroupCommitSize - requests.size());
+            commitGroup(requests);
+            requests.clear();
+        }
+    }
+
+    private void commitGroup(List<WriteRequest> requests) {
+        List<Response> responses = new ArrayList<>(requests.size());
+        try {
+            GroupCommit group = new GroupCommit();
+            List<byte[]> keys = new ArrayList<>();
+            requests.forEach(request -> keys.addAll(request.keys));
+            group.load(keys);
+            for (WriteRequest request : requests) {
+                responses.add(request.operation.apply(group));
+            }
+            if (!group.writes.isEmpty()) {
+                List<Map.Entry<byte[], byte[]>> entries = new ArrayList<>();
+                group.writes.forEach((key, stored) -> entries.add(new AbstractMap.SimpleEntry<>(key.array(), stored)));
+                database.writeBatch(entries);
+            }
+        } catch (RocksDBException | RuntimeException e) {
+            requests.forEach(request -> request.response.completeExceptionally(e));
+            return;
+        }
+        for (int i = 0; i < requests.size(); i++) {
+            requests.get(i).response.complete(responses.get(i));
+        }
+    }
+
+    private byte[] readValue(DataInputStream in) throws IOException {
+        byte[] value = new byte[readSize(in)];
+        in.readFully(value);
+        return value;
+    }
+
+    private int readSize(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0 || size > maxReadSize) {
+            throw new IOException("Size " + size + " exceeds the Maximum Read Size of " + maxReadSize + " bytes");
+        }
+        return size;
+    }
+
+    private int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > maxRequestEntries) {
+            throw new IOException("Count " + count + " exceeds the Maximum Request Entries of " + maxRequestEntries);
+        }
+        return count;
+    }
+
+    private static void writeValue(DataOutputStream out, byte[] value) throws IOException {
+        if (value == null) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(value.length);
+            out.write(value);
+        }
+    }
+
+    private static byte[] encode(long revision, byte[] value) {
+        return ByteBuffer.allocate(Long.BYTES + value.length).putLong(revision).put(value).array();
+    }
+
+    private static long revisionOf(byte[] stored) {
+        return ByteBuffer.wrap(stored).getLong();
+    }
+
+    private static byte[] valueOf(byte[] stored) {
+        return stored == null ? null : Arrays.copyOfRange(stored, Long.BYTES, stored.length);
+    }
+
+    /**
+     * Writes of a group, seeing the existing values as modified by the previous writes of the group.
+     */
+    private class GroupCommit {
+        private final Map<ByteBuffer, byte[]> loaded = new HashMap<>();
+        private final Map<ByteBuffer, byte[]> writes = new LinkedHashMap<>();
+
+        private void load(List<byte[]> keys) throws RocksDBException {
+            if (keys.isEmpty()) {
+                return;
+            }
+            List<byte[]> values = database.findAll(keys);
+            for (int i = 0; i < keys.size(); i++) {
+                loaded.put(ByteBuffer.wrap(keys.get(i)), values.get(i));
+            }
+        }
+
+        private byte[] get(byte[] key) throws RocksDBException {
+            ByteBuffer wrapped = ByteBuffer.wrap(key);
+            if (writes.containsKey(wrapped)) {
+                return writes.get(wrapped);
+            }
+            if (!loaded.containsKey(wrapped)) {
+                loaded.put(wrapped, database.find(key));
+            }
+            return loaded.get(wrapped);
+        }
+
+        private void put(byte[] key, byte[] value) throws RocksDBException {
+            byte[] existing = get(key);
+            writes.put(ByteBuffer.wrap(key), encode(existing == null ? 0 : revisionOf(existing) + 1, value));
+        }
+
+        private byte[] remove(byte[] key) throws RocksDBException {
+            byte[] existing = get(key);
+            if (existing != null) {
+                writes.put(ByteBuffer.wrap(key), null);
+            }
+            return existing;
+        }
+
+        private Map<ByteBuffer, byte[]> removeAll(Pattern pattern) throws RocksDBException {
+            Set<ByteBuffer> keys = new LinkedHashSet<>();
+            database.findKeys(key -> matches(pattern, key)).forEach(key -> keys.add(ByteBuffer.wrap(key)));
+            writes.keySet().stream().filter(key -> matches(pattern, key.array())).forEach(keys::add);
+            Map<ByteBuffer, byte[]> removed = new LinkedHashMap<>();
+            for (ByteBuffer key : keys) {
+                byte[] existing = remove(key.array());
+                if (existing != null) {
+                    removed.put(key, existing);
+                }
+            }
+            return removed;
+        }
+
+        private boolean matches(Pattern pattern, byte[] key) {
+            return pattern.matcher(new String(key, StandardCharsets.UTF_8)).matches();
+        }
+    }
+
+    private interface WriteOperation {
+        Response apply(GroupCommit group) throws RocksDBException;
+    }
+
+    private interface Response {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+    private static class WriteRequest {
+        private final List<byte[]> keys;
+        private final WriteOperation operation;
+        private final CompletableFuture<Response> response = new CompletableFuture<>();
+
+        private WriteRequest(List<byte[]> keys, WriteOperation operation) {
+            this.keys = keys;
+            this.operation = operation;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.org.nifi.rocksdbmanager.utils;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU set of keys known to be absent from the database.
+ * Entries are added after a confirmed miss and must be invalidated by every write of the same key.
+ */
+public class NegativeLookupCache {
+
+    private final Map<ByteBuffer, Boolean> absentKeys;
+    private long hits;
+
+    public NegativeLookupCache(int maxSize) {
+        this.absentKeys = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public synchronized boolean contains(byte[] key) {
+        return contains(ByteBuffer.wrap(key));
+    }
+
+    public synchronized void add(byte[] key) {
+        absentKeys.put(ByteBuffer.wrap(key), Boolean.TRUE);
+    }
+
+    public synchronized void remove(byte[] key) {
+        absentKeys.remove(ByteBuffer.wrap(key));
+    }
+
+    // buffers compare by content, so a direct key matches the wrapped arrays stored on a miss
+    public synchronized boolean contains(ByteBuffer key) {
+        boolean absent = absentKeys.containsKey(key);
+        if (absent) {
+            hits++;
+        }
+        return absent;
+    }
+
+    public synchronized void add(ByteBuffer key) {
+        byte[] copy = new byte[key.remaining()];
+        key.duplicate().get(copy);
+        absentKeys.put(ByteBuffer.wrap(copy), Boolean.TRUE);
+    }
+
+    public synchronized void remove(ByteBuffer key) {
+        absentKeys.remove(key);
+    }
+
+    /**
+     * Returns the number of lookups answered by the cache.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized void clear() {
+        absentKeys.clear();
+    }
+}
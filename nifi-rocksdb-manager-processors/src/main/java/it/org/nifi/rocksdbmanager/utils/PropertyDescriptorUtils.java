@@ -43,11 +43,43 @@ public class PropertyDescriptorUtils {
     public static final String READONLY = "Read Only";
     public static final String FIND = "Find";
     public static final String ITERATOR = "RocksIterator";
+    public static final String INDEX_LOOKUP = "Index Lookup";
     public static final String FLOWFILE_ATTRIBUTE = "FlowFile Attribute";
     public static final String FLOWFILE_CONTENT = "FlowFile Content";
     public static final String SEEK_PREV = "Seek Prev";
     public static final String SEEK_NEXT = "Seek Next";
     public static final String SEEK_FOR_PREV = "Seek For Prev";
+    public static final String TUNING_AUTO = "Auto";
+    public static final String TUNING_SMALL = "Small Database";
+    public static final String TUNING_POINT_LOOKUP = "Point Lookup";
+    public static final String TUNING_SCAN_HEAVY = "Scan Heavy";
+    public static final String TUNING_NONE = "None";
+    public static final String DIRECTION_FORWARD = "Forward";
+    public static final String DIRECTION_BACKWARD = "Backward";
+    public static final String MERGE_NONE = "None";
+    public static final String MERGE_UINT64_ADD = "UInt64 Add";
+    public static final String MERGE_STRING_APPEND = "String Append";
+    public static final String WRITE_MODE_PUT = "Put";
+    public static final String WRITE_MODE_INCREMENT = "Increment";
+    public static final String WRITE_MODE_APPEND = "Append";
+    public static final String DURABILITY_NO_WAL = "No WAL";
+    public static final String DURABILITY_ASYNC_WAL = "Async WAL";
+    public static final String DURABILITY_SYNC = "Sync per batch";
+    public static final String DURABILITY_MANUAL_WAL_FLUSH = "Manual WAL flush every N ms";
+    public static final String VALUE_FORMAT_STRING = "Serialized String";
+    public static final String VALUE_FORMAT_AVRO = "Avro Record";
+    public static final String COMPRESSION_NONE = "None";
+    public static final String COMPRESSION_SNAPPY = "Snappy";
+    public static final String COMPRESSION_LZ4 = "LZ4";
+    public static final String COMPRESSION_ZSTD = "ZSTD";
+    public static final String ZSTD_DICTIONARY_BOTTOMMOST = "Bottommost Level";
+    public static final String ZSTD_DICTIONARY_ALL_LEVELS = "All Levels";
+    public static final String KEY_ENCODING_UTF8 = "UTF-8 String";
+    public static final String KEY_ENCODING_UNSIGNED_LONG = "Unsigned Long";
+    public static final String KEY_ENCODING_SIGNED_LONG = "Signed Long";
+    public static final String KEY_ENCODING_UNSIGNED_INT = "Unsigned Int";
+    public static final String KEY_ENCODING_SIGNED_INT = "Signed Int";
+    public static final String KEY_ENCODING_TUPLE = "Tuple";
 }
 
 
@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.org.nifi.rocksdbmanager.utils;
+
+import org.rocksdb.ReadOptions;
+import org.rocksdb.Snapshot;
+
+/**
+ * Snapshot of a database acquired through {@link RocksDbUtils#acquireSnapshot()}, with the read options
+ * that make the reads see the data as of the snapshot.
+ */
+public class ReadSnapshot {
+
+    private final Snapshot snapshot;
+    private final ReadOptions readOptions;
+
+    ReadSnapshot(Snapshot snapshot) {
+        this.snapshot = snapshot;
+        this.readOptions = new ReadOptions().setSnapshot(snapshot);
+    }
+
+    Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    ReadOptions getReadOptions() {
+        return readOptions;
+    }
+
+    void close() {
+        readOptions.close();
+    }
+}
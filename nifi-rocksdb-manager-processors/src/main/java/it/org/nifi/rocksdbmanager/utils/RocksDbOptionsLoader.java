@@ -0,0 +1,248 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.org.nifi.rocksdbmanager.utils;
+
+import org.apache.nifi.processor.DataUnit;
+import org.rocksdb.BlockBasedTableConfig;
+import org.rocksdb.BloomFilter;
+import org.rocksdb.ColumnFamilyDescriptor;
+import org.rocksdb.ColumnFamilyOptions;
+import org.rocksdb.ConfigOptions;
+import org.rocksdb.DBOptions;
+import org.rocksdb.LRUCache;
+import org.rocksdb.Options;
+import org.rocksdb.OptionsUtil;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksObject;
+import org.rocksdb.TableFormatConfig;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Applies RocksDB options given as setter name and string value, e.g. {@code setWriteBufferSize=64 MB},
+ * {@code setCompressionPerLevel=NO,NO,LZ4,LZ4,ZSTD} or {@code table.setFilterPolicy=bloom:10}.
+ * Options prefixed with {@value #TABLE_OPTION_PREFIX} are applied to the {@link BlockBasedTableConfig}.
+ * The native objects created from the values, such as the filters and caches, must be closed once the options are no
+ * longer used, after the database.
+ */
+public class RocksDbOptionsLoader {
+
+    public static final String TABLE_OPTION_PREFIX = "table.";
+
+    private RocksDbOptionsLoader() {
+    }
+
+    /**
+     * Applies every option of the map to the given options, failing on unknown options or malformed values.
+     *
+     * @param nativeObjects the list the native objects created from the values are added to
+     */
+    public static Options load(Options options, Map<String, String> optionsMap, List<RocksObject> nativeObjects) throws IllegalArgumentException {
+        Map<String, String> optionValues = new HashMap<>();
+        Map<String, String> tableValues = new HashMap<>();
+        optionsMap.forEach((name, value) -> {
+            if (name.startsWith(TABLE_OPTION_PREFIX)) {
+                tableValues.put(name.substring(TABLE_OPTION_PREFIX.length()), value);
+            } else {
+                optionValues.put(name, value);
+            }
+        });
+
+        failOnUnknown(applyTo(options, optionValues, nativeObjects));
+        if (!tableValues.isEmpty()) {
+            TableFormatConfig current = options.tableFormatConfig();
+            BlockBasedTableConfig tableConfig = current instanceof BlockBasedTableConfig
+                    ? (BlockBasedTableConfig) current : new BlockBasedTableConfig();
+            failOnUnknown(applyTo(tableConfig, tableValues, nativeObjects).stream().map(TABLE_OPTION_PREFIX::concat).collect(Collectors.toList()));
+            options.setTableFormatConfig(tableConfig);
+        }
+        return options;
+    }
+
+    /**
+     * Applies the options to any RocksDB options object (Options, DBOptions, ColumnFamilyOptions, table configs...).
+     *
+     * @param nativeObjects the list the native objects created from the values are added to
+     * @return the names of the options that have no matching setter on the target
+     */
+    public static List<String> applyTo(Object target, Map<String, String> optionsMap, List<RocksObject> nativeObjects) throws IllegalArgumentException {
+        List<String> unknown = new ArrayList<>();
+        for (Map.Entry<String, String> entry : optionsMap.entrySet()) {
+            List<Method> setters = Arrays.stream(target.getClass().getMethods())
+                    .filter(method -> method.getName().equals(entry.getKey()))
+                    .filter(method -> method.getParameterCount() == 1 && !method.isBridge())
+                    .collect(Collectors.toList());
+            if (setters.isEmpty()) {
+                unknown.add(entry.getKey());
+                continue;
+            }
+            invoke(target, setters, entry.getKey(), entry.getValue().trim(), nativeObjects);
+        }
+        return unknown;
+    }
+
+    /**
+     * Loads a native RocksDB OPTIONS file, or the latest OPTIONS file of a database directory,
+     * returning the database options merged with the options of the default column family.
+     */
+    public static Options loadOptionsFile(String path) throws RocksDBException {
+        RocksDB.loadLibrary();
+        DBOptions dbOptions = new DBOptions();
+        List<ColumnFamilyDescriptor> descriptors = new ArrayList<>();
+        try (ConfigOptions configOptions = new ConfigOptions()) {
+            if (new File(path).isDirectory()) {
+                OptionsUtil.loadLatestOptions(configOptions, path, dbOptions, descriptors);
+            } else {
+                OptionsUtil.loadOptionsFromFile(configOptions, path, dbOptions, descriptors);
+            }
+        }
+        ColumnFamilyOptions defaultCfOptions = descriptors.stream()
+                .filter(descriptor -> Arrays.equals(descriptor.getName(), RocksDB.DEFAULT_COLUMN_FAMILY))
+                .map(ColumnFamilyDescriptor::getOptions)
+                .findFirst()
+                .orElseGet(ColumnFamilyOptions::new);
+        try {
+            // the options are copied, the loaded ones are no longer needed
+            return new Options(dbOptions, defaultCfOptions);
+        } finally {
+            dbOptions.close();
+            defaultCfOptions.close();
+            descriptors.forEach(descriptor -> descriptor.getOptions().close());
+        }
+    }
+
+    private static void invoke(Object target, List<Method> setters, String name, String value, List<RocksObject> nativeObjects) {
+        for (Method setter : setters) {
+            List<RocksObject> created = new ArrayList<>();
+            Object argument;
+            try {
+                argument = convert(setter.getGenericParameterTypes()[0], value, created);
+            } catch (IllegalArgumentException | ArithmeticException e) {
+                // the value may convert to the parameter of another overload
+                created.forEach(RocksObject::close);
+                continue;
+            }
+            try {
+                setter.invoke(target, argument);
+                nativeObjects.addAll(created);
+                return;
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                created.forEach(RocksObject::close);
+                throw new IllegalArgumentException("Unable to apply option " + name + "=" + value, e);
+            }
+        }
+        throw new IllegalArgumentException("Wrong argument value passed for option " + name + ": " + value);
+    }
+
+    private static void failOnUnknown(List<String> unknown) {
+        if (!unknown.isEmpty()) {
+            throw new IllegalArgumentException("Unknown RocksDB options: " + String.join(", ", unknown));
+        }
+    }
+
+    static Object convert(Type type, String value, List<RocksObject> created) throws IllegalArgumentException {
+        if (type instanceof ParameterizedType && ((ParameterizedType) type).getRawType().equals(List.class)) {
+            Type elementType = ((ParameterizedType) type).getActualTypeArguments()[0];
+            List<Object> list = new ArrayList<>();
+            for (String element : splitList(value)) {
+                list.add(convert(elementType, element, created));
+            }
+            return list;
+        }
+        if (!(type instanceof Class)) {
+            throw new IllegalArgumentException("Unsupported option type " + type);
+        }
+        Class<?> clazz = (Class<?>) type;
+
+        if (clazz.equals(String.class)) {
+            return value;
+        } else if (clazz.equals(long.class) || clazz.equals(Long.class)) {
+            return parseSize(value);
+        } else if (clazz.equals(int.class) || clazz.equals(Integer.class)) {
+            return Math.toIntExact(parseSize(value));
+        } else if (clazz.equals(double.class) || clazz.equals(Double.class)) {
+            return Double.parseDouble(value);
+        } else if (clazz.equals(boolean.class) || clazz.equals(Boolean.class)) {
+            if (value.equalsIgnoreCase("true") || value.equalsIgnoreCase("false")) {
+                return Boolean.parseBoolean(value);
+            }
+        } else if (clazz.isEnum()) {
+            return parseEnum(clazz, value);
+        } else if (clazz.equals(int[].class)) {
+            return splitList(value).stream().mapToInt(element -> Math.toIntExact(parseSize(element))).toArray();
+        } else if (clazz.equals(long[].class)) {
+            return splitList(value).stream().mapToLong(RocksDbOptionsLoader::parseSize).toArray();
+        } else if (clazz.equals(double[].class)) {
+            return splitList(value).stream().mapToDouble(Double::parseDouble).toArray();
+        } else if (clazz.isAssignableFrom(BloomFilter.class) && value.toLowerCase().startsWith("bloom:")) {
+            BloomFilter bloomFilter = new BloomFilter(Double.parseDouble(value.substring("bloom:".length())));
+            created.add(bloomFilter);
+            return bloomFilter;
+        } else if (clazz.isAssignableFrom(LRUCache.class) && value.toLowerCase().startsWith("lru:")) {
+            LRUCache cache = new LRUCache(parseSize(value.substring("lru:".length())));
+            created.add(cache);
+            return cache;
+        }
+        throw new IllegalArgumentException("Value " + value + " cannot be converted to " + clazz.getSimpleName());
+    }
+
+    private static long parseSize(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            // sizes can also be given with a unit, e.g. 64 MB
+            return DataUnit.parseDataSize(value.trim(), DataUnit.B).longValue();
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object parseEnum(Class<?> enumClass, String value) {
+        Object[] constants = enumClass.getEnumConstants();
+        for (Object constant : constants) {
+            if (((Enum) constant).name().equalsIgnoreCase(value)) {
+                return constant;
+            }
+        }
+        // short names such as LZ4 or ZSTD for LZ4_COMPRESSION and ZSTD_COMPRESSION
+        List<Object> prefixed = Arrays.stream(constants)
+                .filter(constant -> ((Enum) constant).name().startsWith(value.toUpperCase() + "_"))
+                .collect(Collectors.toList());
+        if (prefixed.size() == 1) {
+            return prefixed.get(0);
+        }
+        throw new IllegalArgumentException("Value " + value + " is not one of " + Arrays.toString(constants));
+    }
+
+    private static List<String> splitList(String value) {
+        return Arrays.stream(value.split(","))
+                .map(String::trim)
+                .filter(element -> !element.isEmpty())
+                .collect(Collectors.toList());
+    }
+}
@@ -19,7 +19,9 @@ package it.org.nifi.rocksdbmanager.utils;
 
 
 import it.org.nifi.rocksdbmanager.exception.LookupFailureException;
+import org.apache.nifi.serialization.record.Record;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
@@ -29,5 +31,43 @@ public interface RocksDbRocksLookupService extends RocksLookupService<String> {
 
     void write(Map<String, Object> var1) throws LookupFailureException;
 
+    /**
+     * Searches with the "Find" method the record stored under the key of the coordinates,
+     * when values are stored as records.
+     */
+    Optional<Record> searchRecord(Map<String, Object> coordinates) throws LookupFailureException;
+
+    /**
+     * Checks which keys have already been recorded, recording the new ones
+     *
+     * @param keys         the keys to check
+     * @param maxAgeMillis the age after which a recorded key is no longer a duplicate, or 0 if keys never expire
+     * @return for each key, whether it is a duplicate
+     * @throws LookupFailureException if unable to check or record the keys
+     */
+    List<Boolean> detectDuplicates(List<String> keys, long maxAgeMillis) throws LookupFailureException;
+
+    /**
+     * Estimates how well the data compresses, writing a sample of the entries to an SST file with each compression
+     *
+     * @param sampleSize    the maximum number of entries of the sample
+     * @param maxDictBytes  the size of the ZSTD dictionary trained on the sample, or 0 to leave out the dictionary compression
+     * @param maxTrainBytes the maximum size of the data the ZSTD dictionary is trained on
+     * @return the number and the size of the sampled entries and the size of their SST file by compression,
+     * as returned by {@link CompressionEstimator#estimate(List, int, int)}
+     * @throws LookupFailureException if unable to read the sample or to write the files
+     */
+    Map<String, Long> estimateCompression(int sampleSize, int maxDictBytes, int maxTrainBytes) throws LookupFailureException;
+
+    /**
+     * Compacts the keys between the given ones, or the whole database if both are null
+     *
+     * @param startKey              the first key to compact, or null to start from the first key of the database
+     * @param endKey                the key where the compaction ends, or null to compact up to the last key
+     * @param enableAutoCompactions whether to enable again the automatic compactions once the compaction is done
+     * @throws LookupFailureException if unable to compact the database
+     */
+    void compact(String startKey, String endKey, boolean enableAutoCompactions) throws LookupFailureException;
+
 
 }
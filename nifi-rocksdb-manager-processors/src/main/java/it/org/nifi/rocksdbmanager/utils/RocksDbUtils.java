@@ -17,117 +17,1216 @@
 
 package it.org.nifi.rocksdbmanager.utils;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.serialization.record.Record;
+import org.rocksdb.BlockBasedTableConfig;
+import org.rocksdb.BloomFilter;
+import org.rocksdb.Cache;
+import org.rocksdb.ColumnFamilyDescriptor;
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.ColumnFamilyOptions;
+import org.rocksdb.CompressionOptions;
+import org.rocksdb.CompressionType;
+import org.rocksdb.DBOptions;
+import org.rocksdb.DataBlockIndexType;
+import org.rocksdb.DbPath;
+import org.rocksdb.FlushOptions;
+import org.rocksdb.LRUCache;
+import org.rocksdb.LiveFileMetaData;
+import org.rocksdb.MergeOperator;
+import org.rocksdb.MutableColumnFamilyOptions;
 import org.rocksdb.Options;
+import org.rocksdb.PerfLevel;
+import org.rocksdb.RateLimiter;
+import org.rocksdb.ReadOptions;
 import org.rocksdb.RocksDB;
 import org.rocksdb.RocksDBException;
 import org.rocksdb.RocksIterator;
+import org.rocksdb.RocksObject;
+import org.rocksdb.Slice;
+import org.rocksdb.Status;
+import org.rocksdb.SstFileMetaData;
+import org.rocksdb.StringAppendOperator;
+import org.rocksdb.TtlDB;
+import org.rocksdb.UInt64AddOperator;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
 import org.springframework.stereotype.Repository;
 import org.springframework.util.SerializationUtils;
 
 import java.io.File;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 import static it.org.nifi.rocksdbmanager.utils.PropertyDescriptorUtils.*;
 
 @Repository
 public class RocksDbUtils {
     RocksDB db;
+    private NegativeLookupCache negativeLookupCache;
+    private String tuningProfile = TUNING_NONE;
+    private String appliedTuningProfile;
+    private long smallDatabaseThreshold = 150L * 1024 * 1024;
+    private long blockCacheSize = 128L * 1024 * 1024;
+    private Cache blockCache;
+    private BloomFilter bloomFilter;
+    private String optionsFile;
+    private String writeDurability = DURABILITY_ASYNC_WAL;
+    private long walFlushIntervalMillis = 100;
+    private WriteOptions writeOptions;
+    private ReadOptions readOptions;
+    private ScheduledExecutorService walFlusher;
+    private volatile RocksDBException walFlushFailure;
+    private boolean readOnly;
+    private long compactionRateLimit;
+    private RateLimiter rateLimiter;
+    private boolean disableAutoCompactions;
+    private String mergeOperator = MERGE_NONE;
+    private MergeOperator mergeOperatorHandle;
+    private String appendDelimiter = ",";
+    private long iteratorRefreshInterval = -1;
+    private IteratorPool iteratorPool;
+    private int timeToLiveSeconds;
+    private AvroRecordCodec recordCodec;
+    private List<String> secondaryIndexes = List.of();
+    private List<DbPath> dataPaths = List.of();
+    private long minBlobSize = -1;
+    private String blobCompression = COMPRESSION_NONE;
+    private String compression;
+    private int zstdMaxDictBytes;
+    private int zstdMaxTrainBytes;
+    private boolean zstdDictionaryBottommostOnly = true;
+    private CompressionOptions compressionOptions;
+    private final List<RocksObject> optionObjects = new ArrayList<>();
+    private double blobGarbageCollectionAgeCutoff;
+    private double blobGarbageCollectionForceThreshold = 1.0;
+    private String walDir;
+    private long warmUpRate;
+    private double warmUpTargetFill = 1.0;
+    private File hotKeysFile;
+    private int maxHotKeys;
+    private HotKeyTracker hotKeyTracker;
+    private ExecutorService warmer;
+    private volatile boolean warmingUp;
+    private volatile Exception warmUpFailure;
+    private ComponentLog warmUpLogger;
+    private boolean noSlowdown;
+    private int latencySampleRate;
+    private KeyEncoder keyEncoder = KeyEncoder.UTF8;
+    private final AtomicLong latencySampleCounter = new AtomicLong();
+    private long stallDelayedWriteRate;
+    private long stallPendingCompactionBytes;
+    private volatile long stallCheckedAt;
+    private volatile boolean writeStalled;
+    private final Map<String, ColumnFamilyHandle> indexHandles = new HashMap<>();
+    private final List<ColumnFamilyHandle> columnFamilyHandles = new ArrayList<>();
+    private ColumnFamilyOptions columnFamilyOptions;
+    private DBOptions dbOptions;
+    private ColumnFamilyHandle seenKeysHandle;
 
-    public static boolean getIfRocksIsSmall(File rocksdb) {
-        return (folderSize(rocksdb) / 1024) / 1024 < 150;
+    private static final String INDEX_COLUMN_FAMILY_PREFIX = "index.";
+    private static final String SEEN_KEYS_COLUMN_FAMILY = "seen-keys";
+    private static final long STALL_CHECK_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final byte[] NO_VALUE = new byte[0];
+    private static final int SAMPLE_RUNS = 16;
+    private static final ThreadLocal<LatencyTrace> ACTIVE_TRACE = new ThreadLocal<>();
+    private static final ThreadLocal<LatencyTrace> LAST_TRACE = new ThreadLocal<>();
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private final Set<ReadSnapshot> snapshots = ConcurrentHashMap.newKeySet();
+
+    public void setNegativeLookupCacheSize(int size) {
+        this.negativeLookupCache = size > 0 ? new NegativeLookupCache(size) : null;
     }
 
-    public static long folderSize(File directory) {
-        long length = 0;
-        for (File file : Objects.requireNonNull(directory.listFiles())) {
-            if (file.isFile()) {
-                length += file.length();
-            } else {
-                length += folderSize(file);
-            }
+    public void setTuningProfile(String tuningProfile) {
+        this.tuningProfile = tuningProfile;
+    }
+
+    /**
+     * Returns the tuning profile applied when the database was opened, the one chosen for {@code Auto},
+     * or null if the options were loaded from an OPTIONS file.
+     */
+    public String getAppliedTuningProfile() {
+        return appliedTuningProfile;
+    }
+
+    public void setSmallDatabaseThreshold(long smallDatabaseThreshold) {
+        this.smallDatabaseThreshold = smallDatabaseThreshold;
+    }
+
+    public void setBlockCacheSize(long blockCacheSize) {
+        this.blockCacheSize = blockCacheSize;
+    }
+
+    public void setOptionsFile(String optionsFile) {
+        this.optionsFile = optionsFile;
+    }
+
+    public void setWriteDurability(String writeDurability, long walFlushIntervalMillis) {
+        this.writeDurability = writeDurability;
+        this.walFlushIntervalMillis = walFlushIntervalMillis;
+    }
+
+    public void setCompactionRateLimit(long bytesPerSecond) {
+        this.compactionRateLimit = bytesPerSecond;
+    }
+
+    public void setDisableAutoCompactions(boolean disableAutoCompactions) {
+        this.disableAutoCompactions = disableAutoCompactions;
+    }
+
+    public void setMergeOperator(String mergeOperator, String appendDelimiter) {
+        this.mergeOperator = mergeOperator;
+        this.appendDelimiter = appendDelimiter;
+    }
+
+    /**
+     * Reuses an iterator per thread, refreshed when older than the given interval. A negative interval
+     * disables the reuse and every iterator search creates a new iterator.
+     */
+    public void setIteratorRefreshInterval(long refreshIntervalMillis) {
+        this.iteratorRefreshInterval = refreshIntervalMillis;
+    }
+
+    /**
+     * Opens the database as a TtlDB, whose compactions drop the entries older than the given time to live.
+     */
+    public void setTimeToLive(int timeToLiveSeconds) {
+        this.timeToLiveSeconds = timeToLiveSeconds;
+    }
+
+    /**
+     * Stores the values as Avro records: they are then given and returned as JSON objects.
+     */
+    public void setRecordCodec(AvroRecordCodec recordCodec) {
+        this.recordCodec = recordCodec;
+    }
+
+    /**
+     * Directories of the SST files with their target sizes, filled in order: the levels that fit in the target
+     * of a directory are placed in it, the others in the following directories.
+     */
+    public void setDataPaths(List<DbPath> dataPaths) {
+        this.dataPaths = dataPaths;
+    }
+
+    /**
+     * Writes the values of at least minBlobSize bytes to blob files, so that the compactions only move their references.
+     */
+    public void setBlobFiles(long minBlobSize, String blobCompression) {
+        this.minBlobSize = minBlobSize;
+        this.blobCompression = blobCompression;
+    }
+
+    /**
+     * Compresses the SST files with the given compression, with ZSTD optionally with a dictionary of at most maxDictBytes,
+     * trained on at most maxTrainBytes of the data of each file written by a compaction, on the bottommost level only
+     * or on all the levels. Values of similar structure, too small to compress well on their own, share the dictionary.
+     */
+    public void setCompression(String compression, int zstdMaxDictBytes, int zstdMaxTrainBytes, boolean bottommostOnly) {
+        this.compression = compression;
+        this.zstdMaxDictBytes = zstdMaxDictBytes;
+        this.zstdMaxTrainBytes = zstdMaxTrainBytes;
+        this.zstdDictionaryBottommostOnly = bottommostOnly;
+    }
+
+    public void setBlobGarbageCollection(double ageCutoff, double forceThreshold) {
+        this.blobGarbageCollectionAgeCutoff = ageCutoff;
+        this.blobGarbageCollectionForceThreshold = forceThreshold;
+    }
+
+    /**
+     * Warms the block cache up in the background once the database is opened, reading at most readsPerSecond keys
+     * until the cache is filled up to targetFill: the bounds of every SST file, level by level, so that their index
+     * and filter blocks are loaded, then the keys recorded in the hot keys file, if any, when the database was last closed.
+     * The start, the end with the fill reached and the failures of the warm up are logged to the given logger.
+     */
+    public void setWarmUp(long readsPerSecond, double targetFill, File hotKeysFile, int maxHotKeys, ComponentLog logger) {
+        this.warmUpLogger = logger;
+        this.warmUpRate = readsPerSecond;
+        this.warmUpTargetFill = targetFill;
+        this.hotKeysFile = hotKeysFile;
+        this.maxHotKeys = maxHotKeys;
+    }
+
+    /**
+     * Makes the writes fail with a write stall error, see {@link #isWriteStall(RocksDBException)}, instead of
+     * waiting while RocksDB delays or stops them.
+     */
+    public void setNoSlowdown(boolean noSlowdown) {
+        this.noSlowdown = noSlowdown;
+    }
+
+    /**
+     * Thresholds beyond which {@link #isWriteStalled()} reports a stall: the rate of the writes delayed by RocksDB,
+     * 0 for any delay, and the estimated bytes awaiting compaction, 0 to ignore them.
+     */
+    public void setWriteStallThresholds(long delayedWriteRate, long pendingCompactionBytes) {
+        this.stallDelayedWriteRate = delayedWriteRate;
+        this.stallPendingCompactionBytes = pendingCompactionBytes;
+    }
+
+    /**
+     * Traces the latency of 1 in the given number of reads and writes by key, 0 to trace none.
+     * See {@link #takeLatencyTrace()}.
+     */
+    public void setLatencySampling(int sampleRate) {
+        this.latencySampleRate = sampleRate;
+    }
+
+    /**
+     * Encodes the keys given as strings, by default as UTF-8.
+     */
+    public void setKeyEncoder(KeyEncoder keyEncoder) {
+        this.keyEncoder = keyEncoder;
+    }
+
+    public void setWalDir(String walDir) {
+        this.walDir = walDir;
+    }
+
+    /**
+     * Indexes the values, JSON objects, by the given top level fields. Each index is kept in its own column family,
+     * created when the database is opened for writing, with a key made of the field value, a zero byte and the key
+     * of the entry. Index entries are written in the same batch as the entry.
+     */
+    public void setSecondaryIndexes(List<String> secondaryIndexes) {
+        this.secondaryIndexes = secondaryIndexes;
+    }
+
+    /**
+     * Estimates the size of the SST files of an existing database from the metadata loaded on open,
+     * without listing the files of the directory. Returns 0 if there is no database at the given path.
+     */
+    public static long estimateDbSize(File rocksdb) throws RocksDBException {
+        return estimateDbSize(rocksdb, List.of());
+    }
+
+    /**
+     * Estimates the size of a database whose SST files are spread over the given data paths.
+     */
+    public static long estimateDbSize(File rocksdb, List<DbPath> dataPaths) throws RocksDBException {
+        if (!new File(rocksdb, "CURRENT").isFile()) {
+            return 0;
+        }
+        RocksDB.loadLibrary();
+        try (Options probeOptions = new Options()
+                .setMaxOpenFiles(16)
+                .setSkipStatsUpdateOnDbOpen(true)
+                .setSkipCheckingSstFileSizesOnDbOpen(true)
+                .setDbPaths(dataPaths);
+             RocksDB probe = RocksDB.openReadOnly(probeOptions, rocksdb.getAbsolutePath())) {
+            return probe.getLongProperty("rocksdb.total-sst-files-size");
         }
-        return length;
     }
 
     public void initDbReadOnly(String dbPath, HashMap<String, String> optionsMap) throws Exception {
 
         File rocksdb = new File(dbPath);
-        Options options = loadOptions(optionsMap);
-        if (getIfRocksIsSmall(rocksdb)) {
-            options.optimizeForSmallDb();
+        String profile = tuningProfile;
+        if (optionsFile == null && TUNING_AUTO.equals(profile)) {
+            profile = estimateDbSize(rocksdb, dataPaths) < smallDatabaseThreshold ? TUNING_SMALL : TUNING_POINT_LOOKUP;
         }
 
-        db = RocksDB.openReadOnly(options, rocksdb.getAbsolutePath());
+        openDb(createOptions(profile, optionsMap), rocksdb.getAbsolutePath(), true);
+        readOnly = true;
+        readOptions = new ReadOptions();
+        initIteratorPool();
+        initWarmUp();
 
     }
 
     public void initDbWrite(String dbPath, HashMap<String, String> optionsMap) throws Exception {
 
+        // a writable database keeps the options it was written with until a profile is chosen explicitly
+        String profile = TUNING_AUTO.equals(tuningProfile) ? TUNING_NONE : tuningProfile;
 
-        db = RocksDB.open(loadOptions(optionsMap), new File(dbPath).getAbsolutePath());
+        Options options = createOptions(profile, optionsMap);
+        if (DURABILITY_MANUAL_WAL_FLUSH.equals(writeDurability)) {
+            options.setManualWalFlush(true);
+        }
+        if (compactionRateLimit > 0) {
+            // shared by flushes and compactions, so that background I/O never exceeds the limit
+            rateLimiter = new RateLimiter(compactionRateLimit);
+            options.setRateLimiter(rateLimiter);
+        }
+        if (disableAutoCompactions) {
+            options.setDisableAutoCompactions(true);
+        }
+        if (minBlobSize >= 0) {
+            options.setEnableBlobFiles(true)
+                    .setMinBlobSize(minBlobSize)
+                    .setBlobCompressionType(compressionType(blobCompression))
+                    .setEnableBlobGarbageCollection(blobGarbageCollectionAgeCutoff > 0)
+                    .setBlobGarbageCollectionAgeCutoff(blobGarbageCollectionAgeCutoff)
+                    .setBlobGarbageCollectionForceThreshold(blobGarbageCollectionForceThreshold);
+        }
+        if (compression != null) {
+            applyCompression(options);
+        }
+        openDb(options, new File(dbPath).getAbsolutePath(), false);
+        readOnly = false;
+        readOptions = new ReadOptions();
+        initWriteDurability();
+        initIteratorPool();
+        initWarmUp();
+
+    }
 
+    private void openDb(Options options, String path, boolean readOnly) throws RocksDBException {
+        columnFamilyOptions = new ColumnFamilyOptions(options);
+        List<byte[]> existingNames = new File(path, "CURRENT").isFile() ? RocksDB.listColumnFamilies(options, path) : List.of();
+        if (secondaryIndexes.isEmpty() && existingNames.size() <= 1) {
+            if (timeToLiveSeconds > 0) {
+                db = TtlDB.open(options, path, timeToLiveSeconds, readOnly);
+            } else {
+                db = readOnly ? RocksDB.openReadOnly(options, path) : RocksDB.open(options, path);
+            }
+            return;
+        }
 
+        // all the existing column families must be opened, the missing indexes are created
+        Set<String> names = new LinkedHashSet<>();
+        names.add(new String(RocksDB.DEFAULT_COLUMN_FAMILY, StandardCharsets.UTF_8));
+        for (byte[] name : existingNames) {
+            names.add(new String(name, StandardCharsets.UTF_8));
+        }
+        if (!readOnly) {
+            secondaryIndexes.forEach(index -> names.add(INDEX_COLUMN_FAMILY_PREFIX + index));
+        }
+        List<ColumnFamilyDescriptor> descriptors = names.stream()
+                .map(name -> new ColumnFamilyDescriptor(name.getBytes(StandardCharsets.UTF_8), columnFamilyOptions))
+                .collect(Collectors.toList());
+        dbOptions = new DBOptions(options).setCreateMissingColumnFamilies(!readOnly);
+        if (timeToLiveSeconds > 0) {
+            db = TtlDB.open(dbOptions, path, descriptors, columnFamilyHandles,
+                    Collections.nCopies(descriptors.size(), timeToLiveSeconds), readOnly);
+        } else if (readOnly) {
+            db = RocksDB.openReadOnly(dbOptions, path, descriptors, columnFamilyHandles);
+        } else {
+            db = RocksDB.open(dbOptions, path, descriptors, columnFamilyHandles);
+        }
+        int i = 0;
+        for (String name : names) {
+            String index = name.startsWith(INDEX_COLUMN_FAMILY_PREFIX) ? name.substring(INDEX_COLUMN_FAMILY_PREFIX.length()) : null;
+            if (index != null && secondaryIndexes.contains(index)) {
+                indexHandles.put(index, columnFamilyHandles.get(i));
+            } else if (SEEN_KEYS_COLUMN_FAMILY.equals(name)) {
+                seenKeysHandle = columnFamilyHandles.get(i);
+            }
+            i++;
+        }
+    }
+
+    private void applyCompression(Options options) {
+        options.setCompressionType(compressionType(compression));
+        if (!COMPRESSION_ZSTD.equals(compression) || zstdMaxDictBytes <= 0) {
+            return;
+        }
+        compressionOptions = new CompressionOptions()
+                .setMaxDictBytes(zstdMaxDictBytes)
+                .setZStdMaxTrainBytes(zstdMaxTrainBytes);
+        if (zstdDictionaryBottommostOnly) {
+            // the bottommost level holds most of the data, the upper levels are rewritten too often to pay for the training
+            options.setBottommostCompressionType(CompressionType.ZSTD_COMPRESSION)
+                    .setBottommostCompressionOptions(compressionOptions.setEnabled(true));
+        } else {
+            options.setCompressionOptions(compressionOptions);
+        }
     }
 
-    private Options loadOptions(HashMap<String, String> optionsMap) throws IllegalArgumentException, InvocationTargetException, IllegalAccessException {
+    static CompressionType compressionType(String compression) {
+        if (COMPRESSION_SNAPPY.equals(compression)) {
+            return CompressionType.SNAPPY_COMPRESSION;
+        } else if (COMPRESSION_LZ4.equals(compression)) {
+            return CompressionType.LZ4_COMPRESSION;
+        } else if (COMPRESSION_ZSTD.equals(compression)) {
+            return CompressionType.ZSTD_COMPRESSION;
+        }
+        return CompressionType.NO_COMPRESSION;
+    }
+
+    /**
+     * Builds the options from the OPTIONS file, if any, or from the tuning profile, then applies the dynamic options on top.
+     */
+    private Options createOptions(String profile, HashMap<String, String> optionsMap) throws RocksDBException {
         RocksDB.loadLibrary();
-        Options options = new Options();
-        for (Method declaredMethod : options.getClass().getDeclaredMethods()) {
-            if (optionsMap.containsKey(declaredMethod.getName()) && Modifier.toString(declaredMethod.getModifiers()).contains("public")) {
-                Class<?> classToConvert = declaredMethod.getParameterTypes()[0];
-                String entryValue = optionsMap.get(declaredMethod.getName());
-                if (classToConvert.equals(long.class)) {
-
-                    if (entryValue.matches("\\d")) {
-                        declaredMethod.invoke(options, Long.parseLong(entryValue));
-                        continue;
+        Options options;
+        if (optionsFile != null) {
+            options = RocksDbOptionsLoader.loadOptionsFile(optionsFile);
+            appliedTuningProfile = null;
+        } else {
+            options = new Options();
+            applyTuningProfile(options, profile);
+            appliedTuningProfile = profile;
+        }
+        // read only instances need the operator as well to combine the operands not yet compacted
+        if (MERGE_UINT64_ADD.equals(mergeOperator)) {
+            mergeOperatorHandle = new UInt64AddOperator();
+            options.setMergeOperator(mergeOperatorHandle);
+        } else if (MERGE_STRING_APPEND.equals(mergeOperator)) {
+            mergeOperatorHandle = new StringAppendOperator(appendDelimiter);
+            options.setMergeOperator(mergeOperatorHandle);
+        }
+        // read only instances need the paths as well to find the files and replay the log
+        if (!dataPaths.isEmpty()) {
+            options.setDbPaths(dataPaths);
+        }
+        if (walDir != null) {
+            options.setWalDir(walDir);
+        }
+        return RocksDbOptionsLoader.load(options, optionsMap, optionObjects);
+    }
+
+    private void initIteratorPool() {
+        if (iteratorRefreshInterval >= 0) {
+            // a read only database never changes, and its iterators cannot be refreshed
+            iteratorPool = new IteratorPool(db::newIterator, readOnly ? Long.MAX_VALUE : iteratorRefreshInterval);
+        }
+    }
+
+    private void initWarmUp() {
+        if (warmUpRate <= 0) {
+            return;
+        }
+        List<byte[]> keys = new ArrayList<>();
+        getLiveFiles().stream()
+                .sorted(Comparator.comparingInt(LiveFileMetaData::level))
+                .forEach(file -> {
+                    keys.add(file.smallestKey());
+                    keys.add(file.largestKey());
+                });
+        if (hotKeysFile != null) {
+            hotKeyTracker = new HotKeyTracker(maxHotKeys);
+            try {
+                keys.addAll(HotKeyTracker.load(hotKeysFile));
+            } catch (IOException | IllegalArgumentException e) {
+                warmUpFailure = e;
+                warmUpLogger.warn("Unable to read the hot keys file {}, only the SST file bounds are prefetched", hotKeysFile, e);
+            }
+        }
+        warmingUp = true;
+        warmer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "RocksDb warm-up " + db.getName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        warmer.submit(() -> warmUp(keys));
+    }
+
+    private void warmUp(List<byte[]> keys) {
+        int reads = 0;
+        try {
+            long capacity = db.getLongProperty("rocksdb.block-cache-capacity");
+            long targetUsage = (long) (capacity * warmUpTargetFill);
+            warmUpLogger.info("Warming up the block cache of {} up to {} bytes, reading at most {} keys at {} per second",
+                    db.getName(), targetUsage, keys.size(), warmUpRate);
+            long intervalNanos = TimeUnit.SECONDS.toNanos(1) / warmUpRate;
+            long nextRead = System.nanoTime();
+            for (byte[] key : keys) {
+                if (Thread.currentThread().isInterrupted() || db.getLongProperty("rocksdb.block-cache-usage") >= targetUsage) {
+                    break;
+                }
+                long wait = nextRead - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                // a slow read does not let the following ones burst above the rate
+                nextRead = Math.max(nextRead, System.nanoTime() - intervalNanos) + intervalNanos;
+                db.get(readOptions, key);
+                reads++;
+            }
+            long usage = db.getLongProperty("rocksdb.block-cache-usage");
+            warmUpLogger.info("Warm up of the block cache of {} ended after {} reads, {} bytes cached, {}% of the capacity",
+                    db.getName(), reads, usage, capacity > 0 ? usage * 100 / capacity : 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            warmUpLogger.info("Warm up of the block cache of {} stopped after {} reads", db.getName(), reads);
+        } catch (RocksDBException e) {
+            warmUpFailure = e;
+            warmUpLogger.warn("Warm up of the block cache of {} failed after {} reads", db.getName(), reads, e);
+        } finally {
+            warmingUp = false;
+        }
+    }
+
+    /**
+     * Whether RocksDB stops or delays the writes, or the compactions are behind the configured threshold.
+     * The properties are read at most every 100 milliseconds, so that writers can check before every batch.
+     */
+    public boolean isWriteStalled() {
+        if (readOnly || db == null) {
+            return false;
+        }
+        long now = System.nanoTime();
+        if (now - stallCheckedAt < STALL_CHECK_INTERVAL_NANOS) {
+            return writeStalled;
+        }
+        stallCheckedAt = now;
+        try {
+            long delayedWriteRate = db.getLongProperty("rocksdb.actual-delayed-write-rate");
+            writeStalled = db.getLongProperty("rocksdb.is-write-stopped") != 0
+                    || (delayedWriteRate > 0 && (stallDelayedWriteRate <= 0 || delayedWriteRate < stallDelayedWriteRate))
+                    || (stallPendingCompactionBytes > 0
+                    && db.getLongProperty("rocksdb.estimate-pending-compaction-bytes") > stallPendingCompactionBytes);
+        } catch (RocksDBException e) {
+            writeStalled = false;
+        }
+        return writeStalled;
+    }
+
+    /**
+     * Whether the write failed because RocksDB stalls the writes and the writes are not allowed to wait.
+     */
+    public static boolean isWriteStall(RocksDBException e) {
+        return e.getStatus() != null && e.getStatus().getCode() == Status.Code.Incomplete;
+    }
+
+    /**
+     * Whether the block cache is still being warmed up.
+     */
+    public boolean isWarmingUp() {
+        return warmingUp;
+    }
+
+    /**
+     * Returns the error that stopped the warm up, or prevented reading the hot keys file, if any.
+     */
+    public Exception getWarmUpFailure() {
+        return warmUpFailure;
+    }
+
+    /**
+     * Records the most read keys in the hot keys file, to prefetch them when the database is opened again.
+     */
+    public void saveHotKeys() throws IOException {
+        if (hotKeyTracker != null) {
+            hotKeyTracker.save(hotKeysFile);
+        }
+    }
+
+    private void initWriteDurability() {
+        writeOptions = new WriteOptions().setNoSlowdown(noSlowdown);
+        stallCheckedAt = System.nanoTime() - STALL_CHECK_INTERVAL_NANOS;
+        if (DURABILITY_NO_WAL.equals(writeDurability)) {
+            writeOptions.setDisableWAL(true);
+        } else if (DURABILITY_SYNC.equals(writeDurability)) {
+            writeOptions.setSync(true);
+        } else if (DURABILITY_MANUAL_WAL_FLUSH.equals(writeDurability)) {
+            walFlusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "RocksDb WAL flusher " + db.getName());
+                thread.setDaemon(true);
+                return thread;
+            });
+            walFlusher.scheduleWithFixedDelay(() -> {
+                try {
+                    db.flushWal(true);
+                } catch (RocksDBException e) {
+                    walFlushFailure = e;
+                }
+            }, walFlushIntervalMillis, walFlushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Compacts the keys between begin and end, both nullable to compact from the first or up to the last key,
+     * optionally enabling again the automatic compactions once done, e.g. at the end of a bulk load.
+     */
+    public void compact(byte[] begin, byte[] end, boolean enableAutoCompactions) throws RocksDBException {
+        if (begin == null && end == null) {
+            db.compactRange();
+        } else {
+            db.compactRange(begin, end);
+        }
+        if (enableAutoCompactions) {
+            db.setOptions(MutableColumnFamilyOptions.builder().setDisableAutoCompactions(false).build());
+        }
+    }
+
+    public long getLongProperty(String property) throws RocksDBException {
+        return db.getLongProperty(property);
+    }
+
+    /**
+     * Whether the automatic compactions are disabled, as currently set on the database rather than as configured.
+     */
+    public boolean isAutoCompactionsDisabled() throws RocksDBException {
+        return db.getOptions().disableAutoCompactions();
+    }
+
+    private void checkWalFlush() throws RocksDBException {
+        RocksDBException failure = walFlushFailure;
+        if (failure != null) {
+            walFlushFailure = null;
+            throw failure;
+        }
+    }
+
+    private void applyTuningProfile(Options options, String profile) {
+        if (TUNING_NONE.equals(profile)) {
+            return;
+        }
+        blockCache = new LRUCache(blockCacheSize);
+        if (TUNING_SMALL.equals(profile)) {
+            options.optimizeForSmallDb(blockCache);
+            return;
+        }
+
+        BlockBasedTableConfig tableConfig = new BlockBasedTableConfig()
+                .setBlockCache(blockCache)
+                .setCacheIndexAndFilterBlocks(true)
+                .setPinL0FilterAndIndexBlocksInCache(true);
+        if (TUNING_POINT_LOOKUP.equals(profile)) {
+            bloomFilter = new BloomFilter(10);
+            tableConfig.setFilterPolicy(bloomFilter)
+                    .setDataBlockIndexType(DataBlockIndexType.kDataBlockBinaryAndHash)
+                    .setDataBlockHashTableUtilRatio(0.75);
+            options.setMemtablePrefixBloomSizeRatio(0.02)
+                    .setMemtableWholeKeyFiltering(true);
+        } else if (TUNING_SCAN_HEAVY.equals(profile)) {
+            tableConfig.setBlockSize(64 * 1024);
+            options.setCompactionReadaheadSize(2 * 1024 * 1024)
+                    .setAdviseRandomOnOpen(false);
+        }
+        options.setTableFormatConfig(tableConfig);
+    }
+
+    public void saveEntry(byte[] key, String value) throws RocksDBException {
+        LatencyTrace trace = startTrace(true);
+        try {
+            long lockRequestedAt = trace == null ? 0 : System.nanoTime();
+            synchronized (this) {
+                if (trace != null) {
+                    trace.addLockWait(System.nanoTime() - lockRequestedAt);
+                }
+                checkWalFlush();
+                if (!indexHandles.isEmpty()) {
+                    saveIndexed(List.of(new AbstractMap.SimpleImmutableEntry<>(key, value)));
+                    return;
+                }
+                db.put(writeOptions, key, encode(value));
+                invalidateNegativeLookup(key);
+            }
+        } finally {
+            finishTrace(trace);
+        }
+    }
+
+    /**
+     * Merges the operand into the value of the key with the configured merge operator: a blind write that
+     * does not read the current value, so it is not synchronized unless the negative lookup cache is enabled.
+     */
+    public void merge(byte[] key, String operand) throws RocksDBException {
+        if (MERGE_NONE.equals(mergeOperator)) {
+            throw new RocksDBException("No merge operator configured");
+        }
+        checkWalFlush();
+        LatencyTrace trace = startTrace(true);
+        try {
+            if (negativeLookupCache != null) {
+                long lockRequestedAt = trace == null ? 0 : System.nanoTime();
+                // a concurrent miss must not cache the key as absent after this write
+                synchronized (this) {
+                    if (trace != null) {
+                        trace.addLockWait(System.nanoTime() - lockRequestedAt);
                     }
-                } else if (classToConvert.equals(String.class)) {
-                    declaredMethod.invoke(options, entryValue);
+                    db.merge(writeOptions, key, encode(operand));
+                    invalidateNegativeLookup(key);
+                }
+            } else {
+                db.merge(writeOptions, key, encode(operand));
+            }
+        } finally {
+            finishTrace(trace);
+        }
+    }
 
-                    continue;
-                } else if (classToConvert.equals(int.class)) {
+    /**
+     * Saves all the entries with a single write, so that they are committed, and synced if required, together.
+     */
+    public void saveEntries(List<Map.Entry<byte[], String>> entries, boolean merge) throws RocksDBException {
+        if (merge && MERGE_NONE.equals(mergeOperator)) {
+            throw new RocksDBException("No merge operator configured");
+        }
+        LatencyTrace trace = startTrace(true);
+        try {
+            long lockRequestedAt = trace == null ? 0 : System.nanoTime();
+            synchronized (this) {
+                if (trace != null) {
+                    trace.addLockWait(System.nanoTime() - lockRequestedAt);
+                }
+                checkWalFlush();
+                if (!merge && !indexHandles.isEmpty()) {
+                    saveIndexed(entries);
+                    return;
+                }
+                try (WriteBatch batch = new WriteBatch()) {
+                    for (Map.Entry<byte[], String> entry : entries) {
+                        if (merge) {
+                            batch.merge(entry.getKey(), encode(entry.getValue()));
+                        } else {
+                            batch.put(entry.getKey(), encode(entry.getValue()));
+                        }
+                    }
+                    db.write(writeOptions, batch);
+                }
+                for (Map.Entry<byte[], String> entry : entries) {
+                    invalidateNegativeLookup(entry.getKey());
+                }
+            }
+        } finally {
+            finishTrace(trace);
+        }
+    }
 
-                    if (entryValue.matches("\\d")) {
-                        declaredMethod.invoke(options, Integer.parseInt(entryValue));
-                        continue;
+    /**
+     * Writes the entries and their index entries in a single batch, removing the index entries
+     * of the values they replace, read with a single multi get.
+     */
+    private void saveIndexed(List<Map.Entry<byte[], String>> entries) throws RocksDBException {
+        List<byte[]> previousValues = db.multiGetAsList(readOptions, entries.stream().map(Map.Entry::getKey).collect(Collectors.toList()));
+        Map<ByteBuffer, String> written = new HashMap<>();
+        try (WriteBatch batch = new WriteBatch()) {
+            for (int i = 0; i < entries.size(); i++) {
+                byte[] key = entries.get(i).getKey();
+                String value = entries.get(i).getValue();
+                // a key written twice in the batch replaces the value written first
+                String previous = written.containsKey(ByteBuffer.wrap(key)) ? written.get(ByteBuffer.wrap(key))
+                        : previousValues.get(i) == null ? null : decode(previousValues.get(i));
+                Map<String, String> previousFields = indexedFields(previous);
+                Map<String, String> fields = indexedFields(value);
+                for (Map.Entry<String, ColumnFamilyHandle> index : indexHandles.entrySet()) {
+                    String previousField = previousFields.get(index.getKey());
+                    String field = fields.get(index.getKey());
+                    if (previousField != null && !previousField.equals(field)) {
+                        batch.delete(index.getValue(), indexKey(previousField, key));
                     }
-                } else if (classToConvert.equals(boolean.class)) {
-                    if (entryValue.equals("true") || entryValue.equals("false")) {
-                        declaredMethod.invoke(options, Boolean.parseBoolean(entryValue));
-                        continue;
+                    if (field != null) {
+                        batch.put(index.getValue(), indexKey(field, key), NO_VALUE);
                     }
                 }
-                throw new IllegalArgumentException("Wrong argument value passed");
+                batch.put(key, encode(value));
+                written.put(ByteBuffer.wrap(key), value);
             }
+            db.write(writeOptions, batch);
+        }
+        for (Map.Entry<byte[], String> entry : entries) {
+            invalidateNegativeLookup(entry.getKey());
         }
+    }
 
-        return options;
+    /**
+     * Returns the values of the indexed fields of a JSON object, empty if the value is not one.
+     */
+    private Map<String, String> indexedFields(String value) {
+        Map<String, String> fields = new HashMap<>();
+        if (value == null) {
+            return fields;
+        }
+        JsonNode object;
+        try {
+            object = OBJECT_MAPPER.readTree(value);
+        } catch (IOException e) {
+            return fields;
+        }
+        for (String index : indexHandles.keySet()) {
+            JsonNode field = object.get(index);
+            if (field != null && field.isValueNode() && !field.isNull()) {
+                fields.put(index, field.asText());
+            }
+        }
+        return fields;
     }
 
-    public synchronized void saveEntry(byte[] key, String value) throws RocksDBException {
+    private static byte[] indexKey(String field, byte[] key) {
+        byte[] prefix = indexPrefix(field);
+        byte[] indexKey = Arrays.copyOf(prefix, prefix.length + key.length);
+        System.arraycopy(key, 0, indexKey, prefix.length, key.length);
+        return indexKey;
+    }
 
-        db.put(key, SerializationUtils.serialize(value));
+    private static byte[] indexPrefix(String field) {
+        byte[] value = field.getBytes(StandardCharsets.UTF_8);
+        // the separator keeps a value from matching the longer values it is a prefix of
+        return Arrays.copyOf(value, value.length + 1);
+    }
 
+    /**
+     * Returns up to limit entries whose indexed field has the given value, in key order: a prefix seek
+     * on the index, then a single multi get of the keys found.
+     */
+    public List<Map.Entry<byte[], String>> lookupIndex(String index, String value, int limit, ReadSnapshot snapshot) throws RocksDBException {
+        ColumnFamilyHandle handle = indexHandles.get(index);
+        if (handle == null) {
+            throw new RocksDBException("Unknown secondary index " + index);
+        }
+        ReadOptions options = snapshot != null ? snapshot.getReadOptions() : readOptions;
+        byte[] prefix = indexPrefix(value);
+        List<byte[]> keys = new ArrayList<>();
+        try (RocksIterator it = db.newIterator(handle, options)) {
+            it.seek(prefix);
+            while (it.isValid() && keys.size() < limit) {
+                byte[] indexKey = it.key();
+                if (indexKey.length < prefix.length || !Arrays.equals(indexKey, 0, prefix.length, prefix, 0, prefix.length)) {
+                    break;
+                }
+                keys.add(Arrays.copyOfRange(indexKey, prefix.length, indexKey.length));
+                it.next();
+            }
+        }
+        List<Map.Entry<byte[], String>> entries = new ArrayList<>();
+        if (keys.isEmpty()) {
+            return entries;
+        }
+        List<byte[]> values = db.multiGetAsList(options, keys);
+        for (int i = 0; i < keys.size(); i++) {
+            if (values.get(i) != null) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(keys.get(i), decode(values.get(i))));
+            }
+        }
+        return entries;
+    }
 
+    /**
+     * Checks which keys have already been seen and records the new ones with the given timestamp, in a single batch.
+     * Bloom filters rule out most new keys, the others are read with a single multi get. A key recorded more than
+     * maxAgeMillis before now is not a duplicate, unless maxAgeMillis is not positive.
+     * The keys are recorded in their own column family, created on the first call, apart from the entries of the database.
+     *
+     * @return for each key, whether it is a duplicate of a recorded key or of a previous key of the same list
+     */
+    public synchronized boolean[] detectDuplicates(List<byte[]> keys, long now, long maxAgeMillis) throws RocksDBException {
+        checkWalFlush();
+        ColumnFamilyHandle seenKeys = seenKeysHandle();
+        boolean[] duplicates = new boolean[keys.size()];
+        List<Integer> candidates = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            if (db.keyMayExist(seenKeys, keys.get(i), null)) {
+                candidates.add(i);
+            }
+        }
+        if (!candidates.isEmpty()) {
+            List<byte[]> values = db.multiGetAsList(Collections.nCopies(candidates.size(), seenKeys),
+                    candidates.stream().map(keys::get).collect(Collectors.toList()));
+            for (int i = 0; i < candidates.size(); i++) {
+                byte[] value = values.get(i);
+                duplicates[candidates.get(i)] = value != null && value.length >= Long.BYTES
+                        && (maxAgeMillis <= 0 || now - ByteBuffer.wrap(value).getLong() <= maxAgeMillis);
+            }
+        }
+
+        Set<ByteBuffer> batchKeys = new HashSet<>();
+        byte[] timestamp = ByteBuffer.allocate(Long.BYTES).putLong(now).array();
+        try (WriteBatch batch = new WriteBatch()) {
+            for (int i = 0; i < keys.size(); i++) {
+                if (!batchKeys.add(ByteBuffer.wrap(keys.get(i)))) {
+                    duplicates[i] = true;
+                } else if (!duplicates[i]) {
+                    batch.put(seenKeys, keys.get(i), timestamp);
+                }
+            }
+            if (batch.count() > 0) {
+                db.write(writeOptions, batch);
+            }
+        }
+        return duplicates;
+    }
+
+    private ColumnFamilyHandle seenKeysHandle() throws RocksDBException {
+        if (seenKeysHandle == null) {
+            ColumnFamilyDescriptor descriptor = new ColumnFamilyDescriptor(SEEN_KEYS_COLUMN_FAMILY.getBytes(StandardCharsets.UTF_8),
+                    columnFamilyOptions);
+            seenKeysHandle = timeToLiveSeconds > 0
+                    ? ((TtlDB) db).createColumnFamilyWithTtl(descriptor, timeToLiveSeconds)
+                    : db.createColumnFamily(descriptor);
+            columnFamilyHandles.add(seenKeysHandle);
+        }
+        return seenKeysHandle;
+    }
+
+    /**
+     * Reads and decodes the values of all the keys with a single multi get, as of the snapshot if any.
+     * The negative lookup cache is bypassed with a snapshot, as it only knows about the keys missing now.
+     *
+     * @return for each key, its value or null if it is missing
+     */
+    public List<String> findValues(List<byte[]> keys, ReadSnapshot snapshot) throws RocksDBException {
+        List<byte[]> found = snapshot == null ? findAll(keys) : db.multiGetAsList(snapshot.getReadOptions(), keys);
+        List<String> values = new ArrayList<>(found.size());
+        for (byte[] value : found) {
+            values.add(value == null ? null : decodeValue(value));
+        }
+        return values;
+    }
+
+    /**
+     * Reads the values of all the keys with a single multi get.
+     *
+     * @return for each key, its value or null if it is missing
+     */
+    public List<byte[]> findAll(List<byte[]> keys) throws RocksDBException {
+        List<byte[]> values = new ArrayList<>(Collections.nCopies(keys.size(), null));
+        List<Integer> candidates = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            if (negativeLookupCache == null || !negativeLookupCache.contains(keys.get(i))) {
+                candidates.add(i);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return values;
+        }
+        synchronized (this) {
+            List<byte[]> found = db.multiGetAsList(readOptions, candidates.stream().map(keys::get).collect(Collectors.toList()));
+            for (int i = 0; i < candidates.size(); i++) {
+                byte[] value = found.get(i);
+                if (value == null && negativeLookupCache != null) {
+                    negativeLookupCache.add(keys.get(candidates.get(i)));
+                }
+                values.set(candidates.get(i), value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Puts all the raw entries with a single write.
+     */
+    public synchronized void putAll(List<Map.Entry<byte[], byte[]>> entries) throws RocksDBException {
+        checkWalFlush();
+        try (WriteBatch batch = new WriteBatch()) {
+            for (Map.Entry<byte[], byte[]> entry : entries) {
+                batch.put(entry.getKey(), entry.getValue());
+            }
+            db.write(writeOptions, batch);
+        }
+        for (Map.Entry<byte[], byte[]> entry : entries) {
+            invalidateNegativeLookup(entry.getKey());
+        }
+    }
+
+    /**
+     * Deletes all the keys with a single write.
+     *
+     * @return the number of keys that existed
+     */
+    public synchronized long deleteAll(List<byte[]> keys) throws RocksDBException {
+        checkWalFlush();
+        List<byte[]> candidates = new ArrayList<>();
+        for (byte[] key : keys) {
+            if (db.keyMayExist(key, null)) {
+                candidates.add(key);
+            }
+        }
+        long existing = candidates.isEmpty() ? 0
+                : db.multiGetAsList(readOptions, candidates).stream().filter(Objects::nonNull).count();
+        try (WriteBatch batch = new WriteBatch()) {
+            for (byte[] key : keys) {
+                batch.delete(key);
+            }
+            db.write(writeOptions, batch);
+        }
+        return existing;
+    }
+
+    /**
+     * Puts and deletes all the raw entries with a single write, an entry with a null value deletes its key.
+     */
+    public synchronized void writeBatch(List<Map.Entry<byte[], byte[]>> entries) throws RocksDBException {
+        checkWalFlush();
+        try (WriteBatch batch = new WriteBatch()) {
+            for (Map.Entry<byte[], byte[]> entry : entries) {
+                if (entry.getValue() == null) {
+                    batch.delete(entry.getKey());
+                } else {
+                    batch.put(entry.getKey(), entry.getValue());
+                }
+            }
+            db.write(writeOptions, batch);
+        }
+        for (Map.Entry<byte[], byte[]> entry : entries) {
+            if (entry.getValue() != null) {
+                invalidateNegativeLookup(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Returns, in key order, the raw keys accepted by the filter, without filling the block cache.
+     */
+    public List<byte[]> findKeys(Predicate<byte[]> filter) throws RocksDBException {
+        List<byte[]> keys = new ArrayList<>();
+        try (ReadOptions options = new ReadOptions().setFillCache(false);
+             RocksIterator it = db.newIterator(options)) {
+            for (it.seekToFirst(); it.isValid(); it.next()) {
+                byte[] key = it.key();
+                if (filter.test(key)) {
+                    keys.add(key);
+                }
+            }
+            it.status();
+        }
+        return keys;
+    }
+
+    /**
+     * Deletes the keys whose timestamp, as held by the key encoding, is before the cutoff with range tombstones:
+     * a single one if the keys start with the timestamp and the first key is expired, one per series with expired
+     * keys if they end with it, the series being found with a seek each. The deleted ranges are then compacted,
+     * so that their space is reclaimed and the reads no longer skip over the tombstones, while the files holding
+     * no expired key are left untouched.
+     *
+     * @return the number of deleted ranges
+     */
+    public long expireBefore(long cutoff) throws RocksDBException {
+        List<byte[][]> ranges = new ArrayList<>();
+        if (keyEncoder.isTimePrefixed()) {
+            byte[] end = keyEncoder.timestampKey(NO_VALUE, cutoff);
+            try (ReadOptions options = new ReadOptions().setFillCache(false);
+                 RocksIterator it = db.newIterator(options)) {
+                it.seekToFirst();
+                if (it.isValid() && Arrays.compareUnsigned(it.key(), end) < 0) {
+                    ranges.add(new byte[][]{keyEncoder.timestampKey(NO_VALUE, Long.MIN_VALUE), end});
+                }
+                it.status();
+            }
+        } else if (keyEncoder.isTimeSuffixed()) {
+            try (ReadOptions options = new ReadOptions().setFillCache(false);
+                 RocksIterator it = db.newIterator(options)) {
+                it.seekToFirst();
+                while (it.isValid()) {
+                    byte[] series = keyEncoder.seriesOf(it.key());
+                    if (series == null) {
+                        it.next();
+                        continue;
+                    }
+                    byte[] end = keyEncoder.timestampKey(series, cutoff);
+                    // the first key of the series is its oldest one
+                    if (Arrays.compareUnsigned(it.key(), end) < 0) {
+                        ranges.add(new byte[][]{keyEncoder.timestampKey(series, Long.MIN_VALUE), end});
+                    }
+                    byte[] last = keyEncoder.timestampKey(series, Long.MAX_VALUE);
+                    it.seek(last);
+                    if (it.isValid() && Arrays.equals(it.key(), last)) {
+                        it.next();
+                    }
+                }
+                it.status();
+            }
+        } else {
+            throw new RocksDBException("The key encoding does not hold a timestamp");
+        }
+        // a group of ranges is flushed as a single file spanning them, pulling into its compaction the files it
+        // overlaps: a file with no expired key between two ranges starts a new group, so that it is not rewritten
+        List<LiveFileMetaData> files = new ArrayList<>(getLiveFiles());
+        files.sort((a, b) -> Arrays.compareUnsigned(a.smallestKey(), b.smallestKey()));
+        List<byte[][]> group = new ArrayList<>();
+        for (byte[][] range : ranges) {
+            if (!group.isEmpty() && holdsFileBetween(files, group.get(group.size() - 1)[1], range[0])) {
+                deleteAndCompact(group);
+                group = new ArrayList<>();
+            }
+            group.add(range);
+        }
+        if (!group.isEmpty()) {
+            deleteAndCompact(group);
+        }
+        return ranges.size();
+    }
+
+    private void deleteAndCompact(List<byte[][]> ranges) throws RocksDBException {
+        synchronized (this) {
+            checkWalFlush();
+            try (WriteBatch batch = new WriteBatch()) {
+                for (byte[][] range : ranges) {
+                    batch.deleteRange(range[0], range[1]);
+                }
+                db.write(writeOptions, batch);
+            }
+        }
+        db.compactRange(ranges.get(0)[0], ranges.get(ranges.size() - 1)[1]);
+    }
+
+    /**
+     * Whether one of the files, sorted by smallest key, lies entirely between the two keys.
+     */
+    private static boolean holdsFileBetween(List<LiveFileMetaData> files, byte[] from, byte[] to) {
+        int low = 0;
+        int high = files.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (Arrays.compareUnsigned(files.get(middle).smallestKey(), from) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        for (int i = low; i < files.size() && Arrays.compareUnsigned(files.get(i).smallestKey(), to) < 0; i++) {
+            if (Arrays.compareUnsigned(files.get(i).largestKey(), to) < 0) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public synchronized boolean put(byte[] key, byte[] value) throws RocksDBException {
 
-        db.put(key, value);
+        checkWalFlush();
+        db.put(writeOptions, key, value);
+        invalidateNegativeLookup(key);
         return db.get(key) != null;
 
 
     }
 
-    public synchronized byte[] find(byte[] key) throws RocksDBException {
-        return db.get(key);
+    public byte[] find(byte[] key) throws RocksDBException {
+        if (negativeLookupCache != null && negativeLookupCache.contains(key)) {
+            return null;
+        }
+        // bloom filters and memtables can rule a key out without a full read
+        if (!db.keyMayExist(key, null)) {
+            return null;
+        }
+        LatencyTrace trace = activeTrace();
+        long lockRequestedAt = trace == null ? 0 : System.nanoTime();
+        synchronized (this) {
+            if (trace != null) {
+                trace.addLockWait(System.nanoTime() - lockRequestedAt);
+            }
+            byte[] value = db.get(key);
+            if (value == null && negativeLookupCache != null) {
+                negativeLookupCache.add(key);
+            } else if (value != null && hotKeyTracker != null) {
+                hotKeyTracker.record(key);
+            }
+            return value;
+        }
     }
 
     public synchronized boolean containsKey(byte[] key) throws RocksDBException {
@@ -135,33 +1234,162 @@ public class RocksDbUtils {
     }
 
     public synchronized boolean delete(byte[] key) throws RocksDBException {
-        db.delete(key);
+        checkWalFlush();
+        db.delete(writeOptions, key);
         return !db.keyExists(key);
     }
 
-    public synchronized String find(String key) throws RocksDBException {
-        Optional<Object> result = Optional.ofNullable(SerializationUtils.deserialize(db.get(key.getBytes(StandardCharsets.UTF_8))));
-        return result.map(Object::toString).orElse(null);
+    // the ByteBuffer methods read the key from its position to its limit, and reset it to its position for reuse
+
+    public synchronized boolean put(ByteBuffer key, ByteBuffer value) throws RocksDBException {
+        checkWalFlush();
+        key.mark();
+        db.put(writeOptions, key, value);
+        key.reset();
+        invalidateNegativeLookup(key);
+        return db.keyExists(key);
+    }
+
+    /**
+     * Reads the value of the key through the direct read buffer of the current thread,
+     * so that the returned array is the only allocation. Values larger than the buffers
+     * retained by a thread are read directly into an array.
+     */
+    public byte[] find(ByteBuffer key) throws RocksDBException {
+        if (negativeLookupCache != null && negativeLookupCache.contains(key)) {
+            return null;
+        }
+        if (!db.keyMayExist(key)) {
+            return null;
+        }
+        synchronized (this) {
+            ByteBuffer value = SerializationBuffers.get().read(0);
+            int size = get(key, value);
+            while (value != null && size > value.capacity()) {
+                // the value was truncated, read it again into a buffer large enough
+                value = SerializationBuffers.get().read(size);
+                if (value != null) {
+                    size = get(key, value);
+                }
+            }
+            byte[] result = null;
+            if (value == null) {
+                byte[] keyBytes = new byte[key.remaining()];
+                key.duplicate().get(keyBytes);
+                result = db.get(readOptions, keyBytes);
+                size = result == null ? RocksDB.NOT_FOUND : result.length;
+            }
+            if (size == RocksDB.NOT_FOUND) {
+                if (negativeLookupCache != null) {
+                    negativeLookupCache.add(key);
+                }
+                return null;
+            }
+            if (hotKeyTracker != null) {
+                hotKeyTracker.record(key);
+            }
+            if (result == null) {
+                result = new byte[size];
+                value.get(result);
+            }
+            return result;
+        }
+    }
+
+    private int get(ByteBuffer key, ByteBuffer value) throws RocksDBException {
+        key.mark();
+        int size = db.get(readOptions, key, value);
+        key.reset();
+        return size;
     }
 
-    public synchronized String findIterator(String key, String seekFor) throws RocksDBException {
-        try (RocksIterator it = this.db.newIterator()) {
+    public synchronized boolean containsKey(ByteBuffer key) throws RocksDBException {
+        return db.keyExists(key);
+    }
+
+    public synchronized boolean delete(ByteBuffer key) throws RocksDBException {
+        checkWalFlush();
+        key.mark();
+        db.delete(writeOptions, key);
+        key.reset();
+        return !db.keyExists(key);
+    }
+
+    /**
+     * Reads the value of the key as of the snapshot. The negative lookup cache is bypassed,
+     * as it only knows about the keys missing now.
+     */
+    public byte[] find(byte[] key, ReadSnapshot snapshot) throws RocksDBException {
+        if (snapshot == null) {
+            return find(key);
+        }
+        if (!db.keyMayExist(snapshot.getReadOptions(), key, null)) {
+            return null;
+        }
+        return db.get(snapshot.getReadOptions(), key);
+    }
+
+    public String find(String key) throws RocksDBException {
+        return find(key, null);
+    }
+
+    public String find(String key, ReadSnapshot snapshot) throws RocksDBException {
+        LatencyTrace trace = startTrace(false);
+        try {
+            byte[] value = find(keyEncoder.encode(key), snapshot);
+            if (value == null) {
+                return null;
+            }
+            return decode(value);
+        } finally {
+            finishTrace(trace);
+        }
+    }
+
+    public Record findRecord(String key, ReadSnapshot snapshot) throws RocksDBException {
+        if (recordCodec == null) {
+            throw new RocksDBException("Values are not stored as records");
+        }
+        LatencyTrace trace = startTrace(false);
+        try {
+            byte[] value = find(keyEncoder.encode(key), snapshot);
+            if (value == null) {
+                return null;
+            }
+            long decodeStartedAt = trace == null ? 0 : System.nanoTime();
+            Record record = recordCodec.decode(value);
+            if (trace != null) {
+                trace.addCodecTime(System.nanoTime() - decodeStartedAt);
+            }
+            return record;
+        } finally {
+            finishTrace(trace);
+        }
+    }
+
+    public String findIterator(String key, String seekFor) throws RocksDBException {
+        return findIterator(key, seekFor, null);
+    }
+
+    public String findIterator(String key, String seekFor, ReadSnapshot snapshot) throws RocksDBException {
+        RocksIterator it = acquireIterator(snapshot);
+        try {
             if (SEEK_PREV.equals(seekFor)) {
-                it.seek(key.getBytes(StandardCharsets.UTF_8));
+                it.seek(keyEncoder.encode(key));
                 if (!it.isValid()) {
                     throw new RocksDBException("Error while searching for " + key + " value with " + seekFor + " method.");
                 }
                 it.prev();
                 return getString(key, seekFor, it);
             } else if (SEEK_NEXT.equals(seekFor)) {
-                it.seek(key.getBytes(StandardCharsets.UTF_8));
+                it.seek(keyEncoder.encode(key));
                 if (!it.isValid()) {
                     throw new RocksDBException("Error while searching for " + key + " value with " + seekFor + " method.");
                 }
                 it.next();
                 return getString(key, seekFor, it);
             } else if (SEEK_FOR_PREV.equals(seekFor)) {
-                it.seekForPrev(key.getBytes(StandardCharsets.UTF_8));
+                it.seekForPrev(keyEncoder.encode(key));
                 if (!it.isValid()) {
                     throw new RocksDBException("Error while searching for " + key + " value with " + seekFor + " method.");
                 }
@@ -169,22 +1397,516 @@ public class RocksDbUtils {
             }
         } catch (RocksDBException e) {
             throw new RuntimeException(e);
+        } finally {
+            releaseIterator(it, snapshot);
         }
         return null;
     }
 
+    /**
+     * Returns up to limit entries starting from the first key greater than or equal to the given one, or,
+     * when reverse, from the last key less than or equal to it going backwards.
+     */
+    public List<Map.Entry<byte[], String>> scan(byte[] key, boolean reverse, int limit, ReadSnapshot snapshot) throws RocksDBException {
+        List<Map.Entry<byte[], String>> entries = new ArrayList<>();
+        RocksIterator it = acquireIterator(snapshot);
+        try {
+            if (reverse) {
+                it.seekForPrev(key);
+            } else {
+                it.seek(key);
+            }
+            while (it.isValid() && entries.size() < limit) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(it.key(), decodeIterated(it.value())));
+                if (reverse) {
+                    it.prev();
+                } else {
+                    it.next();
+                }
+            }
+        } finally {
+            releaseIterator(it, snapshot);
+        }
+        return entries;
+    }
+
+    /**
+     * Positions an iterator as the iterator search does, on the entry following the first key greater than or equal
+     * to the given one for {@code SEEK_NEXT}, on the last key less than it for {@code SEEK_PREV} and on the last key
+     * less than or equal to it for {@code SEEK_FOR_PREV}, then returns up to limit entries moving in the given direction.
+     */
+    public List<Map.Entry<byte[], String>> scanFrom(byte[] key, String seekFor, boolean reverse, int limit,
+                                                    ReadSnapshot snapshot) throws RocksDBException {
+        List<Map.Entry<byte[], String>> entries = new ArrayList<>();
+        RocksIterator it = acquireIterator(snapshot);
+        try {
+            if (SEEK_NEXT.equals(seekFor)) {
+                it.seek(key);
+                if (it.isValid()) {
+                    it.next();
+                }
+            } else if (SEEK_PREV.equals(seekFor)) {
+                it.seek(key);
+                if (it.isValid()) {
+                    it.prev();
+                } else {
+                    it.seekToLast();
+                }
+            } else if (SEEK_FOR_PREV.equals(seekFor)) {
+                it.seekForPrev(key);
+            } else {
+                return entries;
+            }
+            while (it.isValid() && entries.size() < limit) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(it.key(), decodeIterated(it.value())));
+                if (reverse) {
+                    it.prev();
+                } else {
+                    it.next();
+                }
+            }
+        } finally {
+            releaseIterator(it, snapshot);
+        }
+        return entries;
+    }
+
+    /**
+     * Returns up to maxEntries raw entries in key order, read in runs of consecutive keys spread over the key space,
+     * so that they compress as the blocks of the SST files do, without filling the block cache.
+     */
+    public List<Map.Entry<byte[], byte[]>> sampleEntries(int maxEntries) throws RocksDBException {
+        List<byte[]> starts = new ArrayList<>();
+        starts.add(null);
+        starts.addAll(splitKeySpace(getLiveFiles(), SAMPLE_RUNS));
+        int runLength = Math.max(1, (maxEntries + starts.size() - 1) / starts.size());
+        List<Map.Entry<byte[], byte[]>> entries = new ArrayList<>();
+        try (ReadOptions options = new ReadOptions().setFillCache(false);
+             RocksIterator it = db.newIterator(options)) {
+            for (int i = 0; i < starts.size() && entries.size() < maxEntries; i++) {
+                if (starts.get(i) == null) {
+                    it.seekToFirst();
+                } else {
+                    it.seek(starts.get(i));
+                }
+                // a run stops where the next one starts, so that the keys stay unique and ordered
+                byte[] end = i + 1 < starts.size() ? starts.get(i + 1) : null;
+                for (int read = 0; it.isValid() && read < runLength && entries.size() < maxEntries
+                        && (end == null || Arrays.compareUnsigned(it.key(), end) < 0); read++) {
+                    entries.add(new AbstractMap.SimpleImmutableEntry<>(it.key(), it.value()));
+                    it.next();
+                }
+            }
+            it.status();
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the SST files of the entries, leaving out the ones of the secondary indexes.
+     */
+    public List<LiveFileMetaData> getLiveFiles() {
+        return db.getLiveFilesMetaData().stream()
+                .filter(file -> Arrays.equals(file.columnFamilyName(), RocksDB.DEFAULT_COLUMN_FAMILY))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Splits the key space into at most maxRanges ranges holding about the same amount of data, from the key ranges
+     * and sizes of the given SST files. Files of different levels overlap, so the split is only approximate.
+     *
+     * @return the keys where the ranges following the first one start, in key order
+     */
+    public static List<byte[]> splitKeySpace(List<? extends SstFileMetaData> files, int maxRanges) {
+        List<SstFileMetaData> sorted = new ArrayList<>(files);
+        sorted.sort((a, b) -> Arrays.compareUnsigned(a.smallestKey(), b.smallestKey()));
+        long total = sorted.stream().mapToLong(SstFileMetaData::size).sum();
+        List<byte[]> boundaries = new ArrayList<>();
+        long accumulated = 0;
+        for (SstFileMetaData file : sorted) {
+            if (boundaries.size() + 1 >= maxRanges) {
+                break;
+            }
+            // a range ends where the first file beyond its share of the data starts
+            if (accumulated > 0 && accumulated >= total * (boundaries.size() + 1) / maxRanges
+                    && (boundaries.isEmpty() || Arrays.compareUnsigned(file.smallestKey(), boundaries.get(boundaries.size() - 1)) > 0)) {
+                boundaries.add(file.smallestKey());
+            }
+            accumulated += file.size();
+        }
+        return boundaries;
+    }
+
+    @FunctionalInterface
+    public interface EntryVisitor {
+        void visit(byte[] key, String value) throws IOException;
+    }
+
+    /**
+     * Visits in key order the entries from startKey, inclusive, to endKey, exclusive, with an iterator bounded to
+     * the range that neither fills the block cache nor is shared. A null key leaves its side of the range open.
+     */
+    public void scanRange(byte[] startKey, byte[] endKey, ReadSnapshot snapshot, EntryVisitor visitor) throws RocksDBException, IOException {
+        scanRange(List.of(this), Collections.singletonList(snapshot), startKey, endKey, visitor);
+    }
+
+    /**
+     * Visits in key order the entries of the range held by all the databases, merging their bounded iterators,
+     * so that databases splitting the keys between them are read as a single one.
+     *
+     * @param snapshots the snapshot of each database, null to read the latest entries
+     */
+    public static void scanRange(List<RocksDbUtils> databases, List<ReadSnapshot> snapshots, byte[] startKey, byte[] endKey,
+                                 EntryVisitor visitor) throws RocksDBException, IOException {
+        List<RangeCursor> cursors = new ArrayList<>();
+        try {
+            PriorityQueue<RangeCursor> queue = new PriorityQueue<>((a, b) -> Arrays.compareUnsigned(a.key, b.key));
+            for (int i = 0; i < databases.size(); i++) {
+                RangeCursor cursor = new RangeCursor(databases.get(i), startKey, endKey, snapshots.get(i));
+                cursors.add(cursor);
+                if (cursor.load()) {
+                    queue.add(cursor);
+                }
+            }
+            while (!queue.isEmpty()) {
+                RangeCursor cursor = queue.poll();
+                visitor.visit(cursor.key, cursor.database.decodeIterated(cursor.iterator.value()));
+                cursor.iterator.next();
+                if (cursor.load()) {
+                    queue.add(cursor);
+                }
+            }
+        } finally {
+            cursors.forEach(RangeCursor::close);
+        }
+    }
+
+    /**
+     * Iterator of a database bounded to a key range, with the key of its current entry.
+     */
+    private static final class RangeCursor implements AutoCloseable {
+        private final RocksDbUtils database;
+        private final Slice lowerBound;
+        private final Slice upperBound;
+        private final ReadOptions options;
+        private final RocksIterator iterator;
+        private byte[] key;
+
+        private RangeCursor(RocksDbUtils database, byte[] startKey, byte[] endKey, ReadSnapshot snapshot) {
+            this.database = database;
+            this.lowerBound = startKey == null ? null : new Slice(startKey);
+            this.upperBound = endKey == null ? null : new Slice(endKey);
+            this.options = new ReadOptions().setFillCache(false).setReadaheadSize(2L * 1024 * 1024);
+            if (lowerBound != null) {
+                options.setIterateLowerBound(lowerBound);
+            }
+            if (upperBound != null) {
+                options.setIterateUpperBound(upperBound);
+            }
+            if (snapshot != null) {
+                options.setSnapshot(snapshot.getSnapshot());
+            }
+            this.iterator = database.db.newIterator(options);
+            if (startKey != null) {
+                iterator.seek(startKey);
+            } else {
+                iterator.seekToFirst();
+            }
+        }
+
+        /**
+         * Reads the key of the current entry.
+         *
+         * @return false at the end of the range
+         */
+        private boolean load() throws RocksDBException {
+            if (!iterator.isValid()) {
+                // an iterator also stops on errors, which would otherwise pass for the end of the range
+                iterator.status();
+                return false;
+            }
+            key = iterator.key();
+            return true;
+        }
+
+        @Override
+        public void close() {
+            iterator.close();
+            options.close();
+            if (lowerBound != null) {
+                lowerBound.close();
+            }
+            if (upperBound != null) {
+                upperBound.close();
+            }
+        }
+    }
+
+    /**
+     * Returns a new iterator reading the snapshot if any, otherwise the pooled iterator of the current thread
+     * if iterators are reused, a new one if they are not.
+     */
+    private RocksIterator acquireIterator(ReadSnapshot snapshot) throws RocksDBException {
+        if (snapshot != null) {
+            return db.newIterator(snapshot.getReadOptions());
+        }
+        return iteratorPool != null ? iteratorPool.acquire() : db.newIterator();
+    }
+
+    private void releaseIterator(RocksIterator it, ReadSnapshot snapshot) {
+        if (snapshot != null || iteratorPool == null) {
+            it.close();
+        }
+    }
+
+    /**
+     * Acquires a snapshot of the database, to be released with {@link #releaseSnapshot(ReadSnapshot)}.
+     * Snapshots not yet released when the database is closed are released then.
+     */
+    public ReadSnapshot acquireSnapshot() {
+        ReadSnapshot snapshot = new ReadSnapshot(db.getSnapshot());
+        snapshots.add(snapshot);
+        return snapshot;
+    }
+
+    public void releaseSnapshot(ReadSnapshot snapshot) {
+        if (snapshots.remove(snapshot)) {
+            db.releaseSnapshot(snapshot.getSnapshot());
+            snapshot.close();
+        }
+    }
+
     private String getString(String key, String seekFor, RocksIterator it) throws RocksDBException {
         if (it.isValid()) {
 
-            return
-                    Objects.requireNonNull(SerializationUtils.deserialize(it.value())).toString()
-                            .replace("\\\"", "\"");
+            return decodeIterated(it.value());
         } else {
             throw new RocksDBException("Error while searching for " + key + " value with " + seekFor + " method.");
         }
     }
 
+    private String decodeIterated(byte[] value) {
+        if (recordCodec != null) {
+            return recordCodec.decodeJson(value);
+        }
+        return Objects.requireNonNull(decode(value)).replace("\\\"", "\"");
+    }
+
+    /**
+     * Values are Java serialized strings, unless a merge operator is configured: the operands must then be
+     * in the format of the operator, 64 bit little endian integers or UTF-8 strings. With a record codec
+     * values are JSON objects stored as Avro records.
+     */
+    private byte[] encode(String value) {
+        LatencyTrace trace = activeTrace();
+        if (trace == null) {
+            return encodeValue(value);
+        }
+        long startedAt = System.nanoTime();
+        byte[] encoded = encodeValue(value);
+        trace.addCodecTime(System.nanoTime() - startedAt);
+        return encoded;
+    }
+
+    private byte[] encodeValue(String value) {
+        if (recordCodec != null) {
+            return recordCodec.encodeJson(value);
+        } else if (MERGE_UINT64_ADD.equals(mergeOperator)) {
+            return ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN).putLong(Long.parseLong(value.trim())).array();
+        } else if (MERGE_STRING_APPEND.equals(mergeOperator)) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+        return SerializationUtils.serialize(value);
+    }
+
+    private String decode(byte[] value) {
+        LatencyTrace trace = activeTrace();
+        if (trace == null) {
+            return decodeValue(value);
+        }
+        long startedAt = System.nanoTime();
+        String decoded = decodeValue(value);
+        trace.addCodecTime(System.nanoTime() - startedAt);
+        return decoded;
+    }
+
+    private String decodeValue(byte[] value) {
+        if (recordCodec != null) {
+            return recordCodec.decodeJson(value);
+        } else if (MERGE_UINT64_ADD.equals(mergeOperator)) {
+            return Long.toString(ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN).getLong());
+        } else if (MERGE_STRING_APPEND.equals(mergeOperator)) {
+            return new String(value, StandardCharsets.UTF_8);
+        }
+        Optional<Object> result = Optional.ofNullable(SerializationUtils.deserialize(value));
+        return result.map(Object::toString).orElse(null);
+    }
+
+    /**
+     * Starts tracing the operation if it is sampled, turning on the RocksDB PerfContext of the current thread.
+     *
+     * @return the trace, or null if the operation is not sampled
+     */
+    private LatencyTrace startTrace(boolean write) {
+        if (latencySampleRate <= 0 || ACTIVE_TRACE.get() != null) {
+            return null;
+        }
+        // the trace of a previous operation must not be taken for this one
+        LAST_TRACE.remove();
+        if (latencySampleCounter.getAndIncrement() % latencySampleRate != 0) {
+            return null;
+        }
+        LatencyTrace trace = new LatencyTrace(this, write);
+        db.setPerfLevel(PerfLevel.ENABLE_TIME_EXCEPT_FOR_MUTEX);
+        db.getPerfContext().reset();
+        ACTIVE_TRACE.set(trace);
+        return trace;
+    }
+
+    private void finishTrace(LatencyTrace trace) {
+        if (trace == null) {
+            return;
+        }
+        ACTIVE_TRACE.remove();
+        trace.finish(db.getPerfContext());
+        db.setPerfLevel(PerfLevel.DISABLE);
+        LAST_TRACE.set(trace);
+    }
+
+    private LatencyTrace activeTrace() {
+        return latencySampleRate > 0 ? ACTIVE_TRACE.get() : null;
+    }
+
+    /**
+     * Returns the trace of the last sampled operation of the current thread, if any, and forgets it.
+     */
+    public static LatencyTrace takeLatencyTrace() {
+        LatencyTrace trace = LAST_TRACE.get();
+        LAST_TRACE.remove();
+        return trace;
+    }
+
+    /**
+     * Makes the given trace, taken on the thread that ran the operation, the last one of the current thread,
+     * so that the operations run on other threads for the current one are traced as well.
+     */
+    public static void handOverLatencyTrace(LatencyTrace trace) {
+        if (trace == null) {
+            LAST_TRACE.remove();
+        } else {
+            LAST_TRACE.set(trace);
+        }
+    }
+
+    /**
+     * Returns the number of lookups of absent keys answered by the negative lookup cache, without reading the database.
+     */
+    public long getNegativeLookupHits() {
+        return negativeLookupCache == null ? 0 : negativeLookupCache.getHits();
+    }
+
+    private void invalidateNegativeLookup(byte[] key) {
+        if (negativeLookupCache != null) {
+            negativeLookupCache.remove(key);
+        }
+    }
+
+    private void invalidateNegativeLookup(ByteBuffer key) {
+        if (negativeLookupCache != null) {
+            negativeLookupCache.remove(key);
+        }
+    }
+
     public void resetDb() {
-        db.close();
+        if (db == null) {
+            return;
+        }
+        if (warmer != null) {
+            // the warm up must not read from a closed database
+            warmer.shutdownNow();
+            try {
+                warmer.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            warmer = null;
+        }
+        hotKeyTracker = null;
+        snapshots.forEach(this::releaseSnapshot);
+        if (negativeLookupCache != null) {
+            negativeLookupCache.clear();
+        }
+        if (walFlusher != null) {
+            // a WAL flush in progress must complete before the database is closed
+            walFlusher.shutdownNow();
+            try {
+                walFlusher.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            walFlusher = null;
+        }
+        if (iteratorPool != null) {
+            // iterators must be closed before the database
+            iteratorPool.close();
+            iteratorPool = null;
+        }
+        try {
+            if (!readOnly && DURABILITY_NO_WAL.equals(writeDurability)) {
+                // without a WAL the memtables are the only copy of the latest writes
+                try (FlushOptions flushOptions = new FlushOptions().setWaitForFlush(true)) {
+                    db.flush(flushOptions);
+                }
+            } else if (!readOnly && DURABILITY_MANUAL_WAL_FLUSH.equals(writeDurability)) {
+                db.flushWal(true);
+            }
+        } catch (RocksDBException e) {
+            throw new RuntimeException(e);
+        } finally {
+            // column family handles must be closed before the database
+            columnFamilyHandles.forEach(ColumnFamilyHandle::close);
+            columnFamilyHandles.clear();
+            indexHandles.clear();
+            seenKeysHandle = null;
+            db.close();
+            db = null;
+            // the options must outlive the database and its column families
+            columnFamilyOptions.close();
+            columnFamilyOptions = null;
+            if (dbOptions != null) {
+                dbOptions.close();
+                dbOptions = null;
+            }
+            if (writeOptions != null) {
+                writeOptions.close();
+                writeOptions = null;
+            }
+            if (readOptions != null) {
+                readOptions.close();
+                readOptions = null;
+            }
+            if (blockCache != null) {
+                blockCache.close();
+                blockCache = null;
+            }
+            if (bloomFilter != null) {
+                bloomFilter.close();
+                bloomFilter = null;
+            }
+            if (rateLimiter != null) {
+                rateLimiter.close();
+                rateLimiter = null;
+            }
+            if (mergeOperatorHandle != null) {
+                mergeOperatorHandle.close();
+                mergeOperatorHandle = null;
+            }
+            if (compressionOptions != null) {
+                compressionOptions.close();
+                compressionOptions = null;
+            }
+            optionObjects.forEach(RocksObject::close);
+            optionObjects.clear();
+        }
     }
 }
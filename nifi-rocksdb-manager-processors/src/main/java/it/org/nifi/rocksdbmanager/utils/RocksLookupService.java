@@ -20,6 +20,9 @@ package it.org.nifi.rocksdbmanager.utils;
 import it.org.nifi.rocksdbmanager.exception.LookupFailureException;
 import org.apache.nifi.controller.ControllerService;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
@@ -34,6 +37,72 @@ public interface RocksLookupService<T> extends ControllerService {
      */
     Optional<T> search(Map<String, Object> coordinates) throws LookupFailureException;
 
+    /**
+     * Searches the values of all the given coordinates. Implementations may run the searches in parallel.
+     *
+     * @param coordinatesList the list of coordinates to search
+     * @return the values that correspond to the coordinates, in the same order
+     * @throws LookupFailureException if unable to read the values
+     */
+    default List<Optional<T>> searchAll(List<Map<String, Object>> coordinatesList) throws LookupFailureException {
+        List<Optional<T>> results = new ArrayList<>();
+        for (Map<String, Object> coordinates : coordinatesList) {
+            results.add(search(coordinates));
+        }
+        return results;
+    }
+
+    /**
+     * Scans the entries from the position given by the map of information, referred to as lookup coordinates
+     *
+     * @param coordinates a Map of key/value pairs that indicate the position, the direction and the number of entries
+     * @return the keys and values found, in scan order
+     * @throws LookupFailureException if unable to read the entries for the given coordinates
+     */
+    List<Map.Entry<String, T>> scan(Map<String, Object> coordinates) throws LookupFailureException;
+
+    /**
+     * Splits the key space into ranges holding about the same amount of data, to be scanned in parallel
+     *
+     * @param maxRanges the maximum number of ranges
+     * @return the ranges in key order, each as its first key and the key where it ends, null for an open side
+     * @throws LookupFailureException if unable to read the layout of the data
+     */
+    List<Map.Entry<String, String>> splitKeyRanges(int maxRanges) throws LookupFailureException;
+
+    /**
+     * Scans all the entries of a key range
+     *
+     * @param startKey   the first key of the range, or null to start from the first key
+     * @param endKey     the key where the range ends, excluded, or null to scan up to the last key
+     * @param snapshotId the id of the snapshot to read, or null to read the latest data
+     * @param consumer   the consumer of the entries, called in key order for each database
+     * @throws LookupFailureException if unable to read the entries
+     * @throws IOException            if the consumer fails
+     */
+    void scanRange(String startKey, String endKey, String snapshotId, EntryConsumer<T> consumer) throws LookupFailureException, IOException;
+
+    @FunctionalInterface
+    interface EntryConsumer<T> {
+        void accept(String key, T value) throws IOException;
+    }
+
+    /**
+     * Acquires a snapshot of the data. The searches and scans whose coordinates hold its id under "snapshot"
+     * read the data as of the acquisition, whatever is written meanwhile
+     *
+     * @return the id of the snapshot, to be released with {@link #releaseSnapshot(String)}
+     * @throws LookupFailureException if unable to acquire the snapshot
+     */
+    String acquireSnapshot() throws LookupFailureException;
+
+    /**
+     * Releases a snapshot acquired with {@link #acquireSnapshot()}
+     *
+     * @param snapshotId the id of the snapshot
+     */
+    void releaseSnapshot(String snapshotId);
+
     /**
      * Writes a value that corresponds to the given map of information, referred to as lookup coordinates
      *
@@ -41,4 +110,38 @@ public interface RocksLookupService<T> extends ControllerService {
      * @throws LookupFailureException if unable to write a value for the given coordinates
      */
     void write(Map<String, Object> coordinates) throws LookupFailureException;
-}
\ No newline at end of file
+
+    /**
+     * Writes the values of all the given coordinates. Implementations may commit them together as a single batch.
+     *
+     * @param coordinatesList the list of coordinates to write
+     * @throws LookupFailureException if unable to write the values
+     */
+    default void writeAll(List<Map<String, Object>> coordinatesList) throws LookupFailureException {
+        for (Map<String, Object> coordinates : coordinatesList) {
+            write(coordinates);
+        }
+    }
+
+    /**
+     * Whether the writes are stalled by RocksDB, so that writers should yield instead of blocking.
+     */
+    default boolean isWriteStalled() {
+        return false;
+    }
+
+    /**
+     * Whether the service is still warming up its cache after being enabled, so that reads may be slower.
+     */
+    default boolean isWarmingUp() {
+        return false;
+    }
+
+    /**
+     * Returns the latency breakdown of the last search or write of the current thread, as rocksdb.latency.* attributes,
+     * if the service sampled it, otherwise an empty map. The breakdown is returned only once.
+     */
+    default Map<String, String> takeLatencyAttributes() {
+        return Map.of();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.org.nifi.rocksdbmanager.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Direct buffers of the current thread, reused by the key/value reads and writes that go through
+ * the {@link ByteBuffer} methods of {@link RocksDbUtils}.
+ */
+public final class SerializationBuffers {
+
+    /**
+     * Largest capacity a buffer keeps between two uses, so that a thread does not hold on to the largest entry it ever
+     * serialized or read: larger buffers are released on the next reset, larger values are read into heap arrays.
+     */
+    static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+    private static final ThreadLocal<SerializationBuffers> BUFFERS = ThreadLocal.withInitial(SerializationBuffers::new);
+
+    private final DirectBufferOutputStream key = new DirectBufferOutputStream(256, MAX_RETAINED_CAPACITY);
+    private final DirectBufferOutputStream value = new DirectBufferOutputStream(4096, MAX_RETAINED_CAPACITY);
+    private ByteBuffer read = ByteBuffer.allocateDirect(4096);
+
+    private SerializationBuffers() {
+    }
+
+    public static SerializationBuffers get() {
+        return BUFFERS.get();
+    }
+
+    /**
+     * Returns the key stream, reset for a new serialization.
+     */
+    public DirectBufferOutputStream key() {
+        key.reset();
+        return key;
+    }
+
+    /**
+     * Returns the value stream, reset for a new serialization.
+     */
+    public DirectBufferOutputStream value() {
+        value.reset();
+        return value;
+    }
+
+    /**
+     * Returns the cleared buffer into which values are read, grown to at least the given capacity,
+     * or null if the capacity is above {@link #MAX_RETAINED_CAPACITY}.
+     */
+    ByteBuffer read(int minCapacity) {
+        if (minCapacity > MAX_RETAINED_CAPACITY) {
+            return null;
+        }
+        if (read.capacity() < minCapacity) {
+            read = ByteBuffer.allocateDirect(Math.min(Math.max(read.capacity() * 2, minCapacity), MAX_RETAINED_CAPACITY));
+        }
+        read.clear();
+        return read;
+    }
+}
@@ -17,30 +17,99 @@
 
 package it.org.nifi.rocksdbmanager.processors;
 
+import it.org.nifi.rocksdbmanager.exception.LookupFailureException;
 import it.org.nifi.rocksdbmanager.services.RocksDbDistributedMapCacheClientService;
+import it.org.nifi.rocksdbmanager.services.RocksDbDistributedMapCacheServer;
 import it.org.nifi.rocksdbmanager.services.RocksDbService;
+import it.org.nifi.rocksdbmanager.services.ShardedRocksDbService;
+import it.org.nifi.rocksdbmanager.utils.DirectBufferOutputStream;
 import it.org.nifi.rocksdbmanager.utils.RocksDbUtils;
+import it.org.nifi.rocksdbmanager.utils.SerializationBuffers;
+import org.apache.avro.Schema;
+import org.apache.nifi.avro.AvroTypeUtil;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.distributed.cache.client.Deserializer;
+import org.apache.nifi.distributed.cache.client.Serializer;
+import org.apache.nifi.logging.ComponentLog;
 import org.apache.nifi.processors.standard.FetchDistributedMapCache;
 import org.apache.nifi.processors.standard.PutDistributedMapCache;
 import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.schema.access.SchemaField;
+import org.apache.nifi.schemaregistry.services.SchemaRegistry;
+import org.apache.nifi.serialization.AbstractRecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.SchemaIdentifier;
 import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
 import org.apache.nifi.util.file.FileUtils;
 import org.junit.jupiter.api.*;
+import org.rocksdb.LiveFileMetaData;
+import org.rocksdb.RocksDBException;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static it.org.nifi.rocksdbmanager.utils.PropertyDescriptorUtils.*;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @TestMethodOrder(MethodOrderer.OrderAnnotation.class)
 class ProcessorsAndServiceTest {
 
     private static final String DB_NAME = "./rockstest";
+    private static final String OPTIONS_DB_NAME = "./rockstest-options";
+    private static final String MERGE_DB_NAME = "./rockstest-merge";
+    private static final String DEDUP_DB_NAME = "./rockstest-dedup";
+    private static final String MAP_CACHE_DB_NAME = "./rockstest-mapcache";
+    private static final String EXPORT_DB_NAME = "./rockstest-export";
+    private static final String RECORD_DB_NAME = "./rockstest-record";
+    private static final String INDEX_DB_NAME = "./rockstest-index";
+    private static final String TIERS_DIR = "./rockstest-tiers";
+    private static final String BLOB_DB_NAME = "./rockstest-blob";
+    private static final String WARM_UP_DB_NAME = "./rockstest-warmup";
+    private static final String HOT_KEYS_DIR = "./rockstest-hotkeys";
+    private static final String STALL_DB_NAME = "./rockstest-stall";
+    private static final String CACHE_SERVER_DB_NAME = "./rockstest-cacheserver";
+    private static final String LATENCY_DB_NAME = "./rockstest-latency";
+    private static final String KEY_ENCODING_DB_NAME = "./rockstest-keyencoding";
+    private static final String TUPLE_DB_NAME = "./rockstest-tuple";
+    private static final String RETENTION_DB_NAME = "./rockstest-retention";
+    private static final String TIME_PREFIXED_DB_NAME = "./rockstest-timeprefixed";
+    private static final String RETENTION_FILES_DB_NAME = "./rockstest-retentionfiles";
+    private static final String COMPRESSION_DB_NAME = "./rockstest-compression";
+    private static final String COMPACTION_DB_NAME = "./rockstest-compaction";
+    private static final String TUNING_DB_NAME = "./rockstest-tuning";
+    private static final String NEGATIVE_CACHE_DB_NAME = "./rockstest-negativecache";
+    private static final String SCHEMA_EVOLUTION_DB_NAME = "./rockstest-schemaevolution";
+    private static final String SHARD_DB_NAMES = "./rockstest-shard0,./rockstest-shard1";
+    private static final String LATENCY_SHARD_DB_NAMES = "./rockstest-latency-shard0,./rockstest-latency-shard1";
     private TestRunner testRunner;
 
     @BeforeAll
@@ -56,6 +125,36 @@ class ProcessorsAndServiceTest {
     @AfterAll
     public static void deleteDb() throws IOException {
         FileUtils.deleteFile(new File(DB_NAME), true);
+        FileUtils.deleteFile(new File(OPTIONS_DB_NAME), true);
+        FileUtils.deleteFile(new File(MERGE_DB_NAME), true);
+        FileUtils.deleteFile(new File(DEDUP_DB_NAME), true);
+        FileUtils.deleteFile(new File(MAP_CACHE_DB_NAME), true);
+        FileUtils.deleteFile(new File(EXPORT_DB_NAME), true);
+        FileUtils.deleteFile(new File(RECORD_DB_NAME), true);
+        FileUtils.deleteFile(new File(INDEX_DB_NAME), true);
+        FileUtils.deleteFile(new File(TIERS_DIR), true);
+        FileUtils.deleteFile(new File(BLOB_DB_NAME), true);
+        FileUtils.deleteFile(new File(WARM_UP_DB_NAME), true);
+        FileUtils.deleteFile(new File(HOT_KEYS_DIR), true);
+        FileUtils.deleteFile(new File(STALL_DB_NAME), true);
+        FileUtils.deleteFile(new File(CACHE_SERVER_DB_NAME), true);
+        FileUtils.deleteFile(new File(LATENCY_DB_NAME), true);
+        FileUtils.deleteFile(new File(KEY_ENCODING_DB_NAME), true);
+        FileUtils.deleteFile(new File(TUPLE_DB_NAME), true);
+        FileUtils.deleteFile(new File(RETENTION_DB_NAME), true);
+        FileUtils.deleteFile(new File(TIME_PREFIXED_DB_NAME), true);
+        FileUtils.deleteFile(new File(RETENTION_FILES_DB_NAME), true);
+        FileUtils.deleteFile(new File(COMPRESSION_DB_NAME), true);
+        FileUtils.deleteFile(new File(COMPACTION_DB_NAME), true);
+        FileUtils.deleteFile(new File(SCHEMA_EVOLUTION_DB_NAME), true);
+        FileUtils.deleteFile(new File(NEGATIVE_CACHE_DB_NAME), true);
+        FileUtils.deleteFile(new File(TUNING_DB_NAME), true);
+        for (String shard : SHARD_DB_NAMES.split(",")) {
+            FileUtils.deleteFile(new File(shard), true);
+        }
+        for (String shard : LATENCY_SHARD_DB_NAMES.split(",")) {
+            FileUtils.deleteFile(new File(shard), true);
+        }
     }
 
     @Order(1)
@@ -138,4 +237,1287 @@ class ProcessorsAndServiceTest {
     }
 
 
+    @Order(5)
+    @Test
+    public void testReaderUnmatchedWithNegativeLookupCache() throws InitializationException, LookupFailureException {
+        RocksDbService rocksDbService = new RocksDbService();
+        testRunner = TestRunners.newTestRunner(RocksDbReader.class);
+        testRunner.addControllerService("service", rocksDbService);
+        testRunner.setProperty(rocksDbService, RocksDbService.DATABASE_PATH, DB_NAME);
+        testRunner.setProperty(rocksDbService, RocksDbService.OPEN_MODE, READONLY);
+        testRunner.setProperty(rocksDbService, RocksDbService.NEGATIVE_LOOKUP_CACHE_SIZE, "10");
+        testRunner.enableControllerService(rocksDbService);
+        testRunner.setProperty(RocksDbReader.ROCKSDB_SERVICE, "service");
+        testRunner.setProperty(RocksDbReader.SEARCH_TYPE, FIND);
+        testRunner.setProperty(RocksDbReader.RESULT_DESTINATION, FLOWFILE_ATTRIBUTE);
+        testRunner.setProperty(RocksDbReader.KEY, "${lookup.key}");
+        testRunner.enqueue("", Map.of("lookup.key", "missingkey"));
+        testRunner.enqueue("", Map.of("lookup.key", "missingkey"));
+        testRunner.run(2);
+        // the second miss does not read the database
+        assertEquals(1, rocksDbService.rocksDbUtils.getNegativeLookupHits());
+        testRunner.disableControllerService(rocksDbService);
+        testRunner.assertAllFlowFilesTransferred(REL_UNMATCHED, 2);
+
+        // a write of the key invalidates its entry
+        new File(NEGATIVE_CACHE_DB_NAME).mkdirs();
+        testRunner.setProperty(rocksDbService, RocksDbService.DATABASE_PATH, NEGATIVE_CACHE_DB_NAME);
+        testRunner.setProperty(rocksDbService, RocksDbService.OPEN_MODE, READANDWRITE);
+        testRunner.setProperty(rocksDbService, "setCreateIfMissing", "true");
+        testRunner.enableControllerService(rocksDbService);
+        // keys around the missing one, flushed so that only a read of the SST file can rule it out
+        rocksDbService.writeAll(List.of(Map.of("key", "a", "value", "first"), Map.of("key", "z", "value", "last")));
+        rocksDbService.compact(null, null, false);
+        Map<String, Object> find = Map.of("key", "missingkey", "searchMethod", FIND);
+        assertTrue(rocksDbService.search(find).isEmpty());
+        assertTrue(rocksDbService.search(find).isEmpty());
+        assertEquals(1, rocksDbService.rocksDbUtils.getNegativeLookupHits());
+        rocksDbService.write(Map.of("key", "missingkey", "value", "found"));
+        assertEquals("found", rocksDbService.search(find).orElse(null));
+        assertEquals(1, rocksDbService.rocksDbUtils.getNegativeLookupHits());
+        testRunner.disableControllerService(rocksDbService);
+    }
+
+    @Order(6)
+    @Test
+    public void testWriterWithTypedOptions() throws InitializationException {
+        new File(OPTIONS_DB_NAME).mkdirs();
+        RocksDbService rocksDbService = new RocksDbService();
+        testRunner = TestRunners.newTestRunner(RocksDbWriter.class);
+        testRunner.addControllerService("service", rocksDbService);
+        testRunner.setProperty(rocksDbService, RocksDbService.DATABASE_PATH, OPTIONS_DB_NAME);
+        testRunner.setProperty(rocksDbService, RocksDbService.OPEN_MODE, READANDWRITE);
+        testRunner.setProperty(rocksDbService, RocksDbService.OPTIONS_FILE, DB_NAME);
+        testRunner.setProperty(rocksDbService, "setCreateIfMissing", "true");
+        testRunner.setProperty(rocksDbService, "setWriteBufferSize", "67108864");
+        testRunner.setProperty(rocksDbService, "setMaxBackgroundJobs", "16");
+        testRunner.setProperty(rocksDbService, "setCompressionPerLevel", "NO,LZ4,LZ4,ZSTD");
+        testRunner.setProperty(rocksDbService, "setBottommostCompressionType", "ZSTD_COMPRESSION");
+        testRunner.setProperty(rocksDbService, "table.setBlockSize", "16 KB");
+        testRunner.setProperty(rocksDbService, "table.setFilterPolicy", "bloom:10");
+        testRunner.setProperty(rocksDbService, "table.setBlockCache", "lru:8 MB");
+        testRunner.enableControllerService(rocksDbService);
+        testRunner.setProperty(RocksDbWriter.ROCKSDB_SERVICE, "service");
+        testRunner.setProperty(RocksDbWriter.SAVE_FROM, FLOWFILE_CONTENT);
+        testRunner.setProperty(RocksDbWriter.KEY, "typedoptions");
+        testRunner.enqueue("{\"ip\":\"192.168.0.2\"}");
+        testRunner.run();
+        testRunner.disableControllerService(rocksDbService);
+
+        testRunner.assertAllFlowFilesTransferred(REL_SUCCESS, 1);
+    }
+
+    @Order(7)
+    @Test
+    public void testBatchWriterWithoutWal() throws InitializationException {
+        RocksDbService rocksDbService = new RocksDbService();
+        testRunner = TestRunners.newTestRunner(RocksDbWriter.class);
+        testRunner.addControllerService("service", rocksDbService);
+        testRunner.setProperty(rocksDbService, RocksDbService.DATABASE_PATH, OPTIONS_DB_NAME);
+        testRunner.setProperty(rocksDbService, RocksDbService.OPEN_MODE, READANDWRITE);
+        testRunner.setProperty(rocksDbService, RocksDbService.WRITE_DURABILITY, DURABILITY_NO_WAL);
+        testRunner.enableControllerService(rocksDbService);
+        testRunner.setProperty(RocksDbWriter.ROCKSDB_SERVICE, "service");
+        testRunner.setProperty(RocksDbWriter.SAVE_FROM, FLOWFILE_CONTENT);
+        testRunner.setProperty(RocksDbWriter.KEY, "${write.key}");
+        testRunner.setProperty(RocksDbWriter.BATCH_SIZE, "10");
+        testRunner.enqueue("first", Map.of("write.key", "batch1"));
+        testRunner.enqueue("second", Map.of("write.key", "batch2"));
+        testRunner.enqueue("third", Map.of("write.key", "batch3"));
+        testRunner.run();
+        testRunner.disableControllerService(rocksDbService);
+        testRunner.assertAllFlowFilesTransferred(REL_SUCCESS, 3);
+
+        // the memtables are flushed on disable, so the values are visible to a read only instance
+        rocksDbService = new RocksDbService();
+        testRunner = TestRunners.newTestRunner(RocksDbReader.class);
+        testRunner.addControllerService("service", rocksDbService);
+        testRunner.setProperty(rocksDbService, RocksDbService.DATABASE_PATH, OPTIONS_DB_NAME);
+        testRunner.setProperty(rocksDbService, RocksDbService.OPEN_MODE, READONLY);
+        testRunner.enableControllerService(rocksDbService);
+        testRunner.setProperty(RocksDbReader.ROCKSDB_SERVICE, "service");
+        testRunner.setProperty(RocksDbReader.SEARCH_TYPE, FIND);
+        testRunner.setProperty(RocksDbReader.RESULT_DESTINATION, FLOWFILE_ATTRIBUTE);
+        testRunner.setProperty(RocksDbReader.KEY, "batch2");
+        testRunner.enqueue("");
+        testRunner.run();
+        testRunner.disableControllerService(rocksDbService);
+        MockFlowFile flowFile = testRunner.getFlowFilesForRelationship(REL_SUCCESS).get(0);
+        assertEquals("second", flowFile.getAttribute("rocksdb.search.value"));
+    }
+
+    @Order(8)
+    @Test
+    public void testCompactWithRateLimit() throws InitializationException, LookupFailureException, RocksDBException {
+        new File(COMPACTION_DB_NAME).mkdirs();
+        RocksDbService rocksDbService = new RocksDbService();
+        testRunner = TestRunners.newTestRunner(CompactRocksDb.class);
+        testRunner.addControllerService("service", rocksDbService);
+        testRunner.setProperty(rocksDbService, RocksDbService.DATABASE_PATH, COMPACTION_DB_NAME);
+        testRunner.setProperty(rocksDbService, RocksDbService.OPEN_MODE, READANDWRITE);
+        testRunner.setProperty(rocksDbService, RocksDbService.COMPACTION_RATE_LIMIT, "10 MB");
+        testRunner.setProperty(rocksDbService, RocksDbService.DISABLE_AUTO_COMPACTIONS, "true");
+        testRunner.setProperty(rocksDbService, "setCreateIfMissing", "true");
+        // every open flushes the writes of the previous one, replayed from the WAL, to a new L0 file
+        for (int round = 0; round < 3; round++) {
+            testRunner.enableControllerService(rocksDbService);
+            List<Map<String, Object>> entries = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                entries.add(Map.of("key", String.format("batch%d-%03d", round, i), "value", "value" + i));
+            }
+            rocksDbService.writeAll(entries);
+            testRunner.disableControllerService(rocksDbService);
+        }
+        testRunner.enableControllerService(rocksDbService);
+        assertEquals(3, rocksDbService.rocksDbUtils.getLiveFiles().stream().filter(file -> file.level() == 0).count());
+        assertTrue(rocksDbService.rocksDbUtils.isAutoCompactionsDisabled());
+
+        testRunner.setProperty(CompactRocksDb.ROCKSDB_SERVICE, "service");
+        testRunner.setProperty(CompactRocksDb.START_KEY, "batch0");
+        testRunner.setProperty(CompactRocksDb.END_KEY, "batch3");
+        testRunner.setProperty(CompactRocksDb.ENABLE_AUTO_COMPACTIONS, "true");
+        testRunner.setIncomingConnection(false);
+        testRunner.run();
+        assertEquals(0, rocksDbService.rocksDbUtils.getLiveFiles().stream().filter(file -> file.level() == 0).count());
+        assertFalse(rocksDbService.rocksDbUtils.isAutoCompactionsDisabled());
+        testRunner.disableControllerService(rocksDbService);
+        testRunner.assertAllFlowFilesTransferred(REL_SUCCESS, 1);
+    }
+
+    @Order(9)
+    @Test
+    public void testShardedService() throws InitializationException {
+        for (String shard : SHARD_DB_NAMES.split(",")) {
+            new File(shard).mkdirs();
+        }
+        ShardedRocksDbService shardedService = new ShardedRocksDbService();
+        testRunner = TestRunners.newTestRunner(RocksDbWriter.class);
+        testRunner.addControllerService("service", shardedService);
+        testRunner.setProperty(shardedService, ShardedRocksDbService.DATABASE_PATHS, SHARD_DB_NAMES);
+        testRunner.setProperty(shardedService, ShardedRocksDbService.OPEN_MODE, READANDWRITE);
+        testRunner.setProperty(shardedService, "setCreateIfMissing", "true");
+        testRunner.enableControllerService(shardedService);
+        testRunner.setProperty(RocksDbWriter.ROCKSDB_SERVICE, "service");
+        testRunner.setProperty(RocksDbWriter.SAVE_FROM, FLOWFILE_CONTENT);
+        testRunner.setProperty(RocksDbWriter.KEY, "${write.key}");
+        testRunner.setProperty(RocksDbWriter.BATCH_SIZE, "20");
+        for (int i = 0; i < 20; i++) {
+            testRunner.enqueue("value" + i, Map.of("write.key", "shard" + (char) ('a' + i)));
+        }
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(REL_SUCCESS, 20);
+        List<Map<String, Object>> statistics = shardedService.getShardStatistics();
+        assertEquals(2, statistics.size());
+        assertEquals(20L, (long) statistics.get(0).get("operations") + (long) statistics.get(1).get("operations"));
+        testRunner.disableControllerService(shardedService);
+
+        shardedService = new ShardedRocksDbService();
+        testRunner = TestRunners.newTestRunner(RocksDbReader.class);
+        testRunner.addControllerService("service", shardedService);
+        testRunner.setProperty(shardedService, ShardedRocksDbService.DATABASE_PATHS, SHARD_DB_NAMES);
+        testRunner.setProperty(shardedService, ShardedRocksDbService.OPEN_MODE, READONLY);
+        testRunner.enableControllerService(shardedService);
+        testRunner.setProperty(RocksDbReader.ROCKSDB_SERVICE, "service");
+        testRunner.setProperty(RocksDbReader.SEARCH_TYPE, ITERATOR);
+        testRunner.setProperty(RocksDbReader.SEEK_FOR, SEEK_NEXT);
+        testRunner.setProperty(RocksDbReader.RESULT_DESTINATION, FLOWFILE_ATTRIBUTE);
+        testRunner.setProperty(RocksDbReader.KEY, "shardc");
+        testRunner.enqueue("");
+        testRunner.run();
+        MockFlowFile flowFile = testRunner.getFlowFilesForRelationship(REL_SUCCESS).get(0);
+        assertEquals("value3", flowFile.getAttribute("rocksdb.search.value"));
+
+        // the Find searches of a batch are spread over the shards with a single call
+        testRunner.clearTransferState();
+        testRunner.setProperty(RocksDbReader.SEARCH_TYPE, FIND);
+        testRunner.setProperty(RocksDbReader.KEY, "${lookup.key}");
+        testRunner.setProperty(RocksDbReader.BATCH_SIZE, "25");
+        for (int i = 0; i < 20; i++) {
+            testRunner.enqueue("", Map.of("lookup.key", "shard" + (char) ('a' + i)));
+        }
+        testRunner.enqueue("", Map.of("lookup.key", "shardz"));
+        statistics = shardedService.getShardStatistics();
+        long operationsBefore = (long) statistics.get(0).get("operations") + (long) statistics.get(1).get("operations");
+        testRunner.run();
+        statistics = shardedService.getShardStatistics();
+        testRunner.disableControllerService(shardedService);
+        testRunner.assertTransferCount(REL_SUCCESS, 20);
+        testRunner.assertTransferCount(REL_UNMATCHED, 1);
+        List<MockFlowFile> found = testRunner.getFlowFilesForRelationship(REL_SUCCESS);
+        for (int i = 0; i < 20; i++) {
+            found.get(i).assertAttributeEquals("rocksdb.search.key", "shard" + (char) ('a' + i));
+            found.get(i).assertAttributeEquals("rocksdb.search.value", "value" + i);
+        }
+        assertTrue((long) statistics.get(0).get("operations") > 0);
+        assertTrue((long) statistics.get(1).get("operations") > 0);
+        assertEquals(operationsBefore + 21,
+                (long) statistics.get(0).get("operations") + (long) statistics.get(1).get("operations"));
+    }
+
+    @Order(10)
+    @Test
+    public void testWriterIncrement() throws InitializationException {
+        new File(MERGE_DB_NAME).mkdirs();
+        RocksDbService rocksDbService = new RocksDbService();
+        testRunner = TestRunners.newTestRunner(RocksDbWriter.class);
+        testRunner.addControllerService("service", rocksDbService);
+        testRunner.setProperty(rocksDbService, RocksDbService.DATABASE_PATH, MERGE_DB_NAME);
+        testRunner.setProperty(rocksDbService, RocksDbService.OPEN_MODE, READANDWRITE);
+        testRunner.setProperty(rocksDbService, RocksDbService.MERGE_OPERATOR, MERGE_UINT64_ADD);
+        testRunner.setProperty(rocksDbService, "setCreateIfMissing", "true");
+        testRunner.enableControllerService(rocksDbService);
+        testRunner.setProperty(RocksDbWriter.ROCKSDB_SERVICE, "service");
+        testRunner.setProperty(RocksDbWriter.SAVE_FROM, FLOWFILE_CONTENT);
+        testRunner.setProperty(RocksDbWriter.KEY, "counter");
+        testRunner.setProperty(RocksDbWriter.WRITE_MODE, WRITE_MODE_INCREMENT);
+        testRunner.enqueue("1");
+        testRunner.enqueue("2");
+        testRunner.enqueue("3");
+        testRunner.run(3);
+        testRunner.disableControllerService(rocksDbService);
+        testRunner.assertAllFlowFilesTransferred(REL_SUCCESS, 3);
+
+        rocksDbService = new RocksDbService();
+        testRunner = TestRunners.newTestRunner(RocksDbReader.class);
+        testRunner.addControllerService("service", rocksDbService);
+        testRunner.setProperty(rocksDbService, RocksDbService.DATABASE_PATH, MERGE_DB_NAME);
+        testRunner.setProperty(rocksDbService, RocksDbService.OPEN_MODE, READONLY);
+        testRunner.setProperty(rocksDbService, RocksDbService.MERGE_OPERATOR, MERGE_UINT64_ADD);
+        testRunner.enableControllerService(rocksDbService);
+        testRunner.setProperty(RocksDbReader.ROCKSDB_SERVICE, "service");
+        testRunner.setProperty(RocksDbReader.SEARCH_TYPE, FIND);
+        testRunner.setProperty(RocksDbReader.RESULT_DESTINATION, FLOWFILE_ATTRIBUTE);
+        testRunner.setProperty(RocksDbReader.KEY, "counter");
+        testRunner.enqueue("");
+        testRunner.run();
+        testRunner.disableControllerService(rocksDbService);
+        MockFlowFile flowFile = testRunner.getFlowFilesForRelationship(REL_SUCCESS).get(0);
+        assertEquals("6", flowFile.getAttribute("rocksdb.search.value"));
+    }
+
+    @Order(11)
+    @Test
+    public void testReaderWithPooledIterators() throws InitializationException {
+        RocksDbService rocksDbService = new RocksDbService();
+        testRunner = TestRunners.newTestRunner(RocksDbReader.class);
+        testRunner.addControllerService("service", rocksDbService);
+        testRunner.setProperty(rocksDbService, RocksDbService.DATABASE_PATH, OPTIONS_DB_NAME);
+        testRunner.setProperty(rocksDbService, RocksDbService.OPEN_MODE, READONLY);
+        testRunner.setProperty(rocksDbService, RocksDbService.ITERATOR_REFRESH_INTERVAL, "0 sec");
+        testRunner.enableControllerService(rocksDbService);
+        testRunner.setProperty(RocksDbReader.ROCKSDB_SERVICE, "service");
+        testRunner.setProperty(RocksDbReader.SEARCH_TYPE, ITERATOR);
+        testRunner.setProperty(RocksDbReader.SEEK_FOR, SEEK_FOR_PREV);
+        testRunner.setProperty(RocksDbReader.RESULT_DESTINATION, FLOWFILE_ATTRIBUTE);
+        testRunner.setProperty(RocksDbReader.KEY, "${lookup.key}");
+        testRunner.enqueue("", Map.of("lookup.key", "batch2z"));
+        testRunner.enqueue("", Map.of("lookup.key", "batch1"));
+        testRunner.run(2);
+        testRunner.disableControllerService(rocksDbService);
+        List<MockFlowFile> flowFiles = testRunner.getFlowFilesForRelationship(REL_SUCCESS);
+        assertEquals("second", flowFiles.get(0).getAttribute("rocksdb.search.value"));
+        assertEquals("first", flowFiles.get(1).getAttribute("rocksdb.search.value"));
+    }
+
+    @Order(12)
+    @Test
+    public void testReaderScanLimitOnShards() throws InitializationException {
+        ShardedRocksDbService shardedService = new ShardedRocksDbService();
+        testRunner = TestRunners.newTestRunner(RocksDbReader.class);
+        testRunner.addControllerService("service", shardedService);
+        testRunner.setProperty(shardedService, ShardedRocksDbService.DATABASE_PATHS, SHARD_DB_NAMES);
+        testRunner.setProperty(shardedService, ShardedRocksDbService.OPEN_MODE, READONLY);
+        testRunner.enableControllerService(shardedService);
+        testRunner.setProperty(RocksDbReader.ROCKSDB_SERVICE, "service");
+        testRunner.setProperty(RocksDbReader.SEARCH_TYPE, ITERATOR);
+        testRunner.setProperty(RocksDbReader.SEEK_FOR, SEEK_FOR_PREV);
+        testRunner.setProperty(RocksDbReader.LIMIT, "3");
+        testRunner.setProperty(RocksDbReader.DIRECTION, DIRECTION_BACKWARD);
+        testRunner.setProperty(RocksDbReader.RESULT_DESTINATION, FLOWFILE_CONTENT);
+        testRunner.setProperty(RocksDbReader.KEY, "shardj");
+        testRunner.enqueue("");
+        testRunner.run();
+        testRunner.disableControllerService(shardedService);
+        MockFlowFile flowFile = testRunner.getFlowFilesForRelationship(REL_SUCCESS).get(0);
+        flowFile.assertAttributeEquals("rocksdb.search.found.key", "shardj");
+        flowFile.assertContentEquals("[{\"key\":\"shardj\",\"value\":\"value9\"},{\"key\":\"shardi\",\"value\":\"value8\"}," +
+                "{\"key\":\"shardh\",\"value\":\"value7\"}]");
+    }
+
+    @Order(13)
+    @Test
+    public void testReaderWithSnapshot() throws InitializationException, LookupFailureException {
+        RocksDbService rocksDbService = new RocksDbService();
+        testRunner = TestRunners.newTestRunner(RocksDbReader.class);
+        testRunner.addControllerService("service", rocksDbService);
+        testRunner.setProperty(rocksDbService, RocksDbService.DATABASE_PATH, OPTIONS_DB_NAME);
+        testRunner.setProperty(rocksDbService, RocksDbService.OPEN_MODE, READANDWRITE);
+        testRunner.enableControllerService(rocksDbService);
+
+        String snapshotId = rocksDbService.acquireSnapshot();
+        rocksDbService.write(Map.of("key", "batch1", "value", "changed"));
+        assertEquals("first", rocksDbService.search(Map.of("key", "batch1", "searchMethod", FIND, "snapshot", snapshotId)).orElse(null));
+        assertEquals("changed", rocksDbService.search(Map.of("key", "batch1", "searchMethod", FIND)).orElse(null));
+        rocksDbService.releaseSnapshot(snapshotId);
+
+        testRunner.setProperty(RocksDbReader.ROCKSDB_SERVICE, "service");
+        testRunner.setProperty(RocksDbReader.SEARCH_TYPE, FIND);
+        testRunner.setProperty(RocksDbReader.RESULT_DESTINATION, FLOWFILE_ATTRIBUTE);
+        testRunner.setProperty(RocksDbReader.KEY, "${lookup.key}");
+        testRunner.setProperty(RocksDbReader.BATCH_SIZE, "10");
+        testRunner.setProperty(RocksDbReader.USE_SNAPSHOT, "true");
+        testRunner.enqueue("", Map.of("lookup.key", "batch1"));
+        testRunner.enqueue("", Map.of("lookup.key", "batch3"));
+        testRunner.run();
+        testRunner.disableControllerService(rocksDbService);
+        List<MockFlowFile> flowFiles = testRunner.getFlowFilesForRelationship(REL_SUCCESS);
+        assertEquals(2, flowFiles.size());
+        assertEquals("changed", flowFiles.get(0).getAttribute("rocksdb.search.value"));
+        assertEquals("third", flowFiles.get(1).getAttribute("rocksdb.search.value"));
+    }
+
+    @Order(14)
+    @Test
+    public void testDetectDuplicate() throws InitializationException, LookupFailureException {
+        new File(DEDUP_DB_NAME).mkdirs();
+        RocksDbService rocksDbService = new RocksDbService();
+        testRunner = TestRunners.newTestRunner(DetectDuplicateRocksDb.class);
+        testRunner.addControllerService("service", rocksDbService);
+        testRunner.setProperty(rocksDbService, RocksDbService.DATABASE_PATH, DEDUP_DB_NAME);
+        testRunner.setProperty(rocksDbService, RocksDbService.OPEN_MODE, READANDWRITE);
+        testRunner.setProperty(rocksDbService, RocksDbService.TIME_TO_LIVE, "1 hour");
+        testRunner.setProperty(rocksDbService, "setCreateIfMissing", "true");
+        testRunner.enableControllerService(rocksDbService);
+        testRunner.setProperty(DetectDuplicateRocksDb.ROCKSDB_SERVICE, "service");
+        testRunner.setProperty(DetectDuplicateRocksDb.AGE_OFF_DURATION, "1 hour");
+        testRunner.enqueue("", Map.of("hash.value", "a"));
+        testRunner.enqueue("", Map.of("hash.value", "b"));
+        testRunner.enqueue("", Map.of("hash.value", "a"));
+        testRunner.run();
+        testRunner.assertTransferCount(DetectDuplicateRocksDb.REL_NON_DUPLICATE, 2);
+        testRunner.assertTransferCount(DetectDuplicateRocksDb.REL_DUPLICATE, 1);
+        // the identifiers are kept apart from the entries of the database
+        assertTrue(rocksDbService.search(Map.of("key", "a", "searchMethod", FIND)).isEmpty());
+
+        // the column family of the identifiers is opened again with the database
+        testRunner.disableControllerService(rocksDbService);
+        testRunner.enableControllerService(rocksDbService);
+        testRunner.clearTransferState();
+        testRunner.enqueue("", Map.of("hash.value", "b"));
+        testRunner.enqueue("", Map.of("hash.value", "c"));
+        testRunner.run();
+        testRunner.disableControllerService(rocksDbService);
+        testRunner.assertTransferCount(DetectDuplicateRocksDb.REL_NON_DUPLICATE, 1);
+        testRunner.assertTransferCount(DetectDuplicateRocksDb.REL_DUPLICATE, 1);
+        testRunner.getFlowFilesForRelationship(DetectDuplicateRocksDb.REL_DUPLICATE).get(0).assertAttributeEquals("hash.value", "b");
+    }
+
+    @Order(15)
+    @Test
+    public void testMapCacheBulkOperations() throws InitializationException, IOException {
+        new File(MAP_CACHE_DB_NAME).mkdirs();
+        Serializer<String> serializer = (value, out) -> out.write(value.getBytes(StandardCharsets.UTF_8));
+        Deserializer<String> deserializer = bytes -> new String(bytes, StandardCharsets.UTF_8);
+        RocksDbDistributedMapCacheClientService rocksDbDistributedMapCacheClientService = new RocksDbDistributedMapCacheClientService();
+        testRunner = TestRunners.newTestRunner(FetchDistributedMapCache.class);
+        testRunner.addControllerService("redis-map-cache-client", rocksDbDistributedMapCacheClientService);
+        testRunner.setProperty(rocksDbDistributedMapCacheClientService, RocksDbDistributedMapCacheClientService.DATABASE_PATH, MAP_CACHE_DB_NAME);
+        testRunner.setProperty(rocksDbDistributedMapCacheClientService, RocksDbDistributedMapCacheClientService.OPEN_MODE, READANDWRITE);
+        testRunner.setProperty(rocksDbDistributedMapCacheClientService, "setCreateIfMissing", "true");
+        testRunner.enableControllerService(rocksDbDistributedMapCacheClientService);
+
+        rocksDbDistributedMapCacheClientService.putAll(Map.of("k1", "v1", "k2", "v2", "k3", "v3"), serializer, serializer);
+        Map<String, String> values = rocksDbDistributedMapCacheClientService.subMap(Set.of("k1", "k3", "k4"), serializer, deserializer);
+        assertEquals("v1", values.get("k1"));
+        assertEquals("v3", values.get("k3"));
+        assertNull(values.get("k4"));
+
+        assertEquals(2, rocksDbDistributedMapCacheClientService.removeAll(List.of("k1", "k2", "k4"), serializer));
+        values = rocksDbDistributedMapCacheClientService.subMap(Set.of("k1", "k3"), serializer, deserializer);
+
+        // values larger than the buffers kept by a thread are read into an array
+        String largeValue = "x".repeat(2 * 1024 * 1024);
+        rocksDbDistributedMapCacheClientService.put("large", largeValue, serializer, serializer);
+        assertEquals(largeValue, rocksDbDistributedMapCacheClientService.get("large", serializer, deserializer));
+        assertEquals("v3", rocksDbDistributedMapCacheClientService.get("k3", serializer, deserializer));
+        testRunner.disableControllerService(rocksDbDistributedMapCacheClientService);
+        assertNull(values.get("k1"));
+        assertEquals("v3", values.get("k3"));
+    }
+
+    @Order(16)
+    @Test
+    public void testExport() throws InitializationException, LookupFailureException {
+        new File(EXPORT_DB_NAME).mkdirs();
+        RocksDbService rocksDbService = new RocksDbService();
+        testRunner = TestRunners.newTestRunner(ExportRocksDb.class);
+        testRunner.addControllerService("service", rocksDbService);
+        testRunner.setProperty(rocksDbService, RocksDbService.DATABASE_PATH, EXPORT_DB_NAME);
+        testRunner.setProperty(rocksDbService, RocksDbService.OPEN_MODE, READANDWRITE);
+        testRunner.setProperty(rocksDbService, "setCreateIfMissing", "true");
+        // small memtables flush the entries into several SST files
+        testRunner.setProperty(rocksDbService, "setWriteBufferSize", "64 KB");
+        testRunner.enableControllerService(rocksDbService);
+        List<Map<String, Object>> entries = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            entries.add(Map.of("key", String.format("key%05d", i), "value", "value" + i));
+            if (entries.size() == 1000) {
+                rocksDbService.writeAll(entries);
+                entries.clear();
+            }
+        }
+
+        LineRecordSetWriterFactory writerFactory = new LineRecordSetWriterFactory();
+        testRunner.addControllerService("writer", writerFactory);
+        testRunner.enableControllerService(writerFactory);
+        testRunner.setProperty(ExportRocksDb.ROCKSDB_SERVICE, "service");
+        testRunner.setProperty(ExportRocksDb.RECORD_WRITER, "writer");
+        testRunner.setProperty(ExportRocksDb.MAX_RANGES, "4");
+        testRunner.run();
+        testRunner.disableControllerService(rocksDbService);
+
+        List<MockFlowFile> flowFiles = new ArrayList<>(testRunner.getFlowFilesForRelationship(REL_SUCCESS));
+        flowFiles.sort((a, b) -> a.getAttribute("rocksdb.export.range.index").compareTo(b.getAttribute("rocksdb.export.range.index")));
+        assertEquals(4, flowFiles.size());
+        StringBuilder exported = new StringBuilder();
+        for (MockFlowFile flowFile : flowFiles) {
+            exported.append(new String(flowFile.getData(), StandardCharsets.UTF_8));
+        }
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            expected.append("key=").append(String.format("key%05d", i)).append(",value=value").append(i).append('\n');
+        }
+        assertEquals(expected.toString(), exported.toString());
+    }
+
+    @Order(17)
+    @Test
+    public void testReaderWithRecordValues() throws InitializationException, LookupFailureException {
+        new File(RECORD_DB_NAME).mkdirs();
+        RocksDbService rocksDbService = new RocksDbService();
+        SingleSchemaRegistry schemaRegistry = new SingleSchemaRegistry();
+        testRunner = TestRunners.newTestRunner(RocksDbReader.class);
+        testRunner.addControllerService("registry", schemaRegistry);
+        testRunner.enableControllerService(schemaRegistry);
+        testRunner.addControllerService("service", rocksDbService);
+        testRunner.setProperty(rocksDbService, RocksDbService.DATABASE_PATH, RECORD_DB_NAME);
+        testRunner.setProperty(rocksDbService, RocksDbService.OPEN_MODE, READANDWRITE);
+        testRunner.setProperty(rocksDbService, RocksDbService.VALUE_FORMAT, VALUE_FORMAT_AVRO);
+        testRunner.setProperty(rocksDbService, RocksDbService.SCHEMA_REGISTRY, "registry");
+        testRunner.setProperty(rocksDbService, RocksDbService.SCHEMA_NAME, "user");
+        testRunner.setProperty(rocksDbService, "setCreateIfMissing", "true");
+        testRunner.enableControllerService(rocksDbService);
+
+        rocksDbService.write(Map.of("key", "user1", "value", "{\"name\":\"alice\",\"age\":30}"));
+        assertEquals("{\"name\":\"alice\",\"age\":30}", rocksDbService.search(Map.of("key", "user1", "searchMethod", FIND)).orElse(null));
+        assertEquals("alice", rocksDbService.searchRecord(Map.of("key", "user1")).orElseThrow().getAsString("name"));
+        assertTrue(rocksDbService.searchRecord(Map.of("key", "user2")).isEmpty());
+
+        LineRecordSetWriterFactory writerFactory = new LineRecordSetWriterFactory();
+        testRunner.addControllerService("writer", writerFactory);
+        testRunner.enableControllerService(writerFactory);
+        testRunner.setProperty(RocksDbReader.ROCKSDB_SERVICE, "service");
+        testRunner.setProperty(RocksDbReader.SEARCH_TYPE, FIND);
+        testRunner.setProperty(RocksDbReader.RESULT_DESTINATION, FLOWFILE_CONTENT);
+        testRunner.setProperty(RocksDbReader.KEY, "${lookup.key}");
+        testRunner.setProperty(RocksDbReader.RECORD_WRITER, "writer");
+        testRunner.enqueue("", Map.of("lookup.key", "user1"));
+        testRunner.run();
+        testRunner.disableControllerService(rocksDbService);
+        MockFlowFile flowFile = testRunner.getFlowFilesForRelationship(REL_SUCCESS).get(0);
+        assertEquals("name=alice,age=30\n", new String(flowFile.getData(), StandardCharsets.UTF_8));
+        flowFile.assertAttributeEquals("record.count", "1");
+    }
+
+    @Order(18)
+    @Test
+    public void testIndexLookup() throws InitializationException, LookupFailureException {
+        new File(INDEX_DB_NAME).mkdirs();
+        RocksDbService rocksDbService = new RocksDbService();
+        testRunner = TestRunners.newTestRunner(RocksDbReader.class);
+        testRunner.addControllerService("service", rocksDbService);
+        testRunner.setProperty(rocksDbService, RocksDbService.DATABASE_PATH, INDEX_DB_NAME);
+        testRunner.setProperty(rocksDbService, RocksDbService.OPEN_MODE, READANDWRITE);
+        testRunner.setProperty(rocksDbService, RocksDbService.SECONDARY_INDEXES, "city, name");
+        testRunner.setProperty(rocksDbService, "setCreateIfMissing", "true");
+        testRunner.enableControllerService(rocksDbService);
+
+        rocksDbService.writeAll(List.of(
+                Map.of("key", "user1", "value", "{\"name\":\"alice\",\"city\":\"rome\"}"),
+                Map.of("key", "user2", "value", "{\"name\":\"bob\",\"city\":\"milan\"}"),
+                Map.of("key", "user3", "value", "{\"name\":\"carol\",\"city\":\"rome\"}")));
+        // the stale index entry of the previous value is removed with the overwrite
+        rocksDbService.write(Map.of("key", "user1", "value", "{\"name\":\"alice\",\"city\":\"turin\"}"));
+
+        List<Map.Entry<String, String>> romans = rocksDbService.scan(Map.of("key", "rome", "index", "city",
+                "searchMethod", INDEX_LOOKUP, "limit", 10));
+        assertEquals(1, romans.size());
+        assertEquals("user3", romans.get(0).getKey());
+        assertTrue(rocksDbService.scan(Map.of("key", "rom", "index", "city", "searchMethod", INDEX_LOOKUP)).isEmpty());
+
+        testRunner.setProperty(RocksDbReader.ROCKSDB_SERVICE, "service");
+        testRunner.setProperty(RocksDbReader.SEARCH_TYPE, INDEX_LOOKUP);
+        testRunner.setProperty(RocksDbReader.RESULT_DESTINATION, FLOWFILE_ATTRIBUTE);
+        testRunner.setProperty(RocksDbReader.INDEX_NAME, "city");
+        testRunner.setProperty(RocksDbReader.KEY, "${lookup.city}");
+        testRunner.enqueue("", Map.of("lookup.city", "turin"));
+        testRunner.enqueue("", Map.of("lookup.city", "naples"));
+        testRunner.run(2);
+        testRunner.disableControllerService(rocksDbService);
+        testRunner.assertTransferCount(REL_SUCCESS, 1);
+        testRunner.assertTransferCount(REL_UNMATCHED, 1);
+        MockFlowFile flowFile = testRunner.getFlowFilesForRelationship(REL_SUCCESS).get(0);
+        flowFile.assertAttributeEquals("rocksdb.search.found.key", "user1");
+        flowFile.assertAttributeEquals("rocksdb.search.value", "{\"name\":\"alice\",\"city\":\"turin\"}");
+    }
+
+    @Order(19)
+    @Test
+    public void testDataPathsAndWalDirectory() throws InitializationException, LookupFailureException {
+        for (String directory : List.of("db", "hot", "cold", "wal")) {
+            new File(TIERS_DIR, directory).mkdirs();
+        }
+        RocksDbService rocksDbService = new RocksDbService();
+        testRunner = TestRunners.newTestRunner(RocksDbReader.class);
+        testRunner.addControllerService("service", rocksDbService);
+        testRunner.setProperty(rocksDbService, RocksDbService.DATABASE_PATH, TIERS_DIR + "/db");
+        testRunner.setProperty(rocksDbService, RocksDbService.OPEN_MODE, READANDWRITE);
+        testRunner.setProperty(rocksDbService, RocksDbService.DATA_PATHS, "not a target size");
+        testRunner.assertNotValid(rocksDbService);
+        testRunner.setProperty(rocksDbService, RocksDbService.DATA_PATHS, TIERS_DIR + "/hot:64 KB," + TIERS_DIR + "/cold:1 GB");
+        testRunner.setProperty(rocksDbService, RocksDbService.WAL_DIRECTORY, TIERS_DIR + "/wal");
+        testRunner.setProperty(rocksDbService, "setCreateIfMissing", "true");
+        testRunner.enableControllerService(rocksDbService);
+        List<Map<String, Object>> entries = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            entries.add(Map.of("key", String.format("key%04d", i), "value", "value" + i));
+        }
+        rocksDbService.writeAll(entries);
+        rocksDbService.compact(null, null, false);
+        testRunner.disableControllerService(rocksDbService);
+
+        assertTrue(new File(TIERS_DIR, "wal").list((dir, name) -> name.endsWith(".log")).length > 0);
+        assertEquals(0, new File(TIERS_DIR, "db").list((dir, name) -> name.endsWith(".log") || name.endsWith(".sst")).length);
+        assertEquals(1, new File(TIERS_DIR, "hot").list((dir, name) -> name.endsWith(".sst")).length
+                + new File(TIERS_DIR, "cold").list((dir, name) -> name.endsWith(".sst")).length);
+
+        testRunner.setProperty(rocksDbService, RocksDbService.OPEN_MODE, READONLY);
+        testRunner.enableControllerService(rocksDbService);
+        assertEquals("value42", rocksDbService.search(Map.of("key", "key0042", "searchMethod", FIND)).orElse(null));
+        testRunner.disableControllerService(rocksDbService);
+    }
+
+    @Order(20)
+    @Test
+    public void testBlobFiles() throws InitializationException, LookupFailureException {
+        new File(BLOB_DB_NAME).mkdirs();
+        RocksDbService rocksDbService = new RocksDbService();
+        testRunner = TestRunners.newTestRunner(RocksDbWriter.class);
+        testRunner.addControllerService("service", rocksDbService);
+        testRunner.setProperty(rocksDbService, RocksDbService.DATABASE_PATH, BLOB_DB_NAME);
+        testRunner.setProperty(rocksDbService, RocksDbService.OPEN_MODE, READANDWRITE);
+        testRunner.setProperty(rocksDbService, RocksDbService.ENABLE_BLOB_FILES, "true");
+        testRunner.setProperty(rocksDbService, RocksDbService.MIN_BLOB_SIZE, "1 KB");
+        testRunner.setProperty(rocksDbService, RocksDbService.BLOB_COMPRESSION, COMPRESSION_ZSTD);
+        testRunner.setProperty(rocksDbService, "setCreateIfMissing", "true");
+        testRunner.enableControllerService(rocksDbService);
+
+        String largeValue = "x".repeat(100 * 1024);
+        rocksDbService.writeAll(List.of(Map.of("key", "large", "value", largeValue), Map.of("key", "small", "value", "small")));
+        rocksDbService.compact(null, null, false);
+        assertTrue(new File(BLOB_DB_NAME).list((dir, name) -> name.endsWith(".blob")).length > 0);
+        assertEquals(largeValue, rocksDbService.search(Map.of("key", "large", "searchMethod", FIND)).orElse(null));
+        assertEquals("small", rocksDbService.search(Map.of("key", "small", "searchMethod", FIND)).orElse(null));
+        testRunner.disableControllerService(rocksDbService);
+    }
+
+    @Order(21)
+    @Test
+    public void testWarmUpWithHotKeys() throws InitializationException, LookupFailureException, IOException, InterruptedException, RocksDBException {
+        new File(WARM_UP_DB_NAME).mkdirs();
+        new File(HOT_KEYS_DIR).mkdirs();
+        RocksDbService rocksDbService = new RocksDbService();
+        testRunner = TestRunners.newTestRunner(RocksDbReader.class);
+        testRunner.addControllerService("service", rocksDbService);
+        testRunner.setProperty(rocksDbService, RocksDbService.DATABASE_PATH, WARM_UP_DB_NAME);
+        testRunner.setProperty(rocksDbService, RocksDbService.OPEN_MODE, READANDWRITE);
+        testRunner.setProperty(rocksDbService, RocksDbService.WARM_UP_RATE, "1000");
+        testRunner.setProperty(rocksDbService, RocksDbService.HOT_KEYS_DIRECTORY, HOT_KEYS_DIR);
+        testRunner.setProperty(rocksDbService, "setCreateIfMissing", "true");
+        testRunner.enableControllerService(rocksDbService);
+        List<Map<String, Object>> entries = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            entries.add(Map.of("key", String.format("key%03d", i), "value", "value" + i));
+        }
+        rocksDbService.writeAll(entries);
+        rocksDbService.compact(null, null, false);
+        // the keys read are sampled, so the hot key is read often enough to be recorded
+        for (int i = 0; i < 500; i++) {
+            assertEquals("value7", rocksDbService.search(Map.of("key", "key007", "searchMethod", FIND)).orElse(null));
+        }
+        testRunner.disableControllerService(rocksDbService);
+
+        List<String> hotKeys = Files.readAllLines(new File(HOT_KEYS_DIR, "hot-keys").toPath());
+        assertEquals("key007", new String(Base64.getDecoder().decode(hotKeys.get(0)), StandardCharsets.UTF_8));
+
+        testRunner.enableControllerService(rocksDbService);
+        for (int i = 0; i < 50 && rocksDbService.isWarmingUp(); i++) {
+            Thread.sleep(100);
+        }
+        assertFalse(rocksDbService.isWarmingUp());
+        assertTrue(rocksDbService.rocksDbUtils.getLongProperty("rocksdb.block-cache-usage") > 0);
+        assertTrue(testRunner.getControllerServiceLogger("service").getInfoMessages().stream()
+                .anyMatch(message -> message.getMsg().contains("Warm up of the block cache of") && message.getMsg().contains("ended")));
+        assertEquals("value7", rocksDbService.search(Map.of("key", "key007", "searchMethod", FIND)).orElse(null));
+        testRunner.disableControllerService(rocksDbService);
+    }
+
+    @Order(22)
+    @Test
+    public void testWriterYieldsOnWriteStall() throws InitializationException, LookupFailureException, InterruptedException {
+        new File(STALL_DB_NAME).mkdirs();
+        RocksDbService rocksDbService = new RocksDbService();
+        testRunner = TestRunners.newTestRunner(RocksDbWriter.class);
+        testRunner.addControllerService("service", rocksDbService);
+        testRunner.setProperty(rocksDbService, RocksDbService.DATABASE_PATH, STALL_DB_NAME);
+        testRunner.setProperty(rocksDbService, RocksDbService.OPEN_MODE, READANDWRITE);
+        testRunner.setProperty(rocksDbService, RocksDbService.DISABLE_AUTO_COMPACTIONS, "true");
+        testRunner.setProperty(rocksDbService, RocksDbService.FAIL_FAST_ON_WRITE_STALL, "true");
+        testRunner.setProperty(rocksDbService, RocksDbService.STALL_PENDING_COMPACTION_BYTES, "1 B");
+        testRunner.setProperty(rocksDbService, "setCreateIfMissing", "true");
+        // small memtables pile up L0 files that are never compacted
+        testRunner.setProperty(rocksDbService, "setWriteBufferSize", "64 KB");
+        testRunner.enableControllerService(rocksDbService);
+        assertFalse(rocksDbService.isWriteStalled());
+        List<Map<String, Object>> entries = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            entries.add(Map.of("key", String.format("key%05d", i), "value", "value" + i));
+            if (entries.size() == 1000) {
+                rocksDbService.writeAll(entries);
+                entries.clear();
+            }
+        }
+        for (int i = 0; i < 50 && !rocksDbService.isWriteStalled(); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(rocksDbService.isWriteStalled());
+
+        testRunner.setProperty(RocksDbWriter.ROCKSDB_SERVICE, "service");
+        testRunner.setProperty(RocksDbWriter.KEY, "${key}");
+        testRunner.setProperty(RocksDbWriter.SAVE_FROM, FLOWFILE_ATTRIBUTE);
+        testRunner.setProperty(RocksDbWriter.VALUE, "${value}");
+        testRunner.enqueue("", Map.of("key", "stalled", "value", "value"));
+        testRunner.run();
+        testRunner.disableControllerService(rocksDbService);
+        testRunner.assertQueueNotEmpty();
+        testRunner.assertTransferCount(REL_SUCCESS, 0);
+        testRunner.assertTransferCount(REL_FAILURE, 0);
+    }
+
+    @Order(23)
+    @Test
+    public void testDistributedMapCacheServer() throws Exception {
+        RocksDbDistributedMapCacheServer server = new RocksDbDistributedMapCacheServer();
+        testRunner = TestRunners.newTestRunner(RocksDbReader.class);
+        testRunner.addControllerService("server", server);
+        testRunner.setProperty(server, RocksDbDistributedMapCacheServer.DATABASE_PATH, CACHE_SERVER_DB_NAME);
+        testRunner.setProperty(server, RocksDbDistributedMapCacheServer.OPEN_MODE, READANDWRITE);
+        testRunner.setProperty(server, RocksDbDistributedMapCacheServer.PORT, "0");
+        testRunner.setProperty(server, RocksDbDistributedMapCacheServer.MAX_REQUEST_ENTRIES, "2");
+        testRunner.setProperty(server, "setCreateIfMissing", "true");
+        testRunner.enableControllerService(server);
+        int port = server.getPort();
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            // the client asks for a newer version first and falls back to the one offered by the server
+            out.write("NiFi".getBytes(StandardCharsets.US_ASCII));
+            out.writeInt(4);
+            assertEquals(21, in.read());
+            assertEquals(3, in.readInt());
+            out.writeInt(3);
+            assertEquals(20, in.read());
+
+            cacheRequest(out, "putIfAbsent", "key1", "value1");
+            assertTrue(in.readBoolean());
+            cacheRequest(out, "putIfAbsent", "key1", "other");
+            assertFalse(in.readBoolean());
+            cacheRequest(out, "get", "key1");
+            assertEquals("value1", readCacheValue(in));
+            cacheRequest(out, "containsKey", "missing");
+            assertFalse(in.readBoolean());
+
+            cacheRequest(out, "fetch", "key1");
+            long revision = in.readLong();
+            assertEquals("value1", readCacheValue(in));
+            cacheRequest(out, "put", "key1", "value2");
+            assertTrue(in.readBoolean());
+            // the revision fetched before the put is stale
+            out.writeUTF("replace");
+            writeCacheValue(out, "key1");
+            out.writeLong(revision);
+            writeCacheValue(out, "value3");
+            assertFalse(in.readBoolean());
+            out.writeUTF("replace");
+            writeCacheValue(out, "key1");
+            out.writeLong(revision + 1);
+            writeCacheValue(out, "value3");
+            assertTrue(in.readBoolean());
+
+            out.writeUTF("subMap");
+            out.writeInt(2);
+            writeCacheValue(out, "key1");
+            writeCacheValue(out, "missing");
+            assertEquals("value3", readCacheValue(in));
+            assertNull(readCacheValue(in));
+            cacheRequest(out, "removeAndGet", "key1");
+            assertEquals("value3", readCacheValue(in));
+            cacheRequest(out, "remove", "key1");
+            assertFalse(in.readBoolean());
+            out.writeUTF("close");
+        }
+
+        // concurrent connections have their writes committed in groups
+        ExecutorService clients = Executors.newFixedThreadPool(4);
+        List<Future<?>> results = new ArrayList<>();
+        for (int c = 0; c < 4; c++) {
+            int client = c;
+            results.add(clients.submit(() -> {
+                try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    out.write("NiFi".getBytes(StandardCharsets.US_ASCII));
+                    out.writeInt(3);
+                    assertEquals(20, in.read());
+                    for (int i = 0; i < 100; i++) {
+                        cacheRequest(out, "put", "client" + client + "-" + i, "value" + i);
+                        assertTrue(in.readBoolean());
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+        clients.shutdown();
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.write("NiFi".getBytes(StandardCharsets.US_ASCII));
+            out.writeInt(3);
+            assertEquals(20, in.read());
+            out.writeUTF("keySet");
+            assertEquals(400, in.readInt());
+            for (int i = 0; i < 400; i++) {
+                readCacheValue(in);
+            }
+            out.writeUTF("removeByPattern");
+            out.writeUTF("client0-.*");
+            assertEquals(100, in.readLong());
+            cacheRequest(out, "get", "client1-99");
+            assertEquals("value99", readCacheValue(in));
+        }
+
+        // a request with more entries than allowed drops the connection with a warning
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.write("NiFi".getBytes(StandardCharsets.US_ASCII));
+            out.writeInt(3);
+            assertEquals(20, in.read());
+            out.writeUTF("subMap");
+            out.writeInt(3);
+            out.flush();
+            assertEquals(-1, in.read());
+        }
+        for (int i = 0; i < 50 && testRunner.getControllerServiceLogger("server").getWarnMessages().isEmpty(); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(testRunner.getControllerServiceLogger("server").getWarnMessages().get(0).getMsg().contains("dropped"));
+
+        // so does a malformed pattern
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.write("NiFi".getBytes(StandardCharsets.US_ASCII));
+            out.writeInt(3);
+            assertEquals(20, in.read());
+            out.writeUTF("removeByPattern");
+            out.writeUTF("client1-(");
+            out.flush();
+            assertEquals(-1, in.read());
+        }
+        for (int i = 0; i < 50 && testRunner.getControllerServiceLogger("server").getWarnMessages().size() < 2; i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(testRunner.getControllerServiceLogger("server").getWarnMessages().get(1).getMsg().contains("dropped"));
+        testRunner.disableControllerService(server);
+    }
+
+    @Order(24)
+    @Test
+    public void testLatencyAttributes() throws InitializationException {
+        RocksDbService rocksDbService = new RocksDbService();
+        testRunner = TestRunners.newTestRunner(RocksDbWriter.class);
+        testRunner.addControllerService("service", rocksDbService);
+        testRunner.setProperty(rocksDbService, RocksDbService.DATABASE_PATH, LATENCY_DB_NAME);
+        testRunner.setProperty(rocksDbService, RocksDbService.OPEN_MODE, READANDWRITE);
+        testRunner.setProperty(rocksDbService, RocksDbService.LATENCY_SAMPLE_RATE, "1");
+        testRunner.setProperty(rocksDbService, "setCreateIfMissing", "true");
+        testRunner.enableControllerService(rocksDbService);
+        testRunner.setProperty(RocksDbWriter.ROCKSDB_SERVICE, "service");
+        testRunner.setProperty(RocksDbWriter.KEY, "${key}");
+        testRunner.setProperty(RocksDbWriter.SAVE_FROM, FLOWFILE_ATTRIBUTE);
+        testRunner.setProperty(RocksDbWriter.VALUE, "${value}");
+        testRunner.setProperty(RocksDbWriter.LATENCY_ATTRIBUTES, "true");
+        testRunner.enqueue("", Map.of("key", "traced", "value", "value"));
+        testRunner.run();
+        MockFlowFile written = testRunner.getFlowFilesForRelationship(REL_SUCCESS).get(0);
+        assertEquals("write", written.getAttribute("rocksdb.latency.operation"));
+        assertTrue(Long.parseLong(written.getAttribute("rocksdb.latency.total.nanos")) > 0);
+        assertTrue(written.getAttributes().containsKey("rocksdb.latency.write.wal.nanos"));
+        testRunner.disableControllerService(rocksDbService);
+
+        testRunner = TestRunners.newTestRunner(RocksDbReader.class);
+        testRunner.addControllerService("service", rocksDbService);
+        testRunner.setProperty(rocksDbService, RocksDbService.DATABASE_PATH, LATENCY_DB_NAME);
+        testRunner.setProperty(rocksDbService, RocksDbService.OPEN_MODE, READANDWRITE);
+        testRunner.setProperty(rocksDbService, RocksDbService.LATENCY_SAMPLE_RATE, "2");
+        testRunner.enableControllerService(rocksDbService);
+        testRunner.setProperty(RocksDbReader.ROCKSDB_SERVICE, "service");
+        testRunner.setProperty(RocksDbReader.SEARCH_TYPE, FIND);
+        testRunner.setProperty(RocksDbReader.KEY, "traced");
+        testRunner.setProperty(RocksDbReader.RESULT_DESTINATION, FLOWFILE_ATTRIBUTE);
+        testRunner.setProperty(RocksDbReader.LATENCY_ATTRIBUTES, "true");
+        testRunner.enqueue("");
+        testRunner.enqueue("");
+        testRunner.run(2);
+        testRunner.disableControllerService(rocksDbService);
+
+        // 1 in 2 searches is sampled
+        List<MockFlowFile> found = testRunner.getFlowFilesForRelationship(REL_SUCCESS);
+        assertEquals(2, found.size());
+        assertEquals("read", found.get(0).getAttribute("rocksdb.latency.operation"));
+        assertTrue(found.get(0).getAttributes().containsKey("rocksdb.latency.block.cache.hit.count"));
+        assertNull(found.get(1).getAttribute("rocksdb.latency.operation"));
+
+        // the batch is written on the threads of the shards, the trace is handed over to the processor
+        for (String shard : LATENCY_SHARD_DB_NAMES.split(",")) {
+            new File(shard).mkdirs();
+        }
+        ShardedRocksDbService shardedService = new ShardedRocksDbService();
+        testRunner = TestRunners.newTestRunner(RocksDbWriter.class);
+        testRunner.addControllerService("service", shardedService);
+        testRunner.setProperty(shardedService, ShardedRocksDbService.DATABASE_PATHS, LATENCY_SHARD_DB_NAMES);
+        testRunner.setProperty(shardedService, ShardedRocksDbService.OPEN_MODE, READANDWRITE);
+        testRunner.setProperty(shardedService, ShardedRocksDbService.LATENCY_SAMPLE_RATE, "1");
+        testRunner.setProperty(shardedService, "setCreateIfMissing", "true");
+        testRunner.enableControllerService(shardedService);
+        testRunner.setProperty(RocksDbWriter.ROCKSDB_SERVICE, "service");
+        testRunner.setProperty(RocksDbWriter.KEY, "${key}");
+        testRunner.setProperty(RocksDbWriter.SAVE_FROM, FLOWFILE_ATTRIBUTE);
+        testRunner.setProperty(RocksDbWriter.VALUE, "${value}");
+        testRunner.setProperty(RocksDbWriter.BATCH_SIZE, "10");
+        testRunner.setProperty(RocksDbWriter.LATENCY_ATTRIBUTES, "true");
+        for (int i = 0; i < 10; i++) {
+            testRunner.enqueue("", Map.of("key", "traced" + i, "value", "value" + i));
+        }
+        testRunner.run();
+        testRunner.disableControllerService(shardedService);
+        testRunner.assertAllFlowFilesTransferred(REL_SUCCESS, 10);
+        assertEquals("write", testRunner.getFlowFilesForRelationship(REL_SUCCESS).get(0).getAttribute("rocksdb.latency.operation"));
+    }
+
+    @Order(25)
+    @Test
+    public void testKeyEncodings() throws InitializationException, LookupFailureException {
+        RocksDbService rocksDbService = new RocksDbService();
+        testRunner = TestRunners.newTestRunner(RocksDbReader.class);
+        testRunner.addControllerService("service", rocksDbService);
+        testRunner.setProperty(rocksDbService, RocksDbService.DATABASE_PATH, KEY_ENCODING_DB_NAME);
+        testRunner.setProperty(rocksDbService, RocksDbService.OPEN_MODE, READANDWRITE);
+        testRunner.setProperty(rocksDbService, RocksDbService.KEY_ENCODING, KEY_ENCODING_SIGNED_LONG);
+        testRunner.setProperty(rocksDbService, "setCreateIfMissing", "true");
+        testRunner.enableControllerService(rocksDbService);
+        List<Map<String, Object>> entries = new ArrayList<>();
+        for (String key : List.of("100", "-5", "9", "10")) {
+            entries.add(Map.of("key", key, "value", "value" + key));
+        }
+        rocksDbService.writeAll(entries);
+        // numeric order, where the text keys would sort "10" < "100" < "9"
+        List<Map.Entry<String, String>> scanned = rocksDbService.scan(Map.of("key", "1000", "seekFor", SEEK_FOR_PREV,
+                "direction", DIRECTION_BACKWARD, "limit", 4));
+        assertEquals(List.of("100", "10", "9", "-5"), scanned.stream().map(Map.Entry::getKey).collect(Collectors.toList()));
+        assertEquals("value-5", rocksDbService.search(Map.of("key", "-5", "searchMethod", FIND)).orElse(null));
+        RocksDbService numericService = rocksDbService;
+        Assertions.assertThrows(LookupFailureException.class,
+                () -> numericService.search(Map.of("key", "not a number", "searchMethod", FIND)));
+        testRunner.disableControllerService(rocksDbService);
+
+        RocksDbService tupleService = new RocksDbService();
+        testRunner = TestRunners.newTestRunner(RocksDbReader.class);
+        testRunner.addControllerService("service", tupleService);
+        testRunner.setProperty(tupleService, RocksDbService.DATABASE_PATH, TUPLE_DB_NAME);
+        testRunner.setProperty(tupleService, RocksDbService.OPEN_MODE, READANDWRITE);
+        testRunner.setProperty(tupleService, RocksDbService.KEY_ENCODING, KEY_ENCODING_TUPLE);
+        testRunner.setProperty(tupleService, RocksDbService.KEY_TUPLE_TYPES, "string,long");
+        testRunner.setProperty(tupleService, "setCreateIfMissing", "true");
+        testRunner.enableControllerService(tupleService);
+        entries.clear();
+        for (String key : List.of("a|10", "a|9", "ab|1", "b|-1")) {
+            entries.add(Map.of("key", key, "value", "value" + key));
+        }
+        tupleService.writeAll(entries);
+        // by string then number, the string "a" sorting before "ab"
+        scanned = tupleService.scan(Map.of("key", "b|-1", "seekFor", SEEK_FOR_PREV, "direction", DIRECTION_BACKWARD, "limit", 10));
+        assertEquals(List.of("b|-1", "ab|1", "a|10", "a|9"), scanned.stream().map(Map.Entry::getKey).collect(Collectors.toList()));
+        // a key with the string alone sorts before all the keys starting with it
+        scanned = tupleService.scan(Map.of("key", "a", "seekFor", SEEK_FOR_PREV, "limit", 10));
+        assertTrue(scanned.isEmpty());
+        assertEquals("valueab|1", tupleService.search(Map.of("key", "ab|1", "searchMethod", FIND)).orElse(null));
+        testRunner.disableControllerService(tupleService);
+    }
+
+    @Order(26)
+    @Test
+    public void testRetention() throws InitializationException, LookupFailureException {
+        RocksDbService rocksDbService = new RocksDbService();
+        testRunner = TestRunners.newTestRunner(RocksDbReader.class);
+        testRunner.addControllerService("service", rocksDbService);
+        testRunner.setProperty(rocksDbService, RocksDbService.DATABASE_PATH, RETENTION_DB_NAME);
+        testRunner.setProperty(rocksDbService, RocksDbService.OPEN_MODE, READANDWRITE);
+        testRunner.setProperty(rocksDbService, RocksDbService.RETENTION_PERIOD, "1 hour");
+        testRunner.setProperty(rocksDbService, "setCreateIfMissing", "true");
+        // text keys do not hold a timestamp
+        testRunner.assertNotValid(rocksDbService);
+        testRunner.setProperty(rocksDbService, RocksDbService.KEY_ENCODING, KEY_ENCODING_TUPLE);
+        testRunner.setProperty(rocksDbService, RocksDbService.KEY_TUPLE_TYPES, "string,long");
+        testRunner.enableControllerService(rocksDbService);
+        long now = System.currentTimeMillis();
+        long old = now - TimeUnit.HOURS.toMillis(2);
+        List<Map<String, Object>> entries = new ArrayList<>();
+        for (String key : List.of("a|" + old, "a|" + (old - 1), "a|" + now, "b|" + old, "c|" + now, "d")) {
+            entries.add(Map.of("key", key, "value", "value"));
+        }
+        rocksDbService.writeAll(entries);
+        // a range for each of the series a and b, the key without a timestamp being kept
+        assertEquals(2, rocksDbService.applyRetention());
+        List<String> kept = new ArrayList<>();
+        for (Map<String, Object> entry : entries) {
+            if (rocksDbService.search(Map.of("key", entry.get("key"), "searchMethod", FIND)).isPresent()) {
+                kept.add(entry.get("key").toString());
+            }
+        }
+        assertEquals(List.of("a|" + now, "c|" + now, "d"), kept);
+        assertEquals(0, rocksDbService.applyRetention());
+        testRunner.disableControllerService(rocksDbService);
+
+        RocksDbService timePrefixedService = new RocksDbService();
+        testRunner = TestRunners.newTestRunner(RocksDbReader.class);
+        testRunner.addControllerService("service", timePrefixedService);
+        testRunner.setProperty(timePrefixedService, RocksDbService.DATABASE_PATH, TIME_PREFIXED_DB_NAME);
+        testRunner.setProperty(timePrefixedService, RocksDbService.OPEN_MODE, READANDWRITE);
+        testRunner.setProperty(timePrefixedService, RocksDbService.KEY_ENCODING, KEY_ENCODING_TUPLE);
+        testRunner.setProperty(timePrefixedService, RocksDbService.KEY_TUPLE_TYPES, "long,string");
+        testRunner.setProperty(timePrefixedService, RocksDbService.RETENTION_PERIOD, "1 hour");
+        testRunner.setProperty(timePrefixedService, "setCreateIfMissing", "true");
+        testRunner.enableControllerService(timePrefixedService);
+        entries.clear();
+        for (String key : List.of(old + "|a", old + "|b", now + "|a")) {
+            entries.add(Map.of("key", key, "value", "value"));
+        }
+        timePrefixedService.writeAll(entries);
+        assertEquals(1, timePrefixedService.applyRetention());
+        assertNull(timePrefixedService.search(Map.of("key", old + "|b", "searchMethod", FIND)).orElse(null));
+        assertEquals("value", timePrefixedService.search(Map.of("key", now + "|a", "searchMethod", FIND)).orElse(null));
+        // nothing left to expire, nothing deleted nor compacted
+        assertEquals(0, timePrefixedService.applyRetention());
+        testRunner.disableControllerService(timePrefixedService);
+
+        // each series compacted on its own to the last level, into files of disjoint key ranges
+        RocksDbService filesService = new RocksDbService();
+        testRunner = TestRunners.newTestRunner(RocksDbReader.class);
+        testRunner.addControllerService("service", filesService);
+        testRunner.setProperty(filesService, RocksDbService.DATABASE_PATH, RETENTION_FILES_DB_NAME);
+        testRunner.setProperty(filesService, RocksDbService.OPEN_MODE, READANDWRITE);
+        testRunner.setProperty(filesService, RocksDbService.KEY_ENCODING, KEY_ENCODING_TUPLE);
+        testRunner.setProperty(filesService, RocksDbService.KEY_TUPLE_TYPES, "string,long");
+        testRunner.setProperty(filesService, RocksDbService.RETENTION_PERIOD, "1 hour");
+        testRunner.setProperty(filesService, "setCreateIfMissing", "true");
+        testRunner.enableControllerService(filesService);
+        for (List<String> keys : List.of(List.of("a|" + old, "a|" + now), List.of("b|" + now), List.of("c|" + old, "c|" + now))) {
+            entries.clear();
+            for (String key : keys) {
+                entries.add(Map.of("key", key, "value", "value"));
+            }
+            filesService.writeAll(entries);
+            String series = keys.get(0).substring(0, 1);
+            filesService.compact(series, String.valueOf((char) (series.charAt(0) + 1)), false);
+        }
+        List<String> filesBefore = filesService.rocksDbUtils.getLiveFiles().stream().map(LiveFileMetaData::fileName).collect(Collectors.toList());
+        assertEquals(3, filesBefore.size());
+        assertEquals(2, filesService.applyRetention());
+        List<String> filesAfter = filesService.rocksDbUtils.getLiveFiles().stream().map(LiveFileMetaData::fileName).collect(Collectors.toList());
+        // the file of the series b, between the expired ranges, is not rewritten, the ones of the series a and c are
+        assertEquals(1, filesAfter.stream().filter(filesBefore::contains).count());
+        assertEquals(3, filesAfter.size());
+        assertNull(filesService.search(Map.of("key", "c|" + old, "searchMethod", FIND)).orElse(null));
+        assertNull(filesService.search(Map.of("key", "a|" + old, "searchMethod", FIND)).orElse(null));
+        assertEquals("value", filesService.search(Map.of("key", "a|" + now, "searchMethod", FIND)).orElse(null));
+        assertEquals("value", filesService.search(Map.of("key", "b|" + now, "searchMethod", FIND)).orElse(null));
+        testRunner.disableControllerService(filesService);
+    }
+
+    @Order(27)
+    @Test
+    public void testEstimateCompression() throws InitializationException, LookupFailureException {
+        RocksDbService rocksDbService = new RocksDbService();
+        testRunner = TestRunners.newTestRunner(EstimateCompressionRocksDb.class);
+        testRunner.addControllerService("service", rocksDbService);
+        testRunner.setProperty(rocksDbService, RocksDbService.DATABASE_PATH, COMPRESSION_DB_NAME);
+        testRunner.setProperty(rocksDbService, RocksDbService.OPEN_MODE, READANDWRITE);
+        testRunner.setProperty(rocksDbService, RocksDbService.COMPRESSION, COMPRESSION_ZSTD);
+        testRunner.setProperty(rocksDbService, RocksDbService.ZSTD_MAX_DICTIONARY_SIZE, "16 KB");
+        testRunner.setProperty(rocksDbService, "setCreateIfMissing", "true");
+        testRunner.enableControllerService(rocksDbService);
+        List<Map<String, Object>> entries = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            entries.add(Map.of("key", String.format("device%05d", i), "value", "{\"device\":\"device" + i + "\",\"status\":\"" +
+                    (i % 3 == 0 ? "online" : "offline") + "\",\"firmware\":\"1.4." + i % 7 + "\",\"temperature\":" + (20 + i % 15) +
+                    ",\"location\":{\"building\":\"B" + i % 4 + "\",\"floor\":" + i % 9 + "},\"tags\":[\"sensor\",\"indoor\"]}"));
+        }
+        rocksDbService.writeAll(entries);
+        // flushes the memtable, so that the sample is read from SST files
+        rocksDbService.compact(null, null, false);
+        testRunner.setProperty(EstimateCompressionRocksDb.ROCKSDB_SERVICE, "service");
+        testRunner.setProperty(EstimateCompressionRocksDb.SAMPLE_SIZE, "1000");
+        testRunner.setProperty(EstimateCompressionRocksDb.ZSTD_MAX_DICTIONARY_SIZE, "2 KB");
+        testRunner.setIncomingConnection(false);
+        testRunner.run();
+        testRunner.disableControllerService(rocksDbService);
+        testRunner.assertAllFlowFilesTransferred(REL_SUCCESS, 1);
+        MockFlowFile flowFile = testRunner.getFlowFilesForRelationship(REL_SUCCESS).get(0);
+        assertEquals("1000", flowFile.getAttribute("rocksdb.compression.sample.entries"));
+        double zstd = Double.parseDouble(flowFile.getAttribute("rocksdb.compression.zstd.ratio"));
+        double dictionary = Double.parseDouble(flowFile.getAttribute("rocksdb.compression.zstd.dictionary.ratio"));
+        assertTrue(zstd > 1, "zstd ratio " + zstd);
+        assertTrue(dictionary > zstd, "dictionary ratio " + dictionary + " not above zstd ratio " + zstd);
+        assertEquals("1.00", flowFile.getAttribute("rocksdb.compression.none.ratio"));
+    }
+
+    @Order(28)
+    @Test
+    public void testRecordSchemaEvolution() throws InitializationException, LookupFailureException {
+        RocksDbService rocksDbService = new RocksDbService();
+        VersionedSchemaRegistry schemaRegistry = new VersionedSchemaRegistry();
+        testRunner = TestRunners.newTestRunner(RocksDbReader.class);
+        testRunner.addControllerService("registry", schemaRegistry);
+        testRunner.enableControllerService(schemaRegistry);
+        testRunner.addControllerService("service", rocksDbService);
+        testRunner.setProperty(rocksDbService, RocksDbService.DATABASE_PATH, SCHEMA_EVOLUTION_DB_NAME);
+        testRunner.setProperty(rocksDbService, RocksDbService.OPEN_MODE, READANDWRITE);
+        testRunner.setProperty(rocksDbService, RocksDbService.VALUE_FORMAT, VALUE_FORMAT_AVRO);
+        testRunner.setProperty(rocksDbService, RocksDbService.SCHEMA_REGISTRY, "registry");
+        testRunner.setProperty(rocksDbService, RocksDbService.SCHEMA_NAME, "user");
+        testRunner.setProperty(rocksDbService, RocksDbService.SCHEMA_VERSION, "1");
+        testRunner.setProperty(rocksDbService, "setCreateIfMissing", "true");
+        testRunner.enableControllerService(rocksDbService);
+        rocksDbService.write(Map.of("key", "user1", "value", "{\"name\":\"alice\",\"age\":30}"));
+        testRunner.disableControllerService(rocksDbService);
+
+        // the latest version resolves the values written with version 1 from the registry
+        testRunner.removeProperty(rocksDbService, RocksDbService.SCHEMA_VERSION);
+        testRunner.enableControllerService(rocksDbService);
+        rocksDbService.write(Map.of("key", "user2", "value", "{\"name\":\"bob\",\"age\":40,\"email\":\"bob@example.com\"}"));
+        assertEquals("{\"name\":\"alice\",\"age\":30,\"email\":null}",
+                rocksDbService.search(Map.of("key", "user1", "searchMethod", FIND)).orElse(null));
+        assertEquals("bob@example.com", rocksDbService.searchRecord(Map.of("key", "user2")).orElseThrow().getAsString("email"));
+        testRunner.disableControllerService(rocksDbService);
+
+        // version 1 does not know the fingerprint of version 2
+        testRunner.setProperty(rocksDbService, RocksDbService.SCHEMA_VERSION, "1");
+        testRunner.enableControllerService(rocksDbService);
+        assertThrows(LookupFailureException.class, () -> rocksDbService.search(Map.of("key", "user2", "searchMethod", FIND)));
+        assertThrows(LookupFailureException.class, () -> rocksDbService.scan(Map.of("key", "user1", "seekFor", SEEK_FOR_PREV, "limit", 2, "direction", DIRECTION_FORWARD)));
+        testRunner.disableControllerService(rocksDbService);
+    }
+
+    @Order(29)
+    @Test
+    public void testTuningProfileSelection() throws Exception {
+        File tuningDb = new File(TUNING_DB_NAME);
+        assertEquals(0, RocksDbUtils.estimateDbSize(tuningDb));
+
+        RocksDbUtils writer = new RocksDbUtils();
+        writer.setTuningProfile(TUNING_AUTO);
+        writer.initDbWrite(TUNING_DB_NAME, new HashMap<>(Map.of("setCreateIfMissing", "true")));
+        // a database opened for writing keeps the options it was written with
+        assertEquals(TUNING_NONE, writer.getAppliedTuningProfile());
+        for (int i = 0; i < 1000; i++) {
+            writer.saveEntry(String.format("key%05d", i).getBytes(StandardCharsets.UTF_8), "value" + i);
+        }
+        writer.compact(null, null, false);
+        long liveSize = writer.getLiveFiles().stream().mapToLong(LiveFileMetaData::size).sum();
+        assertTrue(liveSize > 0);
+        // the estimate only reads the metadata, so it works while the database is open for writing
+        assertEquals(liveSize, RocksDbUtils.estimateDbSize(tuningDb));
+        writer.resetDb();
+
+        RocksDbUtils reader = new RocksDbUtils();
+        reader.setTuningProfile(TUNING_AUTO);
+        reader.setSmallDatabaseThreshold(liveSize + 1);
+        reader.initDbReadOnly(TUNING_DB_NAME, new HashMap<>());
+        assertEquals(TUNING_SMALL, reader.getAppliedTuningProfile());
+        reader.resetDb();
+
+        reader = new RocksDbUtils();
+        reader.setTuningProfile(TUNING_AUTO);
+        reader.setSmallDatabaseThreshold(liveSize);
+        reader.initDbReadOnly(TUNING_DB_NAME, new HashMap<>());
+        assertEquals(TUNING_POINT_LOOKUP, reader.getAppliedTuningProfile());
+        assertEquals("value999", reader.find("key00999"));
+        reader.resetDb();
+
+        // an explicit profile applies to a database opened for writing as well
+        writer = new RocksDbUtils();
+        writer.setTuningProfile(TUNING_SCAN_HEAVY);
+        writer.initDbWrite(TUNING_DB_NAME, new HashMap<>());
+        assertEquals(TUNING_SCAN_HEAVY, writer.getAppliedTuningProfile());
+        writer.resetDb();
+    }
+
+    @Order(30)
+    @Test
+    public void testSerializationBuffers() throws InitializationException, IOException {
+        // the stream grows past its initial capacity, and releases the grown buffer on reset
+        DirectBufferOutputStream stream = new DirectBufferOutputStream(4, 8);
+        stream.write("0123456789".getBytes(StandardCharsets.UTF_8));
+        ByteBuffer written = stream.toByteBuffer();
+        assertTrue(written.isDirect());
+        assertEquals("0123456789", StandardCharsets.UTF_8.decode(written).toString());
+        stream.reset();
+        stream.write('a');
+        assertEquals(4, stream.toByteBuffer().capacity());
+        // the buffers of a thread are reused by every serialization
+        assertSame(SerializationBuffers.get().key(), SerializationBuffers.get().key());
+
+        new File(MAP_CACHE_DB_NAME).mkdirs();
+        Serializer<String> serializer = (value, out) -> out.write(value.getBytes(StandardCharsets.UTF_8));
+        Deserializer<String> deserializer = bytes -> new String(bytes, StandardCharsets.UTF_8);
+        RocksDbDistributedMapCacheClientService cacheClient = new RocksDbDistributedMapCacheClientService();
+        testRunner = TestRunners.newTestRunner(FetchDistributedMapCache.class);
+        testRunner.addControllerService("redis-map-cache-client", cacheClient);
+        testRunner.setProperty(cacheClient, RocksDbDistributedMapCacheClientService.DATABASE_PATH, MAP_CACHE_DB_NAME);
+        testRunner.setProperty(cacheClient, RocksDbDistributedMapCacheClientService.OPEN_MODE, READANDWRITE);
+        testRunner.setProperty(cacheClient, "setCreateIfMissing", "true");
+        testRunner.enableControllerService(cacheClient);
+
+        // keys and values larger than the initial buffers, a value larger than the read buffer is read again
+        String longKey = "k".repeat(1000);
+        String mediumValue = "m".repeat(10 * 1024);
+        assertTrue(cacheClient.putIfAbsent(longKey, mediumValue, serializer, serializer));
+        assertTrue(cacheClient.containsKey(longKey, serializer));
+        assertEquals(mediumValue, cacheClient.getAndPutIfAbsent(longKey, "other", serializer, serializer, deserializer));
+        cacheClient.put("short", "s", serializer, serializer);
+        // the arrays returned are copies, a later read through the same buffer leaves them unchanged
+        String read = cacheClient.get(longKey, serializer, deserializer);
+        assertEquals("s", cacheClient.get("short", serializer, deserializer));
+        assertEquals(mediumValue, read);
+        assertTrue(cacheClient.remove(longKey, serializer));
+        assertNull(cacheClient.get(longKey, serializer, deserializer));
+        assertNull(cacheClient.getAndPutIfAbsent("absent", "created", serializer, serializer, deserializer));
+        assertEquals("created", cacheClient.get("absent", serializer, deserializer));
+        testRunner.disableControllerService(cacheClient);
+    }
+
+    private static void cacheRequest(DataOutputStream out, String action, String... arguments) throws IOException {
+        out.writeUTF(action);
+        for (String argument : arguments) {
+            writeCacheValue(out, argument);
+        }
+        out.flush();
+    }
+
+    private static void writeCacheValue(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readCacheValue(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes.length == 0 ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class SingleSchemaRegistry extends AbstractControllerService implements SchemaRegistry {
+
+        private static final RecordSchema SCHEMA = AvroTypeUtil.createSchema(new Schema.Parser().parse(
+                "{\"type\":\"record\",\"name\":\"user\",\"fields\":[" +
+                        "{\"name\":\"name\",\"type\":\"string\"},{\"name\":\"age\",\"type\":\"int\"}]}"));
+
+        @Override
+        public RecordSchema retrieveSchema(SchemaIdentifier schemaIdentifier) {
+            return SCHEMA;
+        }
+
+        @Override
+        public Set<SchemaField> getSuppliedSchemaFields() {
+            return Set.of(SchemaField.SCHEMA_NAME);
+        }
+    }
+
+    private static class VersionedSchemaRegistry extends AbstractControllerService implements SchemaRegistry {
+
+        private static final List<String> VERSIONS = List.of(
+                "{\"type\":\"record\",\"name\":\"user\",\"fields\":[" +
+                        "{\"name\":\"name\",\"type\":\"string\"},{\"name\":\"age\",\"type\":\"int\"}]}",
+                "{\"type\":\"record\",\"name\":\"user\",\"fields\":[" +
+                        "{\"name\":\"name\",\"type\":\"string\"},{\"name\":\"age\",\"type\":\"int\"}," +
+                        "{\"name\":\"email\",\"type\":[\"null\",\"string\"],\"default\":null}]}");
+
+        @Override
+        public RecordSchema retrieveSchema(SchemaIdentifier schemaIdentifier) {
+            int version = schemaIdentifier.getVersion().orElse(VERSIONS.size());
+            String text = VERSIONS.get(version - 1);
+            return AvroTypeUtil.createSchema(new Schema.Parser().parse(text), text,
+                    SchemaIdentifier.builder().name("user").version(version).build());
+        }
+
+        @Override
+        public Set<SchemaField> getSuppliedSchemaFields() {
+            return Set.of(SchemaField.SCHEMA_NAME, SchemaField.SCHEMA_VERSION);
+        }
+    }
+
+    private static class LineRecordSetWriterFactory extends AbstractControllerService implements RecordSetWriterFactory {
+
+        @Override
+        public RecordSchema getSchema(Map<String, String> variables, RecordSchema readSchema) {
+            return readSchema;
+        }
+
+        @Override
+        public RecordSetWriter createWriter(ComponentLog logger, RecordSchema schema, OutputStream out, Map<String, String> variables) {
+            return new AbstractRecordSetWriter(out) {
+                @Override
+                protected Map<String, String> writeRecord(Record record) throws IOException {
+                    List<String> fields = new ArrayList<>();
+                    for (String field : record.getSchema().getFieldNames()) {
+                        fields.add(field + "=" + record.getAsString(field));
+                    }
+                    getOutputStream().write((String.join(",", fields) + "\n").getBytes(StandardCharsets.UTF_8));
+                    return Map.of();
+                }
+
+                @Override
+                public String getMimeType() {
+                    return "text/plain";
+                }
+            };
+        }
+    }
 }